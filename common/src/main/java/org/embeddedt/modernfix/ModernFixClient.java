@@ -3,6 +3,10 @@ package org.embeddedt.modernfix;
 import com.mojang.datafixers.util.Pair;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.font.FontManager;
+import net.minecraft.client.particle.ParticleEngine;
+import net.minecraft.client.sounds.SoundManager;
+import net.minecraft.network.chat.TextComponent;
 import net.minecraft.network.syncher.EntityDataAccessor;
 import net.minecraft.network.syncher.SynchedEntityData;
 import net.minecraft.server.MinecraftServer;
@@ -10,8 +14,11 @@ import net.minecraft.world.entity.Entity;
 import org.embeddedt.modernfix.api.constants.IntegrationConstants;
 import org.embeddedt.modernfix.api.entrypoint.ModernFixClientIntegration;
 import org.embeddedt.modernfix.core.ModernFixMixinPlugin;
+import org.embeddedt.modernfix.dynamicresources.DynamicResourceMetrics;
 import org.embeddedt.modernfix.packet.EntityIDSyncPacket;
 import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
+import org.embeddedt.modernfix.resources.ReloadListenerScheduler;
+import org.embeddedt.modernfix.tickables.TickableObjectManager;
 import org.embeddedt.modernfix.util.ClassInfoManager;
 import org.embeddedt.modernfix.world.IntegratedWatchdog;
 
@@ -50,6 +57,15 @@ public class ModernFixClient {
                 ModernFix.LOGGER.error("Could not instantiate integration {}", className, e);
             }
         }
+        if(ModernFixMixinPlugin.instance.isOptionEnabled("perf.reload_listener_scheduler.SimpleReloadInstanceMixin"))
+            registerReloadListenerRules();
+    }
+
+    private static void registerReloadListenerRules() {
+        // these touch OpenAL or upload textures, so they must stay on the main thread
+        ReloadListenerScheduler.registerIndependent(SoundManager.class, false);
+        ReloadListenerScheduler.registerIndependent(FontManager.class, false);
+        ReloadListenerScheduler.registerIndependent(ParticleEngine.class, false);
     }
 
     public void resetWorldLoadStateMachine() {
@@ -90,6 +106,28 @@ public class ModernFixClient {
             }
             resetWorldLoadStateMachine();
         }
+        DynamicResourceMetrics.tickPeriodicLog();
+    }
+
+    public void onClientTickEnd() {
+        TickableObjectManager.runTick();
+    }
+
+    /**
+     * Handle ModernFix commands that only make sense on the client, as the data they show lives there.
+     * @return true if the message was handled and should not be sent to the server
+     */
+    public boolean handleClientCommand(String message) {
+        if(message.trim().equals("/modernfix stats")) {
+            List<String> lines = DynamicResourceMetrics.report();
+            if(lines.isEmpty())
+                lines = Collections.singletonList("No dynamic resources have been loaded");
+            for(String line : lines) {
+                Minecraft.getInstance().gui.getChat().addMessage(new TextComponent(line));
+            }
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -1,12 +1,11 @@
 package org.embeddedt.modernfix.common.mixin.perf.cache_strongholds;
 
-import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.chunk.ChunkGenerator;
 import org.embeddedt.modernfix.ModernFix;
 import org.embeddedt.modernfix.duck.IServerLevel;
-import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
+import org.embeddedt.modernfix.world.GeneratorLevelLookup;
 import org.embeddedt.modernfix.world.StrongholdLocationCache;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
@@ -23,7 +22,7 @@ public class ChunkGeneratorMixin {
 
     @Inject(method = "generateStrongholds", at = @At(value = "INVOKE", target = "Lcom/google/common/collect/Lists;newArrayList()Ljava/util/ArrayList;", ordinal = 0, remap = false), cancellable = true)
     private void useCachedDataIfAvailable(CallbackInfo ci) {
-        ServerLevel level = searchLevel();
+        ServerLevel level = GeneratorLevelLookup.findLevel((ChunkGenerator)(Object)this);
         if(level == null) {
             ModernFix.LOGGER.error("Can't find server level for " + this);
             return;
@@ -37,25 +36,10 @@ public class ChunkGeneratorMixin {
         ci.cancel();
     }
 
-    private ServerLevel searchLevel() {
-        MinecraftServer server = ModernFixPlatformHooks.INSTANCE.getCurrentServer();
-        if(server != null) {
-            ServerLevel ourLevel = null;
-            for (ServerLevel level : server.getAllLevels()) {
-                if (level.getChunkSource().getGenerator() == ((ChunkGenerator) (Object) this)) {
-                    ourLevel = level;
-                    break;
-                }
-            }
-            return ourLevel;
-        } else
-            return null;
-    }
-
     @Inject(method = "generateStrongholds", at = @At("TAIL"))
     private void saveCachedData(CallbackInfo ci) {
         if(this.strongholdPositions.size() > 0) {
-            ServerLevel level = searchLevel();
+            ServerLevel level = GeneratorLevelLookup.findLevel((ChunkGenerator)(Object)this);
             if(level != null) {
                 StrongholdLocationCache cache = ((IServerLevel)level).mfix$getStrongholdCache();
                 cache.setChunkPosList(this.strongholdPositions);
@@ -0,0 +1,27 @@
+package org.embeddedt.modernfix.common.mixin.perf.cache_upgraded_structures.prepass;
+
+import com.mojang.datafixers.DataFixer;
+import net.minecraft.server.packs.resources.ResourceManager;
+import net.minecraft.world.level.levelgen.structure.templatesystem.StructureManager;
+import org.embeddedt.modernfix.structure.CachingStructureManager;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(StructureManager.class)
+public class StructureManagerMixin {
+    @Shadow @Final private DataFixer fixerUpper;
+
+    @Shadow private ResourceManager resourceManager;
+
+    /**
+     * Upgrade outdated structures in the background whenever the datapacks providing them change.
+     */
+    @Inject(method = { "<init>", "onResourceManagerReload" }, at = @At("RETURN"))
+    private void startStructurePrepass(CallbackInfo ci) {
+        CachingStructureManager.upgradeOutdatedStructures(this.resourceManager, this.fixerUpper);
+    }
+}
@@ -0,0 +1,24 @@
+package org.embeddedt.modernfix.common.mixin.perf.dynamic_dfu.warmup;
+
+import net.minecraft.client.gui.screens.TitleScreen;
+import net.minecraft.util.datafix.DataFixers;
+import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.embeddedt.modernfix.dfu.LazyDataFixer;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(TitleScreen.class)
+@ClientOnlyMixin
+public class TitleScreenMixin {
+    /**
+     * Once the title screen is up, the player is unlikely to load a world for a few seconds, so use that time to
+     * build DFU in the background.
+     */
+    @Inject(method = "init", at = @At("RETURN"))
+    private void startDfuWarmup(CallbackInfo ci) {
+        if(DataFixers.getDataFixer() instanceof LazyDataFixer)
+            ((LazyDataFixer)DataFixers.getDataFixer()).startWarmup();
+    }
+}
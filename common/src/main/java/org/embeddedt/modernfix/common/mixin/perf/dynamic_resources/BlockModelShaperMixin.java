@@ -25,7 +25,7 @@ public class BlockModelShaperMixin {
     @Shadow @Final @Mutable
     private Map<BlockState, BakedModel> modelByStateCache;
 
-    private final DynamicModelCache<BlockState> mfix$modelCache = new DynamicModelCache<>(k -> this.cacheBlockModel((BlockState)k), false);
+    private final DynamicModelCache<BlockState> mfix$modelCache = new DynamicModelCache<>(k -> this.cacheBlockModel((BlockState)k), false, "block_models");
 
     @Inject(method = "<init>", at = @At("RETURN"))
     private void replaceModelMap(CallbackInfo ci) {
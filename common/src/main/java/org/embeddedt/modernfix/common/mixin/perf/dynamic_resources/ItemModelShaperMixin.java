@@ -34,7 +34,7 @@ public abstract class ItemModelShaperMixin {
 
     private static final ModelResourceLocation SENTINEL_VANILLA = new ModelResourceLocation("modernfix", "sentinel");
 
-    private final DynamicModelCache<Item> mfix$itemModelCache = new DynamicModelCache<>(k -> this.mfix$getModelForItem((Item)k), true);
+    private final DynamicModelCache<Item> mfix$itemModelCache = new DynamicModelCache<>(k -> this.mfix$getModelForItem((Item)k), true, "item_models");
 
     @Inject(method = "<init>", at = @At("RETURN"))
     private void replaceLocationMap(CallbackInfo ci) {
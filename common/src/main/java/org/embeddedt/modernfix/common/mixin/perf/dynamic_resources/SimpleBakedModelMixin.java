@@ -0,0 +1,29 @@
+package org.embeddedt.modernfix.common.mixin.perf.dynamic_resources;
+
+import net.minecraft.client.renderer.block.model.BakedQuad;
+import net.minecraft.client.resources.model.SimpleBakedModel;
+import net.minecraft.core.Direction;
+import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.embeddedt.modernfix.duck.ISimpleBakedModel;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+
+import java.util.List;
+import java.util.Map;
+
+@Mixin(SimpleBakedModel.class)
+@ClientOnlyMixin
+public class SimpleBakedModelMixin implements ISimpleBakedModel {
+    @Shadow @Final protected List<BakedQuad> unculledFaces;
+    @Shadow @Final protected Map<Direction, List<BakedQuad>> culledFaces;
+
+    @Override
+    public int mfix$getQuadCount() {
+        int count = this.unculledFaces.size();
+        for(List<BakedQuad> quads : this.culledFaces.values()) {
+            count += quads.size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,24 @@
+package org.embeddedt.modernfix.common.mixin.perf.dynamic_resources.prebake;
+
+import net.minecraft.client.multiplayer.ClientChunkCache;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.world.level.chunk.ChunkBiomeContainer;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.embeddedt.modernfix.dynamicresources.ModelPrebaker;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+@Mixin(ClientChunkCache.class)
+@ClientOnlyMixin
+public class ClientChunkCacheMixin {
+    @Inject(method = "replaceWithPacketData", at = @At("RETURN"))
+    private void prebakeChunkModels(int x, int z, ChunkBiomeContainer biomes, FriendlyByteBuf buf, CompoundTag tag, int sectionMask, boolean fullChunk, CallbackInfoReturnable<LevelChunk> cir) {
+        LevelChunk chunk = cir.getReturnValue();
+        if(chunk != null)
+            ModelPrebaker.onChunkReceived(chunk);
+    }
+}
@@ -7,16 +7,23 @@ import com.mojang.blaze3d.audio.SoundBuffer;
 import net.minecraft.client.sounds.SoundBufferLibrary;
 import net.minecraft.resources.ResourceLocation;
 import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.embeddedt.modernfix.dynamicresources.DynamicResourceMetrics;
 import org.embeddedt.modernfix.dynamicresources.DynamicSoundHelpers;
 import org.embeddedt.modernfix.ModernFix;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Mutable;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.ModifyArg;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.Map;
+import java.util.function.Function;
 
 @Mixin(SoundBufferLibrary.class)
 @ClientOnlyMixin
@@ -33,10 +40,36 @@ public abstract class SoundBufferLibraryMixin {
         .build()
         .asMap();
 
+    @Inject(method = "<init>", at = @At("RETURN"))
+    private void registerMetrics(CallbackInfo ci) {
+        Map<ResourceLocation, CompletableFuture<SoundBuffer>> sounds = this.cache;
+        DynamicResourceMetrics.SOUNDS.setResidentCounter(sounds::size);
+    }
+
+    @Inject(method = "getCompleteBuffer", at = @At("HEAD"))
+    private void recordSoundRequest(ResourceLocation location, CallbackInfoReturnable<CompletableFuture<SoundBuffer>> cir) {
+        DynamicResourceMetrics.SOUNDS.recordRequest();
+    }
+
+    /**
+     * The loader function is only invoked on a cache miss, so wrapping it lets us time exactly the sounds that
+     * are actually loaded.
+     */
+    @ModifyArg(method = "getCompleteBuffer", at = @At(value = "INVOKE", target = "Ljava/util/Map;computeIfAbsent(Ljava/lang/Object;Ljava/util/function/Function;)Ljava/lang/Object;"), index = 1)
+    private Function<ResourceLocation, CompletableFuture<SoundBuffer>> recordSoundLoad(Function<ResourceLocation, CompletableFuture<SoundBuffer>> loader) {
+        return location -> {
+            long start = System.nanoTime();
+            CompletableFuture<SoundBuffer> future = loader.apply(location);
+            future.whenComplete((buffer, e) -> DynamicResourceMetrics.SOUNDS.recordLoad(location, start));
+            return future;
+        };
+    }
+
     private <K extends ResourceLocation, V extends CompletableFuture<SoundBuffer>> void onSoundRemoval(RemovalNotification<K, V> notification) {
         if(notification.getCause() == RemovalCause.REPLACED && notification.getValue() == cache.get(notification.getKey()))
             return;
         notification.getValue().thenAccept(SoundBuffer::discardAlBuffer);
+        DynamicResourceMetrics.SOUNDS.recordEviction(notification.getKey(), DynamicResourceMetrics.EvictionCause.fromGuava(notification.getCause()));
         if(!debugDynamicSoundLoading)
             return;
         K k = notification.getKey();
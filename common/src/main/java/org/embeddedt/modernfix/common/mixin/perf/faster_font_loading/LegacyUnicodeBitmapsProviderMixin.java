@@ -1,9 +1,13 @@
 package org.embeddedt.modernfix.common.mixin.perf.faster_font_loading;
 
+import com.mojang.blaze3d.font.RawGlyph;
 import com.mojang.blaze3d.platform.NativeImage;
 import net.minecraft.client.gui.font.providers.LegacyUnicodeBitmapsProvider;
 import net.minecraft.resources.ResourceLocation;
 import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.embeddedt.modernfix.textures.PngHeaderReader;
+import org.embeddedt.modernfix.tickables.TickableObject;
+import org.embeddedt.modernfix.tickables.TickableObjectManager;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
@@ -18,41 +22,78 @@ import java.io.InputStream;
 import java.util.Map;
 
 /**
- * Objective: avoid recomputing locations many times, as well as loading all the font sheets in the constructor
- * only to do it again later.
+ * Objective: avoid recomputing locations many times, as well as decoding all the font sheets in the constructor.
+ * The constructor only reads each sheet's header to validate its size, and getGlyph loads a sheet the first time a
+ * glyph from its page is needed. Sheets that have not been used for a while are released again; the glyphs that were
+ * already uploaded to the font texture do not need them.
  */
 @Mixin(LegacyUnicodeBitmapsProvider.class)
 @ClientOnlyMixin
-public abstract class LegacyUnicodeBitmapsProviderMixin {
+public abstract class LegacyUnicodeBitmapsProviderMixin implements TickableObject {
     @Shadow protected abstract ResourceLocation getSheetLocation(int i);
 
     @Shadow @Final private Map<ResourceLocation, NativeImage> textures;
     private final ResourceLocation[] glyphLocations = new ResourceLocation[256];
 
-    private ResourceLocation currentCharIdx;
+    /**
+     * Sheets unused for this many client ticks are closed.
+     */
+    private static final int SHEET_TIMEOUT = 20 * 30;
+    private final int[] sheetLastUsed = new int[256];
+    private int ticks;
 
-    @Redirect(method = "<init>", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/gui/font/providers/LegacyUnicodeBitmapsProvider;getSheetLocation(I)Lnet/minecraft/resources/ResourceLocation;"))
-    private ResourceLocation storeCurrentCharIdx(LegacyUnicodeBitmapsProvider provider, int i) {
-        ResourceLocation location = getSheetLocation(i);
-        currentCharIdx = location;
-        return location;
-    }
+    private int currentSheetWidth, currentSheetHeight;
 
+    /**
+     * Only the dimensions of the sheet are checked by the constructor, so read them from the PNG header and skip the
+     * decode. Returning null means the try-with-resources block has nothing to close.
+     */
     @Redirect(method = "<init>", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/platform/NativeImage;read(Lcom/mojang/blaze3d/platform/NativeImage$Format;Ljava/io/InputStream;)Lcom/mojang/blaze3d/platform/NativeImage;"))
-    private NativeImage storeLoadedFontSheet(NativeImage.Format format, InputStream stream) throws IOException {
-        NativeImage image = NativeImage.read(format, stream);
-        textures.put(currentCharIdx, image);
-        return image;
+    private NativeImage readSheetSize(NativeImage.Format format, InputStream stream) throws IOException {
+        int[] size = PngHeaderReader.readSize(stream);
+        currentSheetWidth = size[0];
+        currentSheetHeight = size[1];
+        return null;
+    }
+
+    @Redirect(method = "<init>", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/platform/NativeImage;getWidth()I"))
+    private int getSheetWidth(NativeImage image) {
+        return currentSheetWidth;
     }
 
-    @Redirect(method = "<init>", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/platform/NativeImage;close()V"))
-    private void skipCloseNativeImage(NativeImage image) {
-        /* we can't close here, as the image has been stored for use later */
+    @Redirect(method = "<init>", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/platform/NativeImage;getHeight()I"))
+    private int getSheetHeight(NativeImage image) {
+        return currentSheetHeight;
     }
 
     @Inject(method = "<init>", at = @At("RETURN"))
-    private void clearLocation(CallbackInfo ci) {
-        currentCharIdx = null;
+    private void registerEviction(CallbackInfo ci) {
+        TickableObjectManager.register(this);
+    }
+
+    @Inject(method = "close", at = @At("HEAD"))
+    private void unregisterEviction(CallbackInfo ci) {
+        TickableObjectManager.unregister(this);
+    }
+
+    @Inject(method = "getGlyph", at = @At("HEAD"))
+    private void markSheetUsed(int codepoint, CallbackInfoReturnable<RawGlyph> cir) {
+        if(codepoint >= 0 && codepoint <= 65535)
+            sheetLastUsed[codepoint >> 8] = ticks;
+    }
+
+    @Override
+    public void tick() {
+        ticks++;
+        if((ticks % 20) != 0 || textures.isEmpty())
+            return;
+        for(int i = 0; i < glyphLocations.length; i++) {
+            if(glyphLocations[i] != null && (ticks - sheetLastUsed[i]) >= SHEET_TIMEOUT) {
+                NativeImage image = textures.remove(glyphLocations[i]);
+                if(image != null)
+                    image.close();
+            }
+        }
     }
 
     @Inject(method = "getSheetLocation", at = @At("HEAD"), cancellable = true)
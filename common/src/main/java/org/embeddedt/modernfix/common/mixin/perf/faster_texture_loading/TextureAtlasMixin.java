@@ -12,6 +12,7 @@ import net.minecraft.server.packs.resources.ResourceManager;
 import org.embeddedt.modernfix.ModernFix;
 import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
 import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
+import org.embeddedt.modernfix.textures.TextureDiskCache;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.injection.At;
@@ -35,6 +36,8 @@ public abstract class TextureAtlasMixin {
     private Map<ResourceLocation, Pair<Resource, NativeImage>> loadedImages = new ConcurrentHashMap<>();
     private boolean usingFasterLoad;
     private Collection<TextureAtlasSprite.Info> storedResults;
+    private TextureDiskCache diskCache;
+
     /**
      * @author embeddedt
      * @reason simplify texture loading by loading whole image once, avoid slow PngInfo code
@@ -51,6 +54,7 @@ public abstract class TextureAtlasMixin {
             return instance.iterator();
         List<CompletableFuture<?>> futures = new ArrayList<>();
         ConcurrentLinkedQueue<TextureAtlasSprite.Info> results = new ConcurrentLinkedQueue<>();
+        diskCache = TextureDiskCache.forManager(manager);
         for(ResourceLocation location : imageLocations) {
             if(MissingTextureAtlasSprite.getLocation().equals(location))
                 continue;
@@ -58,11 +62,9 @@ public abstract class TextureAtlasMixin {
                 try {
                     ResourceLocation fileLocation = this.getResourceLocation(location);
                     Resource resource = manager.getResource(fileLocation);
-                    NativeImage image = NativeImage.read(resource.getInputStream());
-                    AnimationMetadataSection animData = resource.getMetadata(AnimationMetadataSection.SERIALIZER);
-                    if (animData == null) {
-                        animData = AnimationMetadataSection.EMPTY;
-                    }
+                    Pair<NativeImage, AnimationMetadataSection> decoded = decode(fileLocation, resource);
+                    NativeImage image = decoded.getFirst();
+                    AnimationMetadataSection animData = decoded.getSecond();
                     Pair<Integer, Integer> dimensions = animData.getFrameSize(image.getWidth(), image.getHeight());
                     loadedImages.put(location, Pair.of(resource, image));
                     results.add(new TextureAtlasSprite.Info(location, dimensions.getFirst(), dimensions.getSecond(), animData));
@@ -78,6 +80,28 @@ public abstract class TextureAtlasMixin {
         return Collections.emptyIterator();
     }
 
+    private static AnimationMetadataSection getAnimationMetadata(Resource resource) {
+        AnimationMetadataSection animData = resource.getMetadata(AnimationMetadataSection.SERIALIZER);
+        return animData != null ? animData : AnimationMetadataSection.EMPTY;
+    }
+
+    /**
+     * Decode an image and its animation metadata, from the disk cache if possible.
+     */
+    private Pair<NativeImage, AnimationMetadataSection> decode(ResourceLocation fileLocation, Resource resource) throws IOException {
+        TextureDiskCache cache = this.diskCache;
+        if(cache != null) {
+            Pair<NativeImage, AnimationMetadataSection> cached = cache.get(fileLocation, resource.getSourceName());
+            if(cached != null)
+                return cached;
+        }
+        NativeImage image = NativeImage.read(resource.getInputStream());
+        AnimationMetadataSection animData = getAnimationMetadata(resource);
+        if(cache != null)
+            cache.put(fileLocation, resource.getSourceName(), image, animData);
+        return Pair.of(image, animData);
+    }
+
     @Inject(method = "getBasicSpriteInfos", at = @At("RETURN"))
     private void injectFastSprites(ResourceManager resourceManager, Set<ResourceLocation> spriteLocations, CallbackInfoReturnable<Collection<TextureAtlasSprite.Info>> cir) {
         if(usingFasterLoad)
@@ -93,6 +117,7 @@ public abstract class TextureAtlasMixin {
     private void clearLoadedImages(CallbackInfoReturnable<TextureAtlas.Preparations> cir) {
         loadedImages = Collections.emptyMap();
         storedResults = null;
+        diskCache = null;
     }
 
     @Inject(method = "load(Lnet/minecraft/server/packs/resources/ResourceManager;Lnet/minecraft/client/renderer/texture/TextureAtlasSprite$Info;IIIII)Lnet/minecraft/client/renderer/texture/TextureAtlasSprite;",
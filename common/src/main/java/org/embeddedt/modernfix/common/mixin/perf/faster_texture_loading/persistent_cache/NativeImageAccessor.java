@@ -0,0 +1,13 @@
+package org.embeddedt.modernfix.common.mixin.perf.faster_texture_loading.persistent_cache;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+@Mixin(NativeImage.class)
+@ClientOnlyMixin
+public interface NativeImageAccessor {
+    @Accessor("pixels")
+    long getPixels();
+}
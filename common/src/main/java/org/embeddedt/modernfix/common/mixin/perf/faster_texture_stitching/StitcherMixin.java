@@ -3,10 +3,14 @@ package org.embeddedt.modernfix.common.mixin.perf.faster_texture_stitching;
 import com.mojang.datafixers.util.Pair;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import net.minecraft.client.renderer.texture.Stitcher;
+import net.minecraft.client.renderer.texture.StitcherException;
+import net.minecraft.resources.ResourceLocation;
 import org.embeddedt.modernfix.ModernFix;
 import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.embeddedt.modernfix.duck.IExtendedStitcher;
 import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
 import org.embeddedt.modernfix.textures.StbStitcher;
+import org.embeddedt.modernfix.textures.StitchLayoutCache;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
@@ -20,7 +24,7 @@ import java.util.Set;
 
 @Mixin(Stitcher.class)
 @ClientOnlyMixin
-public class StitcherMixin {
+public class StitcherMixin implements IExtendedStitcher {
     @Shadow @Final private Set<Stitcher.Holder> texturesToBeStitched;
 
     @Shadow private int storageX;
@@ -28,7 +32,19 @@ public class StitcherMixin {
     @Shadow private int storageY;
 
     @Shadow @Final private static Comparator<Stitcher.Holder> HOLDER_COMPARATOR;
+
+    @Shadow @Final private int mipLevel;
+
+    @Shadow @Final private int maxWidth;
+
+    @Shadow @Final private int maxHeight;
     private List<StbStitcher.LoadableSpriteInfo> loadableSpriteInfos;
+    private ResourceLocation atlasLocation;
+
+    @Override
+    public void mfix$setAtlasLocation(ResourceLocation location) {
+        this.atlasLocation = location;
+    }
 
     /**
      * @author embeddedt, SuperCoder79
@@ -45,7 +61,20 @@ public class StitcherMixin {
         holderList.sort(HOLDER_COMPARATOR);
         Stitcher.Holder[] aholder = holderList.toArray(new Stitcher.Holder[0]);
 
-        Pair<Pair<Integer, Integer>, List<StbStitcher.LoadableSpriteInfo>> packingInfo = StbStitcher.packRects(aholder);
+        Pair<Pair<Integer, Integer>, List<StbStitcher.LoadableSpriteInfo>> packingInfo = null;
+        if(atlasLocation != null)
+            packingInfo = StitchLayoutCache.tryReuse(atlasLocation, mipLevel, aholder);
+        if(packingInfo == null) {
+            try {
+                packingInfo = StbStitcher.packRects(aholder, maxWidth, maxHeight);
+            } catch(StitcherException e) {
+                if(atlasLocation != null)
+                    StitchLayoutCache.forget(atlasLocation);
+                throw e;
+            }
+            if(atlasLocation != null)
+                StitchLayoutCache.remember(atlasLocation, mipLevel, packingInfo, aholder);
+        }
         this.storageX = packingInfo.getFirst().getFirst();
         this.storageY = packingInfo.getFirst().getSecond();
         this.loadableSpriteInfos = packingInfo.getSecond();
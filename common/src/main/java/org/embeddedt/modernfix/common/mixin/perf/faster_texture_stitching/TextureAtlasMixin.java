@@ -0,0 +1,28 @@
+package org.embeddedt.modernfix.common.mixin.perf.faster_texture_stitching;
+
+import net.minecraft.client.renderer.texture.Stitcher;
+import net.minecraft.client.renderer.texture.TextureAtlas;
+import net.minecraft.resources.ResourceLocation;
+import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.embeddedt.modernfix.duck.IExtendedStitcher;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Redirect;
+
+@Mixin(TextureAtlas.class)
+@ClientOnlyMixin
+public class TextureAtlasMixin {
+    @Shadow @Final private ResourceLocation location;
+
+    /**
+     * @author embeddedt
+     * @reason tell the stitcher which atlas it is building, so it can reuse that atlas' previous layout
+     */
+    @Redirect(method = "prepareToStitch", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/renderer/texture/Stitcher;stitch()V"))
+    private void stitchWithLocation(Stitcher stitcher) {
+        ((IExtendedStitcher)stitcher).mfix$setAtlasLocation(this.location);
+        stitcher.stitch();
+    }
+}
@@ -0,0 +1,72 @@
+package org.embeddedt.modernfix.common.mixin.perf.faster_texture_stitching.parallel_atlases;
+
+import com.mojang.datafixers.util.Pair;
+import net.minecraft.client.renderer.texture.TextureAtlas;
+import net.minecraft.client.resources.model.ModelBakery;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.packs.resources.ResourceManager;
+import net.minecraft.util.profiling.InactiveProfiler;
+import net.minecraft.util.profiling.ProfilerFiller;
+import org.embeddedt.modernfix.ModernFix;
+import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.Redirect;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@Mixin(ModelBakery.class)
+@ClientOnlyMixin
+public class ModelBakeryMixin {
+    @Shadow private Map<ResourceLocation, Pair<TextureAtlas, TextureAtlas.Preparations>> atlasPreparations;
+
+    private Map<ResourceLocation, CompletableFuture<TextureAtlas.Preparations>> pendingAtlasPreparations;
+
+    /**
+     * @author embeddedt
+     * @reason prepare the block, sign, chest, banner, etc. atlases concurrently instead of one after another, the
+     * preparations are collected once the loop is done
+     */
+    @Redirect(method = { "<init>", "processLoading" }, at = @At(value = "INVOKE", target = "Lnet/minecraft/client/renderer/texture/TextureAtlas;prepareToStitch(Lnet/minecraft/server/packs/resources/ResourceManager;Ljava/util/stream/Stream;Lnet/minecraft/util/profiling/ProfilerFiller;I)Lnet/minecraft/client/renderer/texture/TextureAtlas$Preparations;"))
+    private TextureAtlas.Preparations prepareAtlasAsync(TextureAtlas atlas, ResourceManager manager, Stream<ResourceLocation> sprites, ProfilerFiller profiler, int mipLevel) {
+        if(!ModernFixPlatformHooks.INSTANCE.isLoadingNormally())
+            return atlas.prepareToStitch(manager, sprites, profiler, mipLevel);
+        if(pendingAtlasPreparations == null)
+            pendingAtlasPreparations = new HashMap<>();
+        List<ResourceLocation> spriteList = sprites.collect(Collectors.toList());
+        // the profiler is not thread-safe, so the concurrent preparations are not profiled
+        pendingAtlasPreparations.put(atlas.location(), CompletableFuture.supplyAsync(() -> atlas.prepareToStitch(manager, spriteList.stream(), InactiveProfiler.INSTANCE, mipLevel), ModernFix.resourceReloadExecutor()));
+        return null;
+    }
+
+    @Inject(method = { "<init>", "processLoading" }, at = @At("RETURN"))
+    private void awaitAtlasPreparations(CallbackInfo ci) {
+        if(pendingAtlasPreparations == null)
+            return;
+        Map<ResourceLocation, CompletableFuture<TextureAtlas.Preparations>> pending = pendingAtlasPreparations;
+        pendingAtlasPreparations = null;
+        for(Map.Entry<ResourceLocation, CompletableFuture<TextureAtlas.Preparations>> entry : pending.entrySet()) {
+            Pair<TextureAtlas, TextureAtlas.Preparations> placeholder = this.atlasPreparations.get(entry.getKey());
+            TextureAtlas.Preparations preparations;
+            try {
+                preparations = entry.getValue().join();
+            } catch(CompletionException e) {
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                throw e;
+            }
+            if(placeholder != null)
+                this.atlasPreparations.put(entry.getKey(), Pair.of(placeholder.getFirst(), preparations));
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.embeddedt.modernfix.common.mixin.perf.index_structure_locations;
+
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.StructureFeatureManager;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkGenerator;
+import net.minecraft.world.level.levelgen.StructureSettings;
+import net.minecraft.world.level.levelgen.structure.templatesystem.StructureManager;
+import org.embeddedt.modernfix.duck.IStructureLocationLevel;
+import org.embeddedt.modernfix.world.GeneratorLevelLookup;
+import org.embeddedt.modernfix.world.StructureLocationIndex;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(ChunkGenerator.class)
+public abstract class ChunkGeneratorMixin {
+    @Shadow public abstract StructureSettings getSettings();
+
+    @Inject(method = "createStructures", at = @At("RETURN"))
+    private void recordGeneratedStarts(RegistryAccess registryAccess, StructureFeatureManager structureManager, ChunkAccess chunk, StructureManager templateManager, long seed, CallbackInfo ci) {
+        ServerLevel level = GeneratorLevelLookup.findLevel((ChunkGenerator)(Object)this);
+        if(level == null)
+            return;
+        StructureLocationIndex index = ((IStructureLocationLevel)level).mfix$getStructureLocationIndex();
+        if(index != null)
+            index.recordGeneratedStarts(chunk, seed, this.getSettings());
+    }
+}
@@ -0,0 +1,42 @@
+package org.embeddedt.modernfix.common.mixin.perf.index_structure_locations;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.progress.ChunkProgressListener;
+import net.minecraft.world.level.CustomSpawner;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.chunk.ChunkGenerator;
+import net.minecraft.world.level.dimension.DimensionType;
+import net.minecraft.world.level.storage.DimensionDataStorage;
+import net.minecraft.world.level.storage.LevelStorageSource;
+import net.minecraft.world.level.storage.ServerLevelData;
+import org.embeddedt.modernfix.duck.IStructureLocationLevel;
+import org.embeddedt.modernfix.world.StructureLocationIndex;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+@Mixin(ServerLevel.class)
+public abstract class ServerLevelMixin implements IStructureLocationLevel {
+    @Shadow public abstract DimensionDataStorage getDataStorage();
+
+    private StructureLocationIndex mfix$structureLocationIndex;
+
+    @Inject(method = "<init>", at = @At("RETURN"))
+    private void addStructureLocationIndex(MinecraftServer minecraftServer, Executor executor, LevelStorageSource.LevelStorageAccess arg,
+                                ServerLevelData arg2, ResourceKey<Level> arg3, DimensionType arg4, ChunkProgressListener arg5,
+                                ChunkGenerator arg6, boolean bl, long l, List<CustomSpawner> list, boolean bl2, CallbackInfo ci) {
+        mfix$structureLocationIndex = this.getDataStorage().computeIfAbsent(() -> new StructureLocationIndex((ServerLevel)(Object)this), StructureLocationIndex.getFileId(arg4));
+    }
+
+    @Override
+    public StructureLocationIndex mfix$getStructureLocationIndex() {
+        return mfix$structureLocationIndex;
+    }
+}
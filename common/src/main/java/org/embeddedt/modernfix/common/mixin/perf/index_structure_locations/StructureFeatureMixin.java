@@ -0,0 +1,29 @@
+package org.embeddedt.modernfix.common.mixin.perf.index_structure_locations;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.LevelReader;
+import net.minecraft.world.level.StructureFeatureManager;
+import net.minecraft.world.level.levelgen.feature.StructureFeature;
+import net.minecraft.world.level.levelgen.feature.configurations.StructureFeatureConfiguration;
+import org.embeddedt.modernfix.duck.IStructureLocationLevel;
+import org.embeddedt.modernfix.world.StructureLocationIndex;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+@Mixin(StructureFeature.class)
+public class StructureFeatureMixin {
+    /**
+     * Skip loading the start chunks of placement cells that are already known to hold no structure, and answer
+     * directly for cells whose structure position is known.
+     */
+    @Inject(method = "getNearestGeneratedFeature", at = @At("HEAD"), cancellable = true)
+    private void findNearestUsingIndex(LevelReader level, StructureFeatureManager structureManager, BlockPos pos, int radius, boolean skipExistingChunks, long seed, StructureFeatureConfiguration config, CallbackInfoReturnable<BlockPos> cir) {
+        if(!(level instanceof IStructureLocationLevel))
+            return;
+        StructureLocationIndex index = ((IStructureLocationLevel)level).mfix$getStructureLocationIndex();
+        if(index != null)
+            cir.setReturnValue(index.findNearest((StructureFeature<?>)(Object)this, level, structureManager, pos, radius, skipExistingChunks, seed, config));
+    }
+}
@@ -0,0 +1,20 @@
+package org.embeddedt.modernfix.common.mixin.perf.reload_listener_scheduler;
+
+import net.minecraft.server.packs.resources.PreparableReloadListener;
+import net.minecraft.server.packs.resources.SimpleReloadInstance;
+import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.embeddedt.modernfix.resources.ReloadListenerScheduler;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.ModifyVariable;
+
+import java.util.List;
+
+@Mixin(SimpleReloadInstance.class)
+@ClientOnlyMixin
+public class SimpleReloadInstanceMixin {
+    @ModifyVariable(method = "<init>", at = @At("HEAD"), argsOnly = true, ordinal = 0)
+    private static List<PreparableReloadListener> scheduleListeners(List<PreparableReloadListener> listeners) {
+        return ReloadListenerScheduler.wrap(listeners);
+    }
+}
@@ -166,8 +166,16 @@ public class ModernFixEarlyConfig {
 
     private static final ImmutableMap<String, Boolean> DEFAULT_SETTING_OVERRIDES = new DefaultSettingMapBuilder()
             .put("mixin.perf.dynamic_resources", false)
+            .put("mixin.perf.dynamic_resources.persistent_cache", false)
+            .put("mixin.perf.dynamic_resources.prebake", false)
             .putConditionally(() -> !isFabric, "mixin.perf.async_jei", false)
             .put("mixin.perf.reuse_datapacks", false)
+            .put("mixin.perf.reload_listener_scheduler", false)
+            .put("mixin.perf.dynamic_dfu.warmup", false)
+            .put("mixin.perf.index_structure_locations", false)
+            .put("mixin.perf.faster_texture_loading.persistent_cache", false)
+            .put("mixin.perf.faster_texture_stitching.parallel_atlases", false)
+            .put("mixin.perf.resourcepacks.persistent_index", false)
             .put("mixin.perf.dynamic_block_codecs", false)
             .put("mixin.feature.direct_stack_trace", false)
             .putConditionally(ModernFixPlatformHooks.INSTANCE::isDevEnv, "mixin.perf.rewrite_registry", false)
@@ -1,22 +1,66 @@
 package org.embeddedt.modernfix.dedup;
 
 import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.objects.ObjectOpenCustomHashSet;
+import org.embeddedt.modernfix.ModernFix;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Pool of canonical instances. The pool is split into independently locked shards, selected by the top bits of the
+ * item's hash, so threads deduplicating different items rarely contend on the same lock.
+ * <p></p>
+ * Pooled instances can be retained strongly (forever, until {@link #clearCache()}), or through weak or soft
+ * references, in which case instances that are no longer used anywhere else are dropped from the pool.
+ */
 public class DeduplicationCache<T> {
-    private final ObjectOpenCustomHashSet<T> pool;
+    public enum Retention {
+        STRONG,
+        WEAK,
+        SOFT;
 
-    private int attemptedInsertions = 0;
-    private int deduplicated = 0;
+        /**
+         * Parse a retention mode from a system property, defaulting to strong retention.
+         */
+        public static Retention fromProperty(String property) {
+            String value = System.getProperty(property);
+            if(value == null)
+                return STRONG;
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch(IllegalArgumentException e) {
+                ModernFix.LOGGER.error("{} must be one of strong, weak, soft", property);
+                return STRONG;
+            }
+        }
+    }
+
+    private static final int NUM_SHARDS = Math.min(256, Math.max(16, HashCommon.nextPowerOfTwo(Runtime.getRuntime().availableProcessors() * 4)));
+    private static final int SHARD_SHIFT = Integer.SIZE - Integer.numberOfTrailingZeros(NUM_SHARDS);
+
+    private final Hash.Strategy<T> strategy;
+    private final Shard<T>[] shards;
+
+    private final LongAdder attemptedInsertions = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
 
     public DeduplicationCache(Hash.Strategy<T> strategy) {
-        this.pool = new ObjectOpenCustomHashSet<>(strategy);
+        this(strategy, Retention.STRONG);
     }
 
     public DeduplicationCache() {
-        this.pool = new ObjectOpenCustomHashSet<>(new Hash.Strategy<T>() {
+        this(Retention.STRONG);
+    }
+
+    public DeduplicationCache(Retention retention) {
+        this(new Hash.Strategy<T>() {
             @Override
             public int hashCode(T o) {
                 return Objects.hashCode(o);
@@ -26,31 +70,243 @@ public class DeduplicationCache<T> {
             public boolean equals(T a, T b) {
                 return Objects.equals(a, b);
             }
-        });
+        }, retention);
     }
 
-    public synchronized T deduplicate(T item) {
-        this.attemptedInsertions++;
+    @SuppressWarnings("unchecked")
+    public DeduplicationCache(Hash.Strategy<T> strategy, Retention retention) {
+        this.strategy = strategy;
+        this.shards = new Shard[NUM_SHARDS];
+        for(int i = 0; i < NUM_SHARDS; i++) {
+            this.shards[i] = retention == Retention.STRONG ? new StrongShard<>(strategy) : new ReferenceShard<>(strategy, retention == Retention.SOFT);
+        }
+    }
 
-        T result = this.pool.addOrGet(item);
+    public T deduplicate(T item) {
+        this.attemptedInsertions.increment();
+
+        if(item == null)
+            return null;
+
+        int hash = HashCommon.mix(this.strategy.hashCode(item));
+        Shard<T> shard = this.shards[hash >>> SHARD_SHIFT];
+        T result;
+        synchronized(shard) {
+            result = shard.addOrGet(item, hash);
+        }
 
         if (result != item) {
-            this.deduplicated++;
+            this.deduplicated.increment();
         }
 
         return result;
     }
 
-    public synchronized void clearCache() {
-        this.attemptedInsertions = 0;
-        this.deduplicated = 0;
+    public void clearCache() {
+        this.attemptedInsertions.reset();
+        this.deduplicated.reset();
 
-        this.pool.clear();
+        for(Shard<T> shard : this.shards) {
+            synchronized(shard) {
+                shard.clear();
+            }
+        }
+    }
+
+    private int pooledCount() {
+        int size = 0;
+        for(Shard<T> shard : this.shards) {
+            synchronized(shard) {
+                size += shard.size();
+            }
+        }
+        return size;
     }
 
     @Override
-    public synchronized String toString() {
+    public String toString() {
         return String.format("DeduplicationCache ( %d/%d de-duplicated, %d pooled )",
-                this.deduplicated, this.attemptedInsertions, this.pool.size());
+                this.deduplicated.sum(), this.attemptedInsertions.sum(), this.pooledCount());
+    }
+
+    /**
+     * One part of the pool. All methods are called with the shard's monitor held.
+     */
+    private interface Shard<T> {
+        T addOrGet(T item, int hash);
+        void clear();
+        int size();
+    }
+
+    private static class StrongShard<T> implements Shard<T> {
+        private final ObjectOpenCustomHashSet<T> pool;
+
+        StrongShard(Hash.Strategy<T> strategy) {
+            this.pool = new ObjectOpenCustomHashSet<>(strategy);
+        }
+
+        @Override
+        public T addOrGet(T item, int hash) {
+            return this.pool.addOrGet(item);
+        }
+
+        @Override
+        public void clear() {
+            this.pool.clear();
+        }
+
+        @Override
+        public int size() {
+            return this.pool.size();
+        }
+    }
+
+    private interface RefEntry<T> {
+        T get();
+        int hash();
+        RefEntry<T> next();
+        void setNext(RefEntry<T> next);
+    }
+
+    private static final class WeakEntry<T> extends WeakReference<T> implements RefEntry<T> {
+        private final int hash;
+        private RefEntry<T> next;
+
+        WeakEntry(T referent, ReferenceQueue<? super T> queue, int hash, RefEntry<T> next) {
+            super(referent, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+
+        @Override
+        public int hash() {
+            return hash;
+        }
+
+        @Override
+        public RefEntry<T> next() {
+            return next;
+        }
+
+        @Override
+        public void setNext(RefEntry<T> next) {
+            this.next = next;
+        }
+    }
+
+    private static final class SoftEntry<T> extends SoftReference<T> implements RefEntry<T> {
+        private final int hash;
+        private RefEntry<T> next;
+
+        SoftEntry(T referent, ReferenceQueue<? super T> queue, int hash, RefEntry<T> next) {
+            super(referent, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+
+        @Override
+        public int hash() {
+            return hash;
+        }
+
+        @Override
+        public RefEntry<T> next() {
+            return next;
+        }
+
+        @Override
+        public void setNext(RefEntry<T> next) {
+            this.next = next;
+        }
+    }
+
+    /**
+     * Chained hash table of weak or soft references. Entries whose referent was collected are unlinked when their
+     * reference is dequeued, on the next insertion into the shard.
+     */
+    private static class ReferenceShard<T> implements Shard<T> {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final Hash.Strategy<T> strategy;
+        private final boolean soft;
+        private final ReferenceQueue<T> queue = new ReferenceQueue<>();
+        private RefEntry<T>[] table;
+        private int size;
+
+        ReferenceShard(Hash.Strategy<T> strategy, boolean soft) {
+            this.strategy = strategy;
+            this.soft = soft;
+            this.table = newTable(INITIAL_CAPACITY);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> RefEntry<T>[] newTable(int capacity) {
+            return new RefEntry[capacity];
+        }
+
+        @Override
+        public T addOrGet(T item, int hash) {
+            expungeCollected();
+            int idx = hash & (table.length - 1);
+            for(RefEntry<T> entry = table[idx]; entry != null; entry = entry.next()) {
+                if(entry.hash() == hash) {
+                    T existing = entry.get();
+                    if(existing != null && strategy.equals(existing, item))
+                        return existing;
+                }
+            }
+            table[idx] = soft ? new SoftEntry<>(item, queue, hash, table[idx]) : new WeakEntry<>(item, queue, hash, table[idx]);
+            if(++size > (table.length * 3 / 4))
+                resize();
+            return item;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void expungeCollected() {
+            Reference<? extends T> ref;
+            while((ref = queue.poll()) != null) {
+                RefEntry<T> dead = (RefEntry<T>)ref;
+                int idx = dead.hash() & (table.length - 1);
+                RefEntry<T> prev = null;
+                for(RefEntry<T> entry = table[idx]; entry != null; prev = entry, entry = entry.next()) {
+                    if(entry == dead) {
+                        if(prev == null)
+                            table[idx] = entry.next();
+                        else
+                            prev.setNext(entry.next());
+                        size--;
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void resize() {
+            RefEntry<T>[] newTable = newTable(table.length * 2);
+            for(RefEntry<T> head : table) {
+                RefEntry<T> entry = head;
+                while(entry != null) {
+                    RefEntry<T> next = entry.next();
+                    int idx = entry.hash() & (newTable.length - 1);
+                    entry.setNext(newTable[idx]);
+                    newTable[idx] = entry;
+                    entry = next;
+                }
+            }
+            table = newTable;
+        }
+
+        @Override
+        public void clear() {
+            table = newTable(INITIAL_CAPACITY);
+            size = 0;
+            // references from the old table may still be enqueued later, they are simply not found when expunged
+        }
+
+        @Override
+        public int size() {
+            expungeCollected();
+            return size;
+        }
     }
 }
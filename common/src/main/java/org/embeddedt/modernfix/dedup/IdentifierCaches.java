@@ -4,9 +4,14 @@ package org.embeddedt.modernfix.dedup;
 import org.embeddedt.modernfix.ModernFix;
 
 public class IdentifierCaches {
-    public static final DeduplicationCache<String> NAMESPACES = new DeduplicationCache<>();
-    public static final DeduplicationCache<String> PATH = new DeduplicationCache<>();
-    public static final DeduplicationCache<String> PROPERTY = new DeduplicationCache<>();
+    /**
+     * Set to weak or soft to let strings that are no longer part of any live identifier leave the pool.
+     */
+    private static final DeduplicationCache.Retention RETENTION = DeduplicationCache.Retention.fromProperty("modernfix.identifierDedupRetention");
+
+    public static final DeduplicationCache<String> NAMESPACES = new DeduplicationCache<>(RETENTION);
+    public static final DeduplicationCache<String> PATH = new DeduplicationCache<>(RETENTION);
+    public static final DeduplicationCache<String> PROPERTY = new DeduplicationCache<>(RETENTION);
 
     public static void printDebug() {
         ModernFix.LOGGER.info("[[[ Identifier de-duplication statistics ]]]");
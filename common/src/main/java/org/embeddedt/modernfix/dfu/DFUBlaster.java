@@ -9,6 +9,8 @@ import com.mojang.datafixers.types.Type;
 import com.mojang.datafixers.util.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 import org.embeddedt.modernfix.ModernFix;
+import org.embeddedt.modernfix.core.ModernFixMixinPlugin;
+import org.embeddedt.modernfix.core.config.Option;
 import sun.misc.Unsafe;
 
 import java.lang.reflect.Field;
@@ -17,12 +19,22 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.IntFunction;
 
 public class DFUBlaster {
+    /**
+     * Warmed up rewrites are only useful if they survive until a world is loaded, so keep entries much longer when
+     * warmup is enabled.
+     */
+    private static final long EXPIRY_MINUTES = isWarmupEnabled() ? 30 : 3;
     private static final Cache<Pair<IntFunction<RewriteResult<?, ?>>, Integer>, RewriteResult<?, ?>> hmapApplyCache = CacheBuilder.newBuilder()
-            .expireAfterAccess(3, TimeUnit.MINUTES)
+            .expireAfterAccess(EXPIRY_MINUTES, TimeUnit.MINUTES)
             .build();
     private static final Cache<Triple<Type<?>, TypeRewriteRule, PointFreeRule>, Optional<? extends RewriteResult<?, ?>>> rewriteCache = CacheBuilder.newBuilder()
-            .expireAfterAccess(3, TimeUnit.MINUTES)
+            .expireAfterAccess(EXPIRY_MINUTES, TimeUnit.MINUTES)
             .build();
+    private static boolean isWarmupEnabled() {
+        Option warmup = ModernFixMixinPlugin.instance.config.getOptionMap().get("mixin.perf.dynamic_dfu.warmup");
+        return warmup != null && warmup.isEnabled() && !warmup.isEffectivelyDisabledByParent();
+    }
+
     public static void blastMaps() {
         try {
             Class<?> FOLD_CLASS = Class.forName("com.mojang.datafixers.functions.Fold");
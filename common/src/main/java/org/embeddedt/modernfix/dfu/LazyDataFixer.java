@@ -1,23 +1,75 @@
 package org.embeddedt.modernfix.dfu;
 
 import com.mojang.datafixers.DSL;
+import com.mojang.datafixers.DataFixUtils;
 import com.mojang.datafixers.DataFixer;
 import com.mojang.datafixers.schemas.Schema;
 import com.mojang.serialization.Dynamic;
+import it.unimi.dsi.fastutil.ints.Int2ObjectSortedMap;
+import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
+import it.unimi.dsi.fastutil.ints.IntSortedSet;
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.util.datafix.fixes.References;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
 
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class LazyDataFixer implements DataFixer {
     private static final Logger LOGGER = LogManager.getLogger("ModernFix");
     private DataFixer backingDataFixer;
     private final Supplier<DataFixer> dfuSupplier;
 
+    /**
+     * Upgrades that warmup always runs: the common data types, from 1.12.2 and 1.15.2.
+     */
+    private static final DSL.TypeReference[] WARMUP_TYPES = { References.CHUNK, References.ENTITY, References.BLOCK_ENTITY, References.STRUCTURE };
+    private static final int[] WARMUP_VERSIONS = { 1343, 2230 };
+    private static final int MAX_REMEMBERED_UPGRADES = 64;
+    private static final Path WARMUP_FILE = ModernFixPlatformHooks.INSTANCE.getGameDirectory().resolve("modernfix").resolve("dfuWarmup.txt");
+
+    /**
+     * Source versions of the upgrades performed during this session, by type name, so the next warmup can prepare
+     * them too.
+     */
+    private final Map<String, IntSet> performedUpgrades = new ConcurrentHashMap<>();
+    private final AtomicInteger performedUpgradeCount = new AtomicInteger();
+    private volatile boolean warmupStarted;
+
+    private static final Path FIX_VERSIONS_FILE = ModernFixPlatformHooks.INSTANCE.getGameDirectory().resolve("modernfix").resolve("dfuFixVersions.txt");
+    /**
+     * Sorted data versions that have a schema or fixer, as learned from the real DFU in an earlier session, or null
+     * if they are not known yet.
+     */
+    private volatile int[] fixVersions;
+
     public LazyDataFixer(Supplier<DataFixer> dfuSupplier) {
         LOGGER.info("Bypassed Mojang DFU");
         this.backingDataFixer = null;
         this.dfuSupplier = dfuSupplier;
+        this.fixVersions = loadFixVersions();
     }
 
     private DataFixer getDataFixer() {
@@ -26,6 +78,7 @@ public class LazyDataFixer implements DataFixer {
                 LOGGER.info("Instantiating Mojang DFU");
                 DFUBlaster.blastMaps();
                 backingDataFixer = dfuSupplier.get();
+                learnFixVersions(backingDataFixer);
             }
         }
         return backingDataFixer;
@@ -33,13 +86,168 @@ public class LazyDataFixer implements DataFixer {
 
     @Override
     public <T> Dynamic<T> update(DSL.TypeReference type, Dynamic<T> input, int version, int newVersion) {
-        if(version >= newVersion)
+        if(version >= newVersion || !crossesFix(version, newVersion))
             return input;
+        if(performedUpgradeCount.get() < MAX_REMEMBERED_UPGRADES) {
+            IntSet versions = performedUpgrades.get(type.typeName());
+            if(versions == null)
+                versions = performedUpgrades.computeIfAbsent(type.typeName(), k -> IntSets.synchronize(new IntOpenHashSet()));
+            if(versions.add(version))
+                performedUpgradeCount.incrementAndGet();
+        }
         return getDataFixer().update(type, input, version, newVersion);
     }
 
+    /**
+     * Check whether upgrading between the two versions could do anything. The range is inclusive of the old version,
+     * as DFU also applies fixers registered under a sub-version of it.
+     */
+    private boolean crossesFix(int version, int newVersion) {
+        int[] versions = fixVersions;
+        if(versions == null)
+            return true;
+        int idx = Arrays.binarySearch(versions, version);
+        if(idx >= 0)
+            return true;
+        int next = -idx - 1;
+        return next < versions.length && versions[next] <= newVersion;
+    }
+
+    private static int[] loadFixVersions() {
+        if(!Files.isRegularFile(FIX_VERSIONS_FILE))
+            return null;
+        try {
+            List<String> lines = Files.readAllLines(FIX_VERSIONS_FILE, StandardCharsets.UTF_8);
+            // the table is only valid for the game version that produced it
+            if(lines.size() != 2 || Integer.parseInt(lines.get(0).trim()) != SharedConstants.getCurrentVersion().getWorldVersion())
+                return null;
+            int[] versions = Arrays.stream(lines.get(1).split(",")).map(String::trim).mapToInt(Integer::parseInt).sorted().toArray();
+            return versions.length > 0 ? versions : null;
+        } catch(IOException | RuntimeException e) {
+            LOGGER.warn("Could not read DFU fix versions", e);
+            return null;
+        }
+    }
+
+    /**
+     * Record which data versions the real DFU has schemas and fixers for, so that later sessions can skip building it
+     * for upgrades that would not change anything.
+     */
+    private void learnFixVersions(DataFixer fixer) {
+        int[] versions;
+        try {
+            IntSortedSet keys = new IntAVLTreeSet();
+            Field schemasField = fixer.getClass().getDeclaredField("schemas");
+            schemasField.setAccessible(true);
+            keys.addAll(((Int2ObjectSortedMap<?>)schemasField.get(fixer)).keySet());
+            Field fixerVersionsField = fixer.getClass().getDeclaredField("fixerVersions");
+            fixerVersionsField.setAccessible(true);
+            keys.addAll((IntSortedSet)fixerVersionsField.get(fixer));
+            versions = keys.stream().mapToInt(DataFixUtils::getVersion).distinct().sorted().toArray();
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("Could not read DFU fix versions, updates will always build DFU", e);
+            return;
+        }
+        if(Arrays.equals(versions, fixVersions))
+            return;
+        fixVersions = versions;
+        try {
+            Files.createDirectories(FIX_VERSIONS_FILE.getParent());
+            Files.write(FIX_VERSIONS_FILE, Arrays.asList(
+                    String.valueOf(SharedConstants.getCurrentVersion().getWorldVersion()),
+                    Arrays.stream(versions).mapToObj(String::valueOf).collect(Collectors.joining(","))
+            ), StandardCharsets.UTF_8);
+        } catch(IOException e) {
+            LOGGER.warn("Could not save DFU fix versions", e);
+        }
+    }
+
     @Override
     public Schema getSchema(int key) {
         return getDataFixer().getSchema(key);
     }
+
+    /**
+     * Build DFU and the rewrite rules for common upgrades on a low priority background thread, so that the first
+     * world needing an upgrade does not stall on them. The upgrades done in previous sessions are prepared as well.
+     */
+    public void startWarmup() {
+        if(warmupStarted)
+            return;
+        warmupStarted = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveWarmupTargets, "ModernFix DFU warmup save"));
+        Thread thread = new Thread(this::warmup, "ModernFix DFU warmup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void warmup() {
+        long startTime = System.nanoTime();
+        DataFixer fixer = getDataFixer();
+        int currentVersion = SharedConstants.getCurrentVersion().getWorldVersion();
+        Set<String> targets = new LinkedHashSet<>();
+        for(DSL.TypeReference type : WARMUP_TYPES) {
+            for(int version : WARMUP_VERSIONS)
+                targets.add(type.typeName() + "@" + version);
+        }
+        targets.addAll(loadWarmupTargets());
+        int warmed = 0;
+        for(String target : targets) {
+            int separator = target.lastIndexOf('@');
+            if(separator <= 0)
+                continue;
+            String typeName = target.substring(0, separator);
+            int version;
+            try {
+                version = Integer.parseInt(target.substring(separator + 1));
+            } catch(NumberFormatException e) {
+                continue;
+            }
+            if(version >= currentVersion)
+                continue;
+            try {
+                // an empty tag is enough to build the rule and the optimized type rewrite for this version range
+                fixer.update(() -> typeName, new Dynamic<>(NbtOps.INSTANCE, new CompoundTag()), version, currentVersion);
+                warmed++;
+            } catch(RuntimeException e) {
+                LOGGER.debug("Could not warm up DFU for {}", target, e);
+            }
+        }
+        LOGGER.info("Warmed up DFU for {} upgrades in {} ms", warmed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    private static List<String> loadWarmupTargets() {
+        if(!Files.isRegularFile(WARMUP_FILE))
+            return new ArrayList<>();
+        try {
+            return Files.readAllLines(WARMUP_FILE, StandardCharsets.UTF_8);
+        } catch(IOException e) {
+            LOGGER.warn("Could not read DFU warmup list", e);
+            return new ArrayList<>();
+        }
+    }
+
+    private void saveWarmupTargets() {
+        if(performedUpgrades.isEmpty())
+            return;
+        Set<String> targets = new LinkedHashSet<>();
+        performedUpgrades.forEach((typeName, versions) -> {
+            synchronized(versions) {
+                for(IntIterator it = versions.iterator(); it.hasNext();)
+                    targets.add(typeName + "@" + it.nextInt());
+            }
+        });
+        for(String previous : loadWarmupTargets()) {
+            if(targets.size() >= MAX_REMEMBERED_UPGRADES)
+                break;
+            targets.add(previous);
+        }
+        try {
+            Files.createDirectories(WARMUP_FILE.getParent());
+            Files.write(WARMUP_FILE, targets, StandardCharsets.UTF_8);
+        } catch(IOException e) {
+            LOGGER.warn("Could not save DFU warmup list", e);
+        }
+    }
 }
@@ -0,0 +1,7 @@
+package org.embeddedt.modernfix.duck;
+
+import net.minecraft.resources.ResourceLocation;
+
+public interface IExtendedStitcher {
+    void mfix$setAtlasLocation(ResourceLocation location);
+}
@@ -0,0 +1,5 @@
+package org.embeddedt.modernfix.duck;
+
+public interface ISimpleBakedModel {
+    int mfix$getQuadCount();
+}
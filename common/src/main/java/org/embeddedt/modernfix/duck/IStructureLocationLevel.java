@@ -0,0 +1,7 @@
+package org.embeddedt.modernfix.duck;
+
+import org.embeddedt.modernfix.world.StructureLocationIndex;
+
+public interface IStructureLocationLevel {
+    StructureLocationIndex mfix$getStructureLocationIndex();
+}
@@ -0,0 +1,333 @@
+package org.embeddedt.modernfix.dynamicresources;
+
+import com.mojang.math.Transformation;
+import com.mojang.math.Vector3f;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.minecraft.client.renderer.block.model.BakedQuad;
+import net.minecraft.client.renderer.block.model.ItemOverrides;
+import net.minecraft.client.renderer.block.model.ItemTransform;
+import net.minecraft.client.renderer.block.model.ItemTransforms;
+import net.minecraft.client.renderer.texture.MissingTextureAtlasSprite;
+import net.minecraft.client.renderer.texture.TextureAtlasSprite;
+import net.minecraft.client.resources.model.BakedModel;
+import net.minecraft.client.resources.model.Material;
+import net.minecraft.client.resources.model.SimpleBakedModel;
+import net.minecraft.core.Direction;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.packs.resources.ResourceManager;
+import org.embeddedt.modernfix.ModernFix;
+import org.embeddedt.modernfix.core.ModernFixMixinPlugin;
+import org.embeddedt.modernfix.resources.PersistentRecordStore;
+import org.embeddedt.modernfix.resources.ResourcesFingerprint;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Persists the quads of simple baked models between launches, so that a model evicted from the dynamic resources
+ * cache (or not yet baked in this session) can be restored without parsing its JSON and running it through
+ * FaceBakery again.
+ * <p></p>
+ * Only plain {@link SimpleBakedModel}s are stored, as anything else may carry behavior that cannot be serialized.
+ * UVs are stored relative to their sprite, so the cache stays valid when the atlas is stitched differently. The
+ * whole cache is tied to a fingerprint of the mod list and resource packs and is thrown away when that changes.
+ * <p></p>
+ * Records are kept in a {@link PersistentRecordStore}, limited to 256 MB by default (configurable with the
+ * {@code modernfix.bakedModelCacheMaxMb} property).
+ */
+public class BakedModelDiskCache {
+    private static final int MAGIC = 0x4d46424d; /* MFBM */
+    private static final int VERSION = 2;
+    private static final int FLUSH_THRESHOLD = 256 * 1024;
+    private static final int VERTEX_INTS = 32;
+
+    private static final boolean ENABLED = ModernFixMixinPlugin.instance.isOptionEnabled("perf.dynamic_resources.persistent_cache.BakedModelDiskCache");
+    private static final PersistentRecordStore.Slot STORE = new PersistentRecordStore.Slot("bakedModelCache", MAGIC, VERSION, getConfiguredMaxSize(), FLUSH_THRESHOLD);
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final ItemTransforms.TransformType[] VANILLA_TRANSFORM_TYPES = {
+            ItemTransforms.TransformType.THIRD_PERSON_LEFT_HAND,
+            ItemTransforms.TransformType.THIRD_PERSON_RIGHT_HAND,
+            ItemTransforms.TransformType.FIRST_PERSON_LEFT_HAND,
+            ItemTransforms.TransformType.FIRST_PERSON_RIGHT_HAND,
+            ItemTransforms.TransformType.HEAD,
+            ItemTransforms.TransformType.GUI,
+            ItemTransforms.TransformType.GROUND,
+            ItemTransforms.TransformType.FIXED
+    };
+
+    private final PersistentRecordStore store;
+
+    private BakedModelDiskCache(PersistentRecordStore store) {
+        this.store = store;
+    }
+
+    private static long getConfiguredMaxSize() {
+        String requested = System.getProperty("modernfix.bakedModelCacheMaxMb");
+        if(requested != null) {
+            try {
+                long mb = Long.parseLong(requested);
+                if(mb > 0)
+                    return mb * 1024 * 1024;
+            } catch(NumberFormatException e) {
+                ModernFix.LOGGER.error("modernfix.bakedModelCacheMaxMb is not a number");
+            }
+        }
+        return 256L * 1024 * 1024;
+    }
+
+    /**
+     * Open the cache for the given set of resources, flushing the previously open one if they changed.
+     * @return the cache, or null if it is disabled or could not be opened
+     */
+    @Nullable
+    public static BakedModelDiskCache open(ResourceManager manager) {
+        if(!ENABLED)
+            return null;
+        OptionalLong fingerprint = ResourcesFingerprint.compute(manager);
+        if(!fingerprint.isPresent())
+            return null;
+        PersistentRecordStore store = STORE.open(fingerprint.getAsLong());
+        return store != null ? new BakedModelDiskCache(store) : null;
+    }
+
+    private static String makeKey(ResourceLocation location, Transformation transformation, boolean uvLock) {
+        StringBuilder key = new StringBuilder(location.toString()).append('@');
+        if(transformation.equals(Transformation.identity())) {
+            key.append('i');
+        } else {
+            FloatBuffer matrix = FloatBuffer.allocate(16);
+            transformation.getMatrix().store(matrix);
+            for(int i = 0; i < 16; i++) {
+                float value = matrix.get(i);
+                // -0.0 and 0.0 are the same transform, floatToIntBits already merges the NaNs
+                if(value == 0.0f)
+                    value = 0.0f;
+                if(i > 0)
+                    key.append(',');
+                key.append(Integer.toHexString(Float.floatToIntBits(value)));
+            }
+        }
+        if(uvLock)
+            key.append("/u");
+        return key.toString();
+    }
+
+    /**
+     * Restore a previously stored model.
+     * @return the model, or null if it is not stored or one of its sprites no longer exists
+     */
+    @Nullable
+    public BakedModel get(ResourceLocation location, Transformation transformation, boolean uvLock, Function<Material, TextureAtlasSprite> textureGetter) {
+        ByteBuffer payload = store.get(makeKey(location, transformation, uvLock));
+        if(payload == null)
+            return null;
+        try {
+            return readModel(payload, textureGetter);
+        } catch(RuntimeException e) {
+            ModernFix.LOGGER.warn("Failed to read cached model {}", location, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store a freshly baked model, if it is a kind of model that can be restored.
+     */
+    public void put(ResourceLocation location, Transformation transformation, boolean uvLock, BakedModel model) {
+        if(store.isFull() || !canStore(model))
+            return;
+        String key = makeKey(location, transformation, uvLock);
+        if(store.contains(key))
+            return;
+        try {
+            store.put(key, 4096, out -> writeModel(out, model));
+        } catch(RuntimeException e) {
+            ModernFix.LOGGER.warn("Failed to serialize model {}", location, e);
+        }
+    }
+
+    private static boolean canStore(BakedModel model) {
+        if(model == null || model.getClass() != SimpleBakedModel.class || model.getOverrides() != ItemOverrides.EMPTY)
+            return false;
+        ItemTransforms transforms = model.getTransforms();
+        if(transforms == null || transforms.getClass() != ItemTransforms.class)
+            return false;
+        // platforms may attach extra transforms, which we have no way of restoring
+        for(ItemTransforms.TransformType type : ItemTransforms.TransformType.values()) {
+            ItemTransform expected = getVanillaTransform(transforms, type);
+            if(transforms.getTransform(type) != (expected != null ? expected : ItemTransform.NO_TRANSFORM))
+                return false;
+        }
+        Random random = new Random(42);
+        for(int i = 0; i <= DIRECTIONS.length; i++) {
+            List<BakedQuad> quads = model.getQuads(null, i < DIRECTIONS.length ? DIRECTIONS[i] : null, random);
+            for(BakedQuad quad : quads) {
+                if(quad.getClass() != BakedQuad.class || quad.getVertices().length != VERTEX_INTS || quad.getSprite() == null)
+                    return false;
+            }
+        }
+        return model.getParticleIcon() != null;
+    }
+
+    @Nullable
+    private static ItemTransform getVanillaTransform(ItemTransforms transforms, ItemTransforms.TransformType type) {
+        switch(type) {
+            case THIRD_PERSON_LEFT_HAND:
+                return transforms.thirdPersonLeftHand;
+            case THIRD_PERSON_RIGHT_HAND:
+                return transforms.thirdPersonRightHand;
+            case FIRST_PERSON_LEFT_HAND:
+                return transforms.firstPersonLeftHand;
+            case FIRST_PERSON_RIGHT_HAND:
+                return transforms.firstPersonRightHand;
+            case HEAD:
+                return transforms.head;
+            case GUI:
+                return transforms.gui;
+            case GROUND:
+                return transforms.ground;
+            case FIXED:
+                return transforms.fixed;
+            default:
+                return null;
+        }
+    }
+
+    private static void writeModel(DataOutputStream out, BakedModel model) throws IOException {
+        out.writeByte((model.useAmbientOcclusion() ? 1 : 0) | (model.usesBlockLight() ? 2 : 0) | (model.isGui3d() ? 4 : 0));
+        Object2IntOpenHashMap<TextureAtlasSprite> spriteIds = new Object2IntOpenHashMap<>();
+        List<TextureAtlasSprite> sprites = new ObjectArrayList<>();
+        Random random = new Random(42);
+        List<List<BakedQuad>> faces = new ArrayList<>(DIRECTIONS.length + 1);
+        for(int i = 0; i <= DIRECTIONS.length; i++) {
+            List<BakedQuad> quads = model.getQuads(null, i < DIRECTIONS.length ? DIRECTIONS[i] : null, random);
+            faces.add(quads);
+            for(BakedQuad quad : quads) {
+                if(!spriteIds.containsKey(quad.getSprite())) {
+                    spriteIds.put(quad.getSprite(), sprites.size());
+                    sprites.add(quad.getSprite());
+                }
+            }
+        }
+        if(!spriteIds.containsKey(model.getParticleIcon())) {
+            spriteIds.put(model.getParticleIcon(), sprites.size());
+            sprites.add(model.getParticleIcon());
+        }
+        out.writeShort(sprites.size());
+        for(TextureAtlasSprite sprite : sprites) {
+            out.writeUTF(sprite.atlas().location().toString());
+            out.writeUTF(sprite.getName().toString());
+        }
+        out.writeShort(spriteIds.getInt(model.getParticleIcon()));
+        ItemTransforms transforms = model.getTransforms();
+        for(ItemTransforms.TransformType type : VANILLA_TRANSFORM_TYPES) {
+            ItemTransform transform = getVanillaTransform(transforms, type);
+            writeVector(out, transform.rotation);
+            writeVector(out, transform.translation);
+            writeVector(out, transform.scale);
+        }
+        for(List<BakedQuad> quads : faces) {
+            out.writeInt(quads.size());
+            for(BakedQuad quad : quads) {
+                TextureAtlasSprite sprite = quad.getSprite();
+                out.writeShort(spriteIds.getInt(sprite));
+                out.writeInt(quad.getTintIndex());
+                out.writeByte(quad.getDirection() == null ? -1 : quad.getDirection().ordinal());
+                out.writeBoolean(quad.isShade());
+                int[] vertices = quad.getVertices();
+                int stride = vertices.length / 4;
+                for(int i = 0; i < vertices.length; i++) {
+                    int posInVertex = i % stride;
+                    if(posInVertex == 4)
+                        out.writeFloat(toRelative(Float.intBitsToFloat(vertices[i]), sprite.getU0(), sprite.getU1()));
+                    else if(posInVertex == 5)
+                        out.writeFloat(toRelative(Float.intBitsToFloat(vertices[i]), sprite.getV0(), sprite.getV1()));
+                    else
+                        out.writeInt(vertices[i]);
+                }
+            }
+        }
+    }
+
+    private static void writeVector(DataOutputStream out, Vector3f vector) throws IOException {
+        out.writeFloat(vector.x());
+        out.writeFloat(vector.y());
+        out.writeFloat(vector.z());
+    }
+
+    private static Vector3f readVector(ByteBuffer buf) {
+        return new Vector3f(buf.getFloat(), buf.getFloat(), buf.getFloat());
+    }
+
+    private static float toRelative(float coord, float min, float max) {
+        return max == min ? coord : (coord - min) / (max - min);
+    }
+
+    private static float fromRelative(float coord, float min, float max) {
+        return max == min ? coord : min + coord * (max - min);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        /* matches the modified UTF-8 of writeUTF for the ASCII resource locations we store */
+        int length = buf.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    private static BakedModel readModel(ByteBuffer buf, Function<Material, TextureAtlasSprite> textureGetter) {
+        int flags = buf.get();
+        TextureAtlasSprite[] sprites = new TextureAtlasSprite[buf.getShort() & 0xFFFF];
+        for(int i = 0; i < sprites.length; i++) {
+            ResourceLocation atlas = new ResourceLocation(readString(buf));
+            ResourceLocation name = new ResourceLocation(readString(buf));
+            TextureAtlasSprite sprite = textureGetter.apply(new Material(atlas, name));
+            // the texture was removed, so the model needs to be baked normally to report it
+            if(sprite == null || (sprite.getName().equals(MissingTextureAtlasSprite.getLocation()) && !name.equals(MissingTextureAtlasSprite.getLocation())))
+                return null;
+            sprites[i] = sprite;
+        }
+        TextureAtlasSprite particle = sprites[buf.getShort() & 0xFFFF];
+        ItemTransform[] transforms = new ItemTransform[VANILLA_TRANSFORM_TYPES.length];
+        for(int i = 0; i < transforms.length; i++) {
+            transforms[i] = new ItemTransform(readVector(buf), readVector(buf), readVector(buf));
+        }
+        List<BakedQuad> unculledFaces = null;
+        Map<Direction, List<BakedQuad>> culledFaces = new EnumMap<>(Direction.class);
+        for(int i = 0; i <= DIRECTIONS.length; i++) {
+            int count = buf.getInt();
+            List<BakedQuad> quads = new ArrayList<>(count);
+            for(int q = 0; q < count; q++) {
+                TextureAtlasSprite sprite = sprites[buf.getShort() & 0xFFFF];
+                int tintIndex = buf.getInt();
+                int dirIdx = buf.get();
+                boolean shade = buf.get() != 0;
+                int[] vertices = new int[VERTEX_INTS];
+                int stride = VERTEX_INTS / 4;
+                for(int v = 0; v < VERTEX_INTS; v++) {
+                    int posInVertex = v % stride;
+                    if(posInVertex == 4)
+                        vertices[v] = Float.floatToRawIntBits(fromRelative(buf.getFloat(), sprite.getU0(), sprite.getU1()));
+                    else if(posInVertex == 5)
+                        vertices[v] = Float.floatToRawIntBits(fromRelative(buf.getFloat(), sprite.getV0(), sprite.getV1()));
+                    else
+                        vertices[v] = buf.getInt();
+                }
+                quads.add(new BakedQuad(vertices, tintIndex, dirIdx < 0 ? null : DIRECTIONS[dirIdx], sprite, shade));
+            }
+            if(i < DIRECTIONS.length)
+                culledFaces.put(DIRECTIONS[i], quads);
+            else
+                unculledFaces = quads;
+        }
+        ItemTransforms itemTransforms = new ItemTransforms(transforms[0], transforms[1], transforms[2], transforms[3], transforms[4], transforms[5], transforms[6], transforms[7]);
+        return new SimpleBakedModel(unculledFaces, culledFaces, (flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0, particle, itemTransforms, ItemOverrides.EMPTY);
+    }
+}
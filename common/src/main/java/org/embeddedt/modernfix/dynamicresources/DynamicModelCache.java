@@ -1,79 +1,280 @@
 package org.embeddedt.modernfix.dynamicresources;
 
 import it.unimi.dsi.fastutil.Function;
-import it.unimi.dsi.fastutil.objects.Reference2ReferenceLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.minecraft.client.resources.model.BakedModel;
+import net.minecraft.client.resources.model.SimpleBakedModel;
+import org.embeddedt.modernfix.ModernFix;
+import org.embeddedt.modernfix.duck.ISimpleBakedModel;
 
-import java.util.concurrent.locks.StampedLock;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The Mojang Triple-based baked cache system is too slow to be hitting on every model retrieval, so
  * we need a fast, concurrency-safe wrapper on top.
+ * <p></p>
+ * Reads never lock. The cache is bounded by the estimated memory used by the quads of the models it holds
+ * (configurable with the {@code modernfix.dynamicModelCacheSizeKb} property), rather than by entry count. Many keys
+ * often share one model, whose quads are then only counted once. Once the budget is exceeded, the least recently
+ * used entries are evicted until the cache is back under 3/4 of it.
+ * <p></p>
+ * Entries are kept in an access-ordered map for eviction. Hits are queued and applied to it in batches, so that
+ * reads do not contend on its lock. Requests, loads and evictions are reported to {@link DynamicResourceMetrics}.
  */
 public class DynamicModelCache<K> {
-    private final Reference2ReferenceLinkedOpenHashMap<K, BakedModel> cache = new Reference2ReferenceLinkedOpenHashMap<>();
-    private final StampedLock lock = new StampedLock();
+    /**
+     * Default budget in bytes. Roughly enough to hold every block model of a 4000-blockstate modpack.
+     */
+    private static final long DEFAULT_MAX_WEIGHT = 16 * 1024 * 1024;
+    private static final long CONFIGURED_MAX_WEIGHT = getConfiguredMaxWeight();
+
+    /**
+     * Approximate size of a cache entry and its map nodes.
+     */
+    static final int ENTRY_OVERHEAD = 128;
+    /**
+     * Approximate size of a vanilla BakedQuad (object header, fields, and a 32-int vertex array).
+     */
+    private static final int QUAD_SIZE = 16 + 24 + 16 + 32 * 4;
+    /**
+     * Assumed number of quads for models whose quads are not stored in plain lists, that of a full cube.
+     */
+    private static final int DEFAULT_QUAD_COUNT = 6;
+    /**
+     * Number of queued hits after which a reader applies them to the access order.
+     */
+    private static final int ACCESS_DRAIN_THRESHOLD = 64;
+
+    private final ConcurrentHashMap<K, Entry<K>> cache = new ConcurrentHashMap<>();
     private final Function<K, BakedModel> modelRetriever;
     private final boolean allowNulls;
+    private final long maxWeight;
+    private final AtomicLong totalWeight = new AtomicLong();
+    /**
+     * Guards the access order and the model reference counts. Every insertion and removal happens under it.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * The entries of the cache, least recently used first.
+     */
+    private final LinkedHashMap<K, Entry<K>> accessOrder = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Number of entries holding each model, so that the quads of a model are only counted while any entry holds it.
+     */
+    private final Reference2IntOpenHashMap<BakedModel> modelReferences = new Reference2IntOpenHashMap<>();
+    private final ConcurrentLinkedQueue<Entry<K>> pendingAccesses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingAccessCount = new AtomicInteger();
+    /**
+     * Advanced every time the queued hits are applied. An entry is queued at most once per epoch, which keeps the
+     * queue from filling up with hits on the same entries.
+     */
+    private volatile long epoch;
+    private final DynamicResourceMetrics.CacheMetrics metrics;
+
+    private static final class Entry<K> {
+        final K key;
+        final BakedModel model;
+        volatile long queuedEpoch = -1;
+
+        Entry(K key, BakedModel model) {
+            this.key = key;
+            this.model = model;
+        }
+    }
+
+    /**
+     * @param metricsName the name this cache is listed under in {@code /modernfix stats}
+     */
+    public DynamicModelCache(Function<K, BakedModel> modelRetriever, boolean allowNulls, String metricsName) {
+        this(modelRetriever, allowNulls, DynamicResourceMetrics.get(metricsName), CONFIGURED_MAX_WEIGHT);
+    }
 
-    public DynamicModelCache(Function<K, BakedModel> modelRetriever, boolean allowNulls) {
+    /**
+     * @param maxWeight the maximum estimated size of the cached models in bytes, or 0 for an unbounded cache
+     */
+    public DynamicModelCache(Function<K, BakedModel> modelRetriever, boolean allowNulls, DynamicResourceMetrics.CacheMetrics metrics, long maxWeight) {
         this.modelRetriever = modelRetriever;
         this.allowNulls = allowNulls;
+        this.metrics = metrics;
+        this.maxWeight = maxWeight;
+        // the metrics outlive the cache, so they must not keep it alive
+        WeakReference<DynamicModelCache<K>> ref = new WeakReference<>(this);
+        metrics.setResidentCounter(() -> {
+            DynamicModelCache<K> cache = ref.get();
+            return cache != null ? cache.size() : 0;
+        });
     }
 
-    public void clear() {
-        long stamp = lock.writeLock();
-        try {
-            cache.clear();
-        } finally {
-            lock.unlock(stamp);
+    private static long getConfiguredMaxWeight() {
+        String requested = System.getProperty("modernfix.dynamicModelCacheSizeKb");
+        if(requested != null) {
+            try {
+                long kb = Long.parseLong(requested);
+                if(kb >= 0)
+                    return kb * 1024;
+            } catch(NumberFormatException e) {
+                ModernFix.LOGGER.error("modernfix.dynamicModelCacheSizeKb is not a number");
+            }
         }
+        return DEFAULT_MAX_WEIGHT;
     }
 
-    private boolean needToPopulate(K state) {
-        long stamp = lock.readLock();
-        try {
-            return !cache.containsKey(state);
-        } finally {
-            lock.unlock(stamp);
-        }
+    /**
+     * Estimate the memory used by the given model's quads. Only the quads of simple models are counted, other
+     * models are assumed to be a cube, as querying them could build quads on the fly.
+     */
+    static long estimateModelWeight(BakedModel model) {
+        if(model == null)
+            return 0;
+        if(model.getClass() == SimpleBakedModel.class)
+            return (long)((ISimpleBakedModel)model).mfix$getQuadCount() * QUAD_SIZE;
+        else
+            return DEFAULT_QUAD_COUNT * QUAD_SIZE;
     }
 
-    private BakedModel getModelFromCache(K state) {
-        long stamp = lock.readLock();
+    public void clear() {
+        lock.lock();
         try {
-            return cache.get(state);
+            for(Entry<K> entry : accessOrder.values()) {
+                if(cache.remove(entry.key, entry))
+                    metrics.recordEviction(entry.key, DynamicResourceMetrics.EvictionCause.EXPLICIT);
+            }
+            accessOrder.clear();
+            modelReferences.clear();
+            pendingAccesses.clear();
+            pendingAccessCount.set(0);
+            totalWeight.set(0);
         } finally {
-            lock.unlock(stamp);
+            lock.unlock();
         }
     }
 
     private BakedModel cacheModel(K state) {
+        long loadStart = System.nanoTime();
         BakedModel model = modelRetriever.apply(state);
+        metrics.recordLoad(state, loadStart);
 
-        // Lock and modify our local, faster cache
-        long stamp = lock.writeLock();
+        if(model == null && !allowNulls)
+            return null;
 
+        Entry<K> newEntry = new Entry<>(state, model);
+        lock.lock();
         try {
-            cache.putAndMoveToFirst(state, model);
-            // TODO: choose less arbitrary number
-            if(cache.size() >= 1000) {
-                cache.removeLast();
+            Entry<K> existing = cache.putIfAbsent(state, newEntry);
+            if(existing != null) {
+                // another thread won the race, use its model so every caller sees the same instance
+                return existing.model;
             }
+            drainAccesses();
+            accessOrder.put(state, newEntry);
+            totalWeight.addAndGet(ENTRY_OVERHEAD + addModelReference(model));
+            if(maxWeight > 0 && totalWeight.get() > maxWeight)
+                evict();
         } finally {
-            lock.unlock(stamp);
+            lock.unlock();
         }
 
         return model;
     }
 
+    /**
+     * @return the weight of the model's quads if no other entry holds it yet, otherwise 0
+     */
+    private long addModelReference(BakedModel model) {
+        if(model == null)
+            return 0;
+        return modelReferences.addTo(model, 1) == 0 ? estimateModelWeight(model) : 0;
+    }
+
+    /**
+     * @return the weight of the model's quads if no other entry holds it any more, otherwise 0
+     */
+    private long removeModelReference(BakedModel model) {
+        if(model == null)
+            return 0;
+        if(modelReferences.addTo(model, -1) > 1)
+            return 0;
+        modelReferences.removeInt(model);
+        return estimateModelWeight(model);
+    }
+
+    /**
+     * Move the entries hit since the last call to the end of the access order. Must be called with the lock held.
+     */
+    private void drainAccesses() {
+        epoch++;
+        Entry<K> entry;
+        while((entry = pendingAccesses.poll()) != null) {
+            pendingAccessCount.decrementAndGet();
+            // moves the key to the end, entries evicted in the meantime are simply not found
+            accessOrder.get(entry.key);
+        }
+    }
+
+    /**
+     * Evict the least recently used entries. Must be called with the lock held.
+     */
+    private void evict() {
+        long target = maxWeight - (maxWeight / 4);
+        Iterator<Entry<K>> iterator = accessOrder.values().iterator();
+        while(totalWeight.get() > target && iterator.hasNext()) {
+            Entry<K> entry = iterator.next();
+            iterator.remove();
+            cache.remove(entry.key, entry);
+            totalWeight.addAndGet(-(ENTRY_OVERHEAD + removeModelReference(entry.model)));
+            metrics.recordEviction(entry.key, DynamicResourceMetrics.EvictionCause.SIZE);
+        }
+    }
+
+    private void recordAccess(Entry<K> entry) {
+        long currentEpoch = epoch;
+        if(entry.queuedEpoch == currentEpoch)
+            return;
+        entry.queuedEpoch = currentEpoch;
+        pendingAccesses.add(entry);
+        // only one reader needs to apply the hits, others can carry on
+        if(pendingAccessCount.incrementAndGet() >= ACCESS_DRAIN_THRESHOLD && lock.tryLock()) {
+            try {
+                drainAccesses();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
     public BakedModel get(K key) {
-        BakedModel model = getModelFromCache(key);
+        metrics.recordRequest();
+        Entry<K> entry = cache.get(key);
 
-        if(model == null && (!allowNulls || needToPopulate(key))) {
-            model = cacheModel(key);
+        if(entry != null) {
+            if(maxWeight > 0)
+                recordAccess(entry);
+            return entry.model;
         }
 
-        return model;
+        return cacheModel(key);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getWeight() {
+        return totalWeight.get();
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries, %d/%d KB, %s", size(), getWeight() / 1024, getMaxWeight() / 1024, metrics);
     }
 }
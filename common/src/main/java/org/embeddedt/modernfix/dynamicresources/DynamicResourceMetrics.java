@@ -0,0 +1,219 @@
+package org.embeddedt.modernfix.dynamicresources;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import org.embeddedt.modernfix.ModernFix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of metrics for the caches used by dynamic resources. Every cache that loads and evicts resources on
+ * demand reports into a named {@link CacheMetrics} instance, which can then be viewed with
+ * {@code /modernfix stats} or in the periodic log line.
+ */
+public class DynamicResourceMetrics {
+    /**
+     * Interval between log lines, set to 0 to disable.
+     */
+    private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("modernfix.dynamicResourcesStatsIntervalSecs", 300));
+
+    private static final Map<String, CacheMetrics> METRICS = new ConcurrentSkipListMap<>();
+
+    public static final CacheMetrics BAKED_MODELS = get("baked_models");
+    public static final CacheMetrics UNBAKED_MODELS = get("unbaked_models");
+    public static final CacheMetrics SOUNDS = get("sounds");
+
+    private static long lastLogTime = System.nanoTime();
+    private static long loadsAtLastLog = 0;
+
+    public static CacheMetrics get(String name) {
+        return METRICS.computeIfAbsent(name, CacheMetrics::new);
+    }
+
+    /**
+     * @return a human-readable summary of every registered cache, one line per cache
+     */
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for(CacheMetrics metrics : METRICS.values()) {
+            if(metrics.getRequestCount() > 0 || metrics.getLoadCount() > 0)
+                lines.add(metrics.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * Log a summary if enough time has passed since the last one and something was loaded in the meantime.
+     * Meant to be called every client tick.
+     */
+    public static void tickPeriodicLog() {
+        if(LOG_INTERVAL_NANOS <= 0)
+            return;
+        long now = System.nanoTime();
+        if((now - lastLogTime) < LOG_INTERVAL_NANOS)
+            return;
+        lastLogTime = now;
+        long totalLoads = 0;
+        for(CacheMetrics metrics : METRICS.values()) {
+            totalLoads += metrics.getLoadCount();
+        }
+        if(totalLoads == loadsAtLastLog)
+            return;
+        loadsAtLastLog = totalLoads;
+        for(String line : report()) {
+            ModernFix.LOGGER.info("Dynamic resources: {}", line);
+        }
+    }
+
+    public enum EvictionCause {
+        EXPIRED,
+        SIZE,
+        COLLECTED,
+        EXPLICIT;
+
+        public static EvictionCause fromGuava(RemovalCause cause) {
+            switch(cause) {
+                case EXPIRED:
+                    return EXPIRED;
+                case SIZE:
+                    return SIZE;
+                case COLLECTED:
+                    return COLLECTED;
+                default:
+                    return EXPLICIT;
+            }
+        }
+    }
+
+    public static class CacheMetrics {
+        /**
+         * Upper bounds (exclusive) of the latency histogram buckets, in microseconds. The last bucket is unbounded.
+         */
+        private static final long[] LATENCY_BUCKETS_US = { 100, 1000, 10000, 100000, 1000000 };
+        private static final String[] LATENCY_BUCKET_NAMES = { "<0.1ms", "<1ms", "<10ms", "<100ms", "<1s", ">=1s" };
+
+        private final String name;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder loads = new LongAdder();
+        private final LongAdder[] latencyHistogram = new LongAdder[LATENCY_BUCKETS_US.length + 1];
+        private final LongAdder totalLatencyNanos = new LongAdder();
+        private final LongAdder[] evictions = new LongAdder[EvictionCause.values().length];
+        private final LongAdder reloadsAfterEviction = new LongAdder();
+        /**
+         * Recently evicted keys, used to detect resources that are loaded again soon after being evicted.
+         */
+        private final Cache<Object, Boolean> recentlyEvicted = CacheBuilder.newBuilder()
+                .maximumSize(4096)
+                .concurrencyLevel(4)
+                .build();
+        private volatile LongSupplier residentCounter = () -> -1;
+
+        CacheMetrics(String name) {
+            this.name = name;
+            for(int i = 0; i < latencyHistogram.length; i++)
+                latencyHistogram[i] = new LongAdder();
+            for(int i = 0; i < evictions.length; i++)
+                evictions[i] = new LongAdder();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setResidentCounter(LongSupplier counter) {
+            this.residentCounter = counter;
+        }
+
+        /**
+         * Record a lookup of a resource, whether or not it was cached.
+         */
+        public void recordRequest() {
+            requests.increment();
+        }
+
+        /**
+         * Record that a resource was loaded.
+         * @param key the cache key of the resource
+         * @param startNanos the value of System#nanoTime when loading started
+         */
+        public void recordLoad(Object key, long startNanos) {
+            long elapsed = System.nanoTime() - startNanos;
+            loads.increment();
+            totalLatencyNanos.add(elapsed);
+            long elapsedUs = elapsed / 1000;
+            int bucket = 0;
+            while(bucket < LATENCY_BUCKETS_US.length && elapsedUs >= LATENCY_BUCKETS_US[bucket])
+                bucket++;
+            latencyHistogram[bucket].increment();
+            if(key != null && recentlyEvicted.asMap().remove(key) != null)
+                reloadsAfterEviction.increment();
+        }
+
+        public void recordEviction(Object key, EvictionCause cause) {
+            evictions[cause.ordinal()].increment();
+            if(key != null && cause != EvictionCause.EXPLICIT)
+                recentlyEvicted.put(key, Boolean.TRUE);
+        }
+
+        public long getRequestCount() {
+            return requests.sum();
+        }
+
+        public long getLoadCount() {
+            return loads.sum();
+        }
+
+        public long getEvictionCount(EvictionCause cause) {
+            return evictions[cause.ordinal()].sum();
+        }
+
+        public long getReloadsAfterEviction() {
+            return reloadsAfterEviction.sum();
+        }
+
+        public long getResidentCount() {
+            return residentCounter.getAsLong();
+        }
+
+        @Override
+        public String toString() {
+            long loadCount = getLoadCount();
+            StringBuilder sb = new StringBuilder(name).append(": ");
+            long resident = getResidentCount();
+            if(resident >= 0)
+                sb.append(resident).append(" resident, ");
+            long requestCount = getRequestCount();
+            if(requestCount > 0)
+                sb.append(String.format("%.1f%% hit rate, ", Math.max(0, requestCount - loadCount) * 100.0 / requestCount));
+            sb.append(loadCount).append(" loaded");
+            if(loadCount > 0) {
+                sb.append(String.format(" (avg %.2fms; ", totalLatencyNanos.sum() / 1000000.0 / loadCount));
+                boolean first = true;
+                for(int i = 0; i < latencyHistogram.length; i++) {
+                    long count = latencyHistogram[i].sum();
+                    if(count == 0)
+                        continue;
+                    if(!first)
+                        sb.append(", ");
+                    sb.append(LATENCY_BUCKET_NAMES[i]).append('=').append(count);
+                    first = false;
+                }
+                sb.append(')');
+            }
+            sb.append(", evicted");
+            for(EvictionCause cause : EvictionCause.values()) {
+                sb.append(' ').append(cause.name().toLowerCase()).append('=').append(getEvictionCount(cause));
+            }
+            if(loadCount > 0)
+                sb.append(String.format(", %.1f%% reloaded after eviction", getReloadsAfterEviction() * 100.0 / loadCount));
+            return sb.toString();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.embeddedt.modernfix.dynamicresources;
 import com.google.common.base.Splitter;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.gson.*;
 import com.google.gson.stream.JsonReader;
@@ -34,7 +35,6 @@ import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -83,11 +83,51 @@ public class ModelBakeryHelpers {
         };
     }
 
-    private static JsonElement parseStream(InputStream stream) {
-        JsonParser parser = new JsonParser();
-        JsonReader jsonReader = new JsonReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    private static JsonReader openReader(Resource resource) {
+        JsonReader jsonReader = new JsonReader(new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8));
         jsonReader.setLenient(true);
-        return parser.parse(jsonReader);
+        return jsonReader;
+    }
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * Split the locations into batches of work, keeping each namespace (and therefore usually each pack) together
+     * so that a batch mostly reads from the same archive.
+     */
+    private static List<List<ResourceLocation>> partitionByNamespace(Collection<ResourceLocation> locations) {
+        Map<String, List<ResourceLocation>> byNamespace = new HashMap<>();
+        for(ResourceLocation location : locations) {
+            byNamespace.computeIfAbsent(location.getNamespace(), k -> new ArrayList<>()).add(location);
+        }
+        List<List<ResourceLocation>> batches = new ArrayList<>();
+        for(List<ResourceLocation> namespaceLocations : byNamespace.values()) {
+            batches.addAll(Lists.partition(namespaceLocations, MAX_BATCH_SIZE));
+        }
+        return batches;
+    }
+
+    /**
+     * Extract the references of a model file.
+     * @return the extracted references, the parsed JSON if the model needs to be deserialized fully, or null if the
+     * model could not be read
+     */
+    private static Object scanModel(ResourceManager manager, ResourceLocation model, Object2IntOpenHashMap<String> errors) {
+        ResourceLocation fileLocation = new ResourceLocation(model.getNamespace(), "models/" + model.getPath() + ".json");
+        try {
+            ModelReferenceScanner.ModelReferences references;
+            try(Resource resource = manager.getResource(fileLocation); JsonReader reader = openReader(resource)) {
+                references = ModelReferenceScanner.scanModel(reader);
+            }
+            if(!references.needsFullParse)
+                return references;
+            try(Resource resource = manager.getResource(fileLocation); JsonReader reader = openReader(resource)) {
+                return new JsonParser().parse(reader);
+            }
+        } catch(IOException | RuntimeException e) {
+            logOrSuppressError(errors, "model", fileLocation, e);
+            return null;
+        }
     }
 
     private static void gatherAdditionalViaManualScan(List<PackResources> untrustedPacks, Set<ResourceLocation> knownLocations,
@@ -187,82 +227,31 @@ public class ModelBakeryHelpers {
         allAvailableStates.clear();
         allAvailableStates.trim();
 
-        ConcurrentLinkedQueue<Pair<ResourceLocation, JsonElement>> blockStateLoadedFiles = new ConcurrentLinkedQueue<>();
-        List<CompletableFuture<Void>> blockStateData = new ArrayList<>();
-        for(ResourceLocation blockstate : blockStateFiles) {
-            ResourceLocation fileLocation = new ResourceLocation(blockstate.getNamespace(), "blockstates/" + blockstate.getPath() + ".json");
-            List<Resource> resources;
-            try {
-                resources = manager.getResources(fileLocation);
-                if(resources.isEmpty())
-                    continue;
-            } catch(IOException e) {
-                logOrSuppressError(blockstateErrors, "blockstate", blockstate, e);
-                continue;
-            }
-            blockStateData.add(CompletableFuture.runAsync(() -> {
-                try {
-                    for(Resource resource : resources) {
-                        try {
-                            blockStateLoadedFiles.add(Pair.of(blockstate, parseStream(resource.getInputStream())));
-                        } catch(JsonParseException e) {
-                            logOrSuppressError(blockstateErrors, "blockstate", blockstate, e);
-                        } finally {
-                            resource.close();
+        List<CompletableFuture<List<ResourceLocation>>> blockStateData = new ArrayList<>();
+        for(List<ResourceLocation> batch : partitionByNamespace(blockStateFiles)) {
+            blockStateData.add(CompletableFuture.supplyAsync(() -> {
+                List<ResourceLocation> referencedModels = new ArrayList<>();
+                for(ResourceLocation blockstate : batch) {
+                    ResourceLocation fileLocation = new ResourceLocation(blockstate.getNamespace(), "blockstates/" + blockstate.getPath() + ".json");
+                    try {
+                        for(Resource resource : manager.getResources(fileLocation)) {
+                            try(Resource r = resource; JsonReader reader = openReader(r)) {
+                                ModelReferenceScanner.scanBlockState(reader, referencedModels::add);
+                            } catch(IOException | RuntimeException e) {
+                                logOrSuppressError(blockstateErrors, "blockstate", blockstate, e);
+                            }
                         }
+                    } catch(IOException e) {
+                        logOrSuppressError(blockstateErrors, "blockstate", blockstate, e);
                     }
-                } catch(IOException e) {
-                    logOrSuppressError(blockstateErrors, "blockstate", blockstate, e);
                 }
+                return referencedModels;
             }, ModernFix.resourceReloadExecutor()));
         }
         blockStateFiles = null;
         CompletableFuture.allOf(blockStateData.toArray(new CompletableFuture[0])).join();
-        for(Pair<ResourceLocation, JsonElement> pair : blockStateLoadedFiles) {
-            if(pair.getSecond() != null) {
-                try {
-                    JsonObject obj = pair.getSecond().getAsJsonObject();
-                    if(obj.has("variants")) {
-                        JsonObject eachVariant = obj.getAsJsonObject("variants");
-                        for(Map.Entry<String, JsonElement> entry : eachVariant.entrySet()) {
-                            JsonElement variantData = entry.getValue();
-                            List<JsonObject> variantModels;
-                            if(variantData.isJsonArray()) {
-                                variantModels = new ArrayList<>();
-                                for(JsonElement model : variantData.getAsJsonArray()) {
-                                    variantModels.add(model.getAsJsonObject());
-                                }
-                            } else
-                                variantModels = Collections.singletonList(variantData.getAsJsonObject());
-                            for(JsonObject variant : variantModels) {
-                                modelFiles.add(new ResourceLocation(variant.get("model").getAsString()));
-                            }
-                        }
-
-                    } else {
-                        JsonArray multipartData = obj.get("multipart").getAsJsonArray();
-                        for(JsonElement element : multipartData) {
-                            JsonObject self = element.getAsJsonObject();
-                            JsonElement apply = self.get("apply");
-                            List<JsonObject> applyObjects;
-                            if(apply.isJsonArray()) {
-                                applyObjects = new ArrayList<>();
-                                for(JsonElement e : apply.getAsJsonArray()) {
-                                    applyObjects.add(e.getAsJsonObject());
-                                }
-                            } else
-                                applyObjects = Collections.singletonList(apply.getAsJsonObject());
-                            for(JsonObject applyEntry : applyObjects) {
-                                modelFiles.add(new ResourceLocation(applyEntry.get("model").getAsString()));
-                            }
-                        }
-
-                    }
-                } catch(RuntimeException e) {
-                    logOrSuppressError(blockstateErrors, "blockstate", pair.getFirst(), e);
-                }
-
-            }
+        for(CompletableFuture<List<ResourceLocation>> future : blockStateData) {
+            modelFiles.addAll(future.join());
         }
         blockstateErrors.object2IntEntrySet().forEach(entry -> {
             if(entry.getIntValue() > ERROR_THRESHOLD) {
@@ -271,7 +260,6 @@ public class ModelBakeryHelpers {
         });
         blockstateErrors.clear();
         blockStateData = null;
-        blockStateLoadedFiles.clear();
 
         modelFiles.addAll(allAvailableModels);
         /* figure out which models we should actually load */
@@ -280,44 +268,56 @@ public class ModelBakeryHelpers {
         allAvailableModels.clear();
         allAvailableModels.trim();
 
+        /* models with custom loaders are deserialized fully, the rest are replaced by a stand-in built from their references */
         Map<ResourceLocation, BlockModel> basicModels = new HashMap<>();
         basicModels.put(ModelBakery.MISSING_MODEL_LOCATION, (BlockModel)missingModel);
         basicModels.put(new ResourceLocation("builtin/generated"), GENERATION_MARKER);
         basicModels.put(new ResourceLocation("builtin/entity"), BLOCK_ENTITY_MARKER);
+        Set<ResourceLocation> visitedModels = new ObjectOpenHashSet<>(basicModels.keySet());
         Set<Pair<String, String>> errorSet = Sets.newLinkedHashSet();
         while(modelFiles.size() > 0) {
-            List<CompletableFuture<Pair<ResourceLocation, JsonElement>>> modelBytes = new ArrayList<>();
+            List<ResourceLocation> toLoad = new ArrayList<>();
             for(ResourceLocation model : modelFiles) {
-                if(basicModels.containsKey(model))
-                    continue;
-                ResourceLocation fileLocation = new ResourceLocation(model.getNamespace(), "models/" + model.getPath() + ".json");
-                modelBytes.add(CompletableFuture.supplyAsync(() -> {
-                    try(Resource resource = manager.getResource(fileLocation)) {
-                        return Pair.of(model, parseStream(resource.getInputStream()));
-                    } catch(IOException | JsonParseException e) {
-                        logOrSuppressError(blockstateErrors, "model", fileLocation, e);
-                        return Pair.of(fileLocation, null);
+                if(visitedModels.add(model))
+                    toLoad.add(model);
+            }
+            modelFiles.clear();
+            List<CompletableFuture<List<Pair<ResourceLocation, Object>>>> modelData = new ArrayList<>();
+            for(List<ResourceLocation> batch : partitionByNamespace(toLoad)) {
+                modelData.add(CompletableFuture.supplyAsync(() -> {
+                    List<Pair<ResourceLocation, Object>> results = new ArrayList<>(batch.size());
+                    for(ResourceLocation model : batch) {
+                        results.add(Pair.of(model, scanModel(manager, model, blockstateErrors)));
                     }
+                    return results;
                 }, ModernFix.resourceReloadExecutor()));
             }
-            modelFiles.clear();
-            CompletableFuture.allOf(modelBytes.toArray(new CompletableFuture[0])).join();
+            CompletableFuture.allOf(modelData.toArray(new CompletableFuture[0])).join();
             UVController.useDummyUv.set(Boolean.TRUE);
-            for(CompletableFuture<Pair<ResourceLocation, JsonElement>> future : modelBytes) {
-                Pair<ResourceLocation, JsonElement> pair = future.join();
-                try {
-                    if(pair.getSecond() != null) {
-
-                        BlockModel model = modelDeserializer.apply(pair.getSecond());
-                        model.name = pair.getFirst().toString();
-                        modelFiles.addAll(model.getDependencies());
-                        basicModels.put(pair.getFirst(), model);
-                        continue;
+            for(CompletableFuture<List<Pair<ResourceLocation, Object>>> future : modelData) {
+                for(Pair<ResourceLocation, Object> pair : future.join()) {
+                    Object result = pair.getSecond();
+                    try {
+                        if(result instanceof ModelReferenceScanner.ModelReferences) {
+                            /* a stand-in with the same parent and textures, so that children resolve as usual */
+                            ModelReferenceScanner.ModelReferences references = (ModelReferenceScanner.ModelReferences)result;
+                            BlockModel model = modelDeserializer.apply(references.toModelJson());
+                            model.name = pair.getFirst().toString();
+                            modelFiles.addAll(references.dependencies);
+                            basicModels.put(pair.getFirst(), model);
+                            continue;
+                        } else if(result != null) {
+                            BlockModel model = modelDeserializer.apply((JsonElement)result);
+                            model.name = pair.getFirst().toString();
+                            modelFiles.addAll(model.getDependencies());
+                            basicModels.put(pair.getFirst(), model);
+                            continue;
+                        }
+                    } catch(Throwable e) {
+                        logOrSuppressError(blockstateErrors, "model", pair.getFirst(), e);
                     }
-                } catch(Throwable e) {
-                    logOrSuppressError(blockstateErrors, "model", pair.getFirst(), e);
+                    basicModels.put(pair.getFirst(), (BlockModel)missingModel);
                 }
-                basicModels.put(pair.getFirst(), (BlockModel)missingModel);
             }
             UVController.useDummyUv.set(Boolean.FALSE);
         }
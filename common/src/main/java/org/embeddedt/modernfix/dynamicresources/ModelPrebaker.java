@@ -0,0 +1,73 @@
+package org.embeddedt.modernfix.dynamicresources;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.block.BlockModelShaper;
+import net.minecraft.world.level.block.RenderShape;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.embeddedt.modernfix.ModernFix;
+
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bakes the models of the blockstates in newly received chunks on a background thread, so that by the time the
+ * chunk is meshed, the chunk builder threads mostly hit the model cache instead of baking synchronously.
+ * <p></p>
+ * Chunks arrive from the server well before they are meshed, as meshing waits for the neighboring chunks. The queue
+ * is bounded and drops the oldest chunks first, as those are the most likely to have been meshed already.
+ * <p></p>
+ * The thread runs at normal priority, as baking holds the model bakery's lock and a starved holder would stall the
+ * chunk builders waiting on it.
+ */
+public class ModelPrebaker {
+    private static final int MAX_QUEUED_CHUNKS = 256;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED_CHUNKS),
+            new ThreadFactoryBuilder().setNameFormat("ModernFix model prebaker").setDaemon(true).build(),
+            new ThreadPoolExecutor.DiscardOldestPolicy());
+
+    public static void onChunkReceived(LevelChunk chunk) {
+        EXECUTOR.execute(() -> prebake(chunk));
+    }
+
+    private static void prebake(LevelChunk chunk) {
+        Minecraft mc = Minecraft.getInstance();
+        // the model system is being replaced during a reload, and the chunk will be rebuilt afterwards anyway
+        if(mc.getOverlay() != null || mc.level == null || mc.level != chunk.getLevel())
+            return;
+        Set<BlockState> states = collectModelStates(chunk.getSections());
+        BlockModelShaper shaper = mc.getModelManager().getBlockModelShaper();
+        for(BlockState state : states) {
+            try {
+                shaper.getBlockModel(state);
+            } catch(RuntimeException e) {
+                // the meshing path will bake it again and report the error in context
+                ModernFix.LOGGER.debug("Failed to prebake model for {}", state, e);
+            }
+        }
+    }
+
+    /**
+     * @return the distinct states in the sections that are rendered with a block model
+     */
+    static Set<BlockState> collectModelStates(LevelChunkSection[] sections) {
+        Set<BlockState> states = new ReferenceOpenHashSet<>();
+        for(LevelChunkSection section : sections) {
+            if(LevelChunkSection.isEmpty(section))
+                continue;
+            // counts without locking, a concurrent modification may at worst produce a stale or null state
+            section.getStates().count((state, count) -> {
+                if(state != null && state.getRenderShape() == RenderShape.MODEL)
+                    states.add(state);
+            });
+        }
+        return states;
+    }
+}
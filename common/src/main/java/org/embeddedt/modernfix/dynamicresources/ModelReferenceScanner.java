@@ -0,0 +1,245 @@
+package org.embeddedt.modernfix.dynamicresources;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import net.minecraft.resources.ResourceLocation;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Pulls the references needed for texture gathering out of blockstate and model JSON without building a tree
+ * of the whole file. Everything else in the file is skipped by the reader.
+ */
+public class ModelReferenceScanner {
+    /**
+     * The references found in a model file.
+     */
+    public static class ModelReferences {
+        /**
+         * Parent and override models.
+         */
+        public final List<ResourceLocation> dependencies = new ArrayList<>(2);
+        /**
+         * The raw parent location, if any.
+         */
+        public String parent;
+        /**
+         * The textures block, with both literal textures and references to other texture variables.
+         */
+        public final Map<String, String> textures = new LinkedHashMap<>();
+        /**
+         * The distinct textures used by the faces of the model's elements.
+         */
+        public final Set<String> faceTextures = new LinkedHashSet<>();
+        /**
+         * Set if the model uses a custom loader, in which case its references cannot be determined without
+         * deserializing it properly.
+         */
+        public boolean needsFullParse;
+
+        /**
+         * Build a model with the same parent, textures and face textures as the scanned one, so that the usual
+         * texture resolution can run on it. The element geometry is not kept, each synthetic element only carries
+         * up to six of the face textures.
+         */
+        public JsonObject toModelJson() {
+            JsonObject model = new JsonObject();
+            if(parent != null)
+                model.addProperty("parent", parent);
+            JsonObject textureObj = new JsonObject();
+            textures.forEach(textureObj::addProperty);
+            model.add("textures", textureObj);
+            if(!faceTextures.isEmpty()) {
+                JsonArray elements = new JsonArray();
+                JsonObject faces = null;
+                int faceIdx = 0;
+                for(String texture : faceTextures) {
+                    if(faces == null || faceIdx == FACE_NAMES.length) {
+                        JsonObject element = new JsonObject();
+                        element.add("from", cubeCorner(0));
+                        element.add("to", cubeCorner(16));
+                        faces = new JsonObject();
+                        element.add("faces", faces);
+                        elements.add(element);
+                        faceIdx = 0;
+                    }
+                    JsonObject face = new JsonObject();
+                    face.addProperty("texture", texture);
+                    faces.add(FACE_NAMES[faceIdx++], face);
+                }
+                model.add("elements", elements);
+            }
+            return model;
+        }
+
+        private static JsonArray cubeCorner(int coord) {
+            JsonArray array = new JsonArray();
+            for(int i = 0; i < 3; i++)
+                array.add(coord);
+            return array;
+        }
+    }
+
+    private static final String[] FACE_NAMES = { "down", "up", "north", "south", "west", "east" };
+
+    /**
+     * Report every model referenced from the variants or multipart sections of a blockstate file.
+     */
+    public static void scanBlockState(JsonReader reader, Consumer<ResourceLocation> modelConsumer) throws IOException {
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String name = reader.nextName();
+            // "defaults" is used by the Forge blockstate format
+            if(name.equals("variants") || name.equals("multipart") || name.equals("defaults"))
+                collectModels(reader, modelConsumer);
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+    }
+
+    private static void collectModels(JsonReader reader, Consumer<ResourceLocation> modelConsumer) throws IOException {
+        switch(reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    String name = reader.nextName();
+                    if(name.equals("model") && reader.peek() == JsonToken.STRING) {
+                        ResourceLocation location = ResourceLocation.tryParse(reader.nextString());
+                        if(location != null)
+                            modelConsumer.accept(location);
+                    } else if(name.equals("when")) {
+                        reader.skipValue();
+                    } else
+                        collectModels(reader, modelConsumer);
+                }
+                reader.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                while(reader.hasNext()) {
+                    collectModels(reader, modelConsumer);
+                }
+                reader.endArray();
+                break;
+            default:
+                reader.skipValue();
+                break;
+        }
+    }
+
+    public static ModelReferences scanModel(JsonReader reader) throws IOException {
+        ModelReferences references = new ModelReferences();
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String name = reader.nextName();
+            switch(name) {
+                case "parent":
+                    if(reader.peek() == JsonToken.STRING) {
+                        String parent = reader.nextString();
+                        if(!parent.isEmpty()) {
+                            references.parent = parent;
+                            addLocation(references.dependencies, parent);
+                        }
+                    } else
+                        reader.skipValue();
+                    break;
+                case "textures":
+                    if(reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        reader.beginObject();
+                        while(reader.hasNext()) {
+                            String variable = reader.nextName();
+                            if(reader.peek() == JsonToken.STRING)
+                                references.textures.put(variable, reader.nextString());
+                            else
+                                reader.skipValue();
+                        }
+                        reader.endObject();
+                    } else
+                        reader.skipValue();
+                    break;
+                case "elements":
+                    scanFaceTextures(reader, references.faceTextures, 0);
+                    break;
+                case "overrides":
+                    if(reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        reader.beginArray();
+                        while(reader.hasNext()) {
+                            scanOverride(reader, references);
+                        }
+                        reader.endArray();
+                    } else
+                        reader.skipValue();
+                    break;
+                case "loader":
+                    references.needsFullParse = true;
+                    return references;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return references;
+    }
+
+    /**
+     * Collect the "texture" of every face below the elements array. Elements are at depth 1 and faces at depth 3.
+     */
+    private static void scanFaceTextures(JsonReader reader, Set<String> faceTextures, int depth) throws IOException {
+        switch(reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    String name = reader.nextName();
+                    if(depth == 3 && name.equals("texture") && reader.peek() == JsonToken.STRING)
+                        faceTextures.add(reader.nextString());
+                    else if((depth == 1 && name.equals("faces")) || depth == 2)
+                        scanFaceTextures(reader, faceTextures, depth + 1);
+                    else
+                        reader.skipValue();
+                }
+                reader.endObject();
+                break;
+            case BEGIN_ARRAY:
+                if(depth != 0) {
+                    reader.skipValue();
+                    break;
+                }
+                reader.beginArray();
+                while(reader.hasNext()) {
+                    scanFaceTextures(reader, faceTextures, 1);
+                }
+                reader.endArray();
+                break;
+            default:
+                reader.skipValue();
+                break;
+        }
+    }
+
+    private static void scanOverride(JsonReader reader, ModelReferences references) throws IOException {
+        if(reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while(reader.hasNext()) {
+            if(reader.nextName().equals("model") && reader.peek() == JsonToken.STRING)
+                addLocation(references.dependencies, reader.nextString());
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+    }
+
+    private static void addLocation(List<ResourceLocation> list, String location) {
+        ResourceLocation rl = ResourceLocation.tryParse(location);
+        if(rl != null)
+            list.add(rl);
+    }
+}
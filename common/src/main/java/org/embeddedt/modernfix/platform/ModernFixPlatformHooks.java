@@ -13,6 +13,7 @@ import net.minecraft.server.packs.resources.ResourceManager;
 import org.objectweb.asm.tree.ClassNode;
 
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.function.Consumer;
 
 public interface ModernFixPlatformHooks {
@@ -56,4 +57,9 @@ public interface ModernFixPlatformHooks {
     void onLaunchComplete();
 
     String getPlatformName();
+
+    /**
+     * @return the version of every loaded mod, keyed by mod ID
+     */
+    Map<String, String> getModVersions();
 }
@@ -0,0 +1,204 @@
+package org.embeddedt.modernfix.registry;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable map from a fixed key set to values, indexed with a minimal perfect hash built in the style of CHD
+ * (compress, hash, displace).
+ * <p></p>
+ * Keys are split into buckets of about four keys by their hash. The buckets are then placed largest first into a
+ * slightly oversized slot table, each one trying displacement values until all of its keys land in free slots. A
+ * lookup is one bucket read, one slot computation and a rank query on the occupancy bitmap, which maps the slot to
+ * a dense index into the key and value arrays. No probing is needed, and the value array holds exactly one entry
+ * per key.
+ * <p></p>
+ * Keys whose hash code is shared with another key cannot be told apart by the hash function, so they are kept in
+ * a small overflow map instead.
+ * <p></p>
+ * Currently only used by the snapshots of {@code FastForgeRegistry}, which the rewrite_registry option enables. That
+ * option is off by default and only applied in development environments, so this has no effect in production.
+ */
+public final class PerfectHashIndex<K, V> {
+    private static final int KEYS_PER_BUCKET = 4;
+    private static final int MAX_DISPLACEMENT = 1 << 16;
+
+    private final int[] displacements;
+    private final int slotCount;
+    private final long[] occupied;
+    private final int[] rankBefore;
+    private final Object[] keys;
+    private final Object[] values;
+    private final Map<Object, Object> overflow;
+
+    private PerfectHashIndex(int[] displacements, int slotCount, long[] occupied, Object[] keys, Object[] values, Map<Object, Object> overflow) {
+        this.displacements = displacements;
+        this.slotCount = slotCount;
+        this.occupied = occupied;
+        this.rankBefore = new int[occupied.length];
+        int rank = 0;
+        for(int i = 0; i < occupied.length; i++) {
+            rankBefore[i] = rank;
+            rank += Long.bitCount(occupied[i]);
+        }
+        this.keys = keys;
+        this.values = values;
+        this.overflow = overflow;
+    }
+
+    private static int reduce(int hash, int n) {
+        return (int)(((hash & 0xFFFFFFFFL) * n) >>> 32);
+    }
+
+    private static int slot(int hash, int displacement, int slotCount) {
+        return reduce((int)HashCommon.murmurHash3(((long)displacement << 32) | (hash & 0xFFFFFFFFL)), slotCount);
+    }
+
+    public static <K, V> PerfectHashIndex<K, V> build(Map<K, V> map) {
+        Int2IntOpenHashMap hashCounts = new Int2IntOpenHashMap(map.size());
+        for(K key : map.keySet()) {
+            hashCounts.addTo(key.hashCode(), 1);
+        }
+        List<Object> uniqueKeys = new ArrayList<>(map.size());
+        Map<Object, Object> overflow = null;
+        for(Map.Entry<K, V> entry : map.entrySet()) {
+            if(hashCounts.get(entry.getKey().hashCode()) > 1) {
+                if(overflow == null)
+                    overflow = new HashMap<>();
+                overflow.put(entry.getKey(), entry.getValue());
+            } else
+                uniqueKeys.add(entry.getKey());
+        }
+        int n = uniqueKeys.size();
+        int[] hashes = new int[n];
+        for(int i = 0; i < n; i++) {
+            hashes[i] = HashCommon.mix(uniqueKeys.get(i).hashCode());
+        }
+        int bucketCount = Math.max(1, (n + KEYS_PER_BUCKET - 1) / KEYS_PER_BUCKET);
+        // a little slack makes placing the last buckets much faster, the rank bitmap keeps the value array dense
+        int slotCount = Math.max(1, n + n / 8);
+        while(true) {
+            PerfectHashIndex<K, V> index = tryBuild(map, uniqueKeys, hashes, bucketCount, slotCount, overflow);
+            if(index != null)
+                return index;
+            slotCount += Math.max(1, slotCount / 4);
+        }
+    }
+
+    private static <K, V> PerfectHashIndex<K, V> tryBuild(Map<K, V> map, List<Object> uniqueKeys, int[] hashes, int bucketCount, int slotCount, Map<Object, Object> overflow) {
+        int n = hashes.length;
+        // group key indices by bucket with a counting sort
+        int[] bucketStart = new int[bucketCount + 1];
+        int[] bucketOfKey = new int[n];
+        for(int i = 0; i < n; i++) {
+            bucketOfKey[i] = reduce(hashes[i], bucketCount);
+            bucketStart[bucketOfKey[i] + 1]++;
+        }
+        int maxBucketSize = 0;
+        for(int b = 0; b < bucketCount; b++) {
+            maxBucketSize = Math.max(maxBucketSize, bucketStart[b + 1]);
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        int[] keysByBucket = new int[n];
+        int[] fill = new int[bucketCount];
+        for(int i = 0; i < n; i++) {
+            int b = bucketOfKey[i];
+            keysByBucket[bucketStart[b] + fill[b]++] = i;
+        }
+        // place the largest buckets first, while the table is still mostly empty
+        int[] sizeStart = new int[maxBucketSize + 2];
+        for(int b = 0; b < bucketCount; b++) {
+            sizeStart[maxBucketSize - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+        }
+        for(int s = 0; s <= maxBucketSize; s++) {
+            sizeStart[s + 1] += sizeStart[s];
+        }
+        int[] bucketOrder = new int[bucketCount];
+        for(int b = 0; b < bucketCount; b++) {
+            bucketOrder[sizeStart[maxBucketSize - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+        }
+        int[] displacements = new int[bucketCount];
+        long[] occupied = new long[(slotCount + 63) >>> 6];
+        int[] slots = new int[maxBucketSize];
+        for(int b : bucketOrder) {
+            int start = bucketStart[b], size = bucketStart[b + 1] - start;
+            if(size == 0)
+                break;
+            boolean placed = false;
+            for(int d = 0; d < MAX_DISPLACEMENT && !placed; d++) {
+                placed = true;
+                for(int j = 0; j < size; j++) {
+                    int slot = slot(hashes[keysByBucket[start + j]], d, slotCount);
+                    if((occupied[slot >>> 6] & (1L << slot)) != 0) {
+                        // undo the slots taken so far by this bucket
+                        for(int k = 0; k < j; k++)
+                            occupied[slots[k] >>> 6] &= ~(1L << slots[k]);
+                        placed = false;
+                        break;
+                    }
+                    occupied[slot >>> 6] |= 1L << slot;
+                    slots[j] = slot;
+                }
+                if(placed)
+                    displacements[b] = d;
+            }
+            if(!placed)
+                return null;
+        }
+        Object[] keys = new Object[n];
+        Object[] values = new Object[n];
+        PerfectHashIndex<K, V> index = new PerfectHashIndex<>(displacements, slotCount, occupied, keys, values, overflow);
+        for(int i = 0; i < n; i++) {
+            int slot = slot(hashes[i], displacements[bucketOfKey[i]], slotCount);
+            int idx = index.rank(slot);
+            keys[idx] = uniqueKeys.get(i);
+            values[idx] = map.get(uniqueKeys.get(i));
+        }
+        return index;
+    }
+
+    private int rank(int slot) {
+        int word = slot >>> 6;
+        return rankBefore[word] + Long.bitCount(occupied[word] & ((1L << slot) - 1));
+    }
+
+    /**
+     * @return the index of the key in the key and value arrays, or -1 if it is not there
+     */
+    private int indexOf(Object key) {
+        if(keys.length == 0)
+            return -1;
+        int hash = HashCommon.mix(key.hashCode());
+        int slot = slot(hash, displacements[reduce(hash, displacements.length)], slotCount);
+        if((occupied[slot >>> 6] & (1L << slot)) == 0)
+            return -1;
+        int idx = rank(slot);
+        Object candidate = keys[idx];
+        return (candidate == key || candidate.equals(key)) ? idx : -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if(key == null)
+            return null;
+        int idx = indexOf(key);
+        if(idx >= 0)
+            return (V)values[idx];
+        return overflow != null ? (V)overflow.get(key) : null;
+    }
+
+    public boolean containsKey(Object key) {
+        if(key == null)
+            return false;
+        return indexOf(key) >= 0 || (overflow != null && overflow.containsKey(key));
+    }
+
+    public int size() {
+        return keys.length + (overflow != null ? overflow.size() : 0);
+    }
+}
@@ -1,28 +1,55 @@
 package org.embeddedt.modernfix.resources;
 
-import com.google.common.base.Splitter;
-import com.google.common.collect.Interner;
-import com.google.common.collect.Interners;
-import org.embeddedt.modernfix.util.FileUtil;
-
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collection;
 
+/**
+ * A resource path, stored as a sequence of component IDs from the {@link PathComponentPool}, with its hash
+ * computed up front.
+ * <p></p>
+ * Paths built for lookups only (i.e. without interning) use an ID of -1 for components that are not in the pool.
+ * Such paths can never be equal to an interned path.
+ */
 public class CachedResourcePath {
-    private final String[] pathComponents;
+    private final int[] pathComponents;
+    private final int hash;
 
-    public static final Interner<String> PATH_COMPONENT_INTERNER = Interners.newStrongInterner();
-    private static final Splitter SLASH_SPLITTER = Splitter.on('/');
     public static final String[] NO_PREFIX = new String[0];
 
     public CachedResourcePath(String[] prefix, Path path) {
         this(prefix, path, path.getNameCount(), true);
     }
 
+    /**
+     * Create a path for lookups. Does not intern new components.
+     */
     public CachedResourcePath(String s) {
-        // normalize so we can guarantee there are no empty sections
-        this(NO_PREFIX, SLASH_SPLITTER.splitToList(FileUtil.normalize(s)), false);
+        int count = 0;
+        int start = 0;
+        int len = s.length();
+        // first pass counts the components, skipping empty ones so there is no need to normalize
+        while(start <= len) {
+            int end = s.indexOf('/', start);
+            if(end == -1)
+                end = len;
+            if(end > start)
+                count++;
+            start = end + 1;
+        }
+        int[] components = new int[count];
+        int i = 0;
+        start = 0;
+        while(start <= len) {
+            int end = s.indexOf('/', start);
+            if(end == -1)
+                end = len;
+            if(end > start)
+                components[i++] = PathComponentPool.lookup(s, start, end);
+            start = end + 1;
+        }
+        this.pathComponents = components;
+        this.hash = hashComponents(components);
     }
 
     public <T> CachedResourcePath(String[] prefixElements, Collection<T> collection, boolean intern) {
@@ -30,50 +57,79 @@ public class CachedResourcePath {
     }
 
     public <T> CachedResourcePath(String[] prefixElements, Iterable<T> path, int count, boolean intern) {
-        String[] components = new String[prefixElements.length + count];
+        int[] components = new int[prefixElements.length + count];
         int i = 0;
         while(i < prefixElements.length) {
-            components[i] = intern ? PATH_COMPONENT_INTERNER.intern(prefixElements[i]) : prefixElements[i];
+            components[i] = intern ? PathComponentPool.intern(prefixElements[i]) : PathComponentPool.lookup(prefixElements[i]);
             i++;
         }
         for(Object component : path) {
             String s = component.toString();
             if(s.length() == 0)
                 continue;
-            components[i] = intern ? PATH_COMPONENT_INTERNER.intern(s) : s;
+            components[i] = intern ? PathComponentPool.intern(s) : PathComponentPool.lookup(s);
             i++;
         }
-        pathComponents = components;
+        if(i < components.length)
+            components = Arrays.copyOf(components, i);
+        this.pathComponents = components;
+        this.hash = hashComponents(components);
     }
 
     public CachedResourcePath(String[] prefixElements, CachedResourcePath other) {
-        String[] components = new String[prefixElements.length + other.pathComponents.length];
+        int[] components = new int[prefixElements.length + other.pathComponents.length];
         int i = 0;
         while(i < prefixElements.length) {
-            components[i] = PATH_COMPONENT_INTERNER.intern(prefixElements[i]);
+            components[i] = PathComponentPool.intern(prefixElements[i]);
             i++;
         }
         System.arraycopy(other.pathComponents, 0, components, i, other.pathComponents.length);
-        pathComponents = components;
+        this.pathComponents = components;
+        this.hash = hashComponents(components);
     }
 
     /**
      * DOES NOT INTERN!
      */
     public CachedResourcePath(String[] pathComponents) {
+        int count = 0;
         for(String s : pathComponents) {
-            if(s.length() == 0) {
-                // reconstruct the whole array skipping blanks. inefficient, but should not be the common case
-                pathComponents = Arrays.stream(pathComponents).filter(comp -> comp.length() > 0).toArray(String[]::new);
-                break;
-            }
+            if(s.length() > 0)
+                count++;
+        }
+        int[] components = new int[count];
+        int i = 0;
+        for(String s : pathComponents) {
+            if(s.length() > 0)
+                components[i++] = PathComponentPool.lookup(s);
+        }
+        this.pathComponents = components;
+        this.hash = hashComponents(components);
+    }
+
+    /**
+     * Create a path directly from component IDs. The array must not be modified afterwards.
+     */
+    CachedResourcePath(int[] componentIds) {
+        this.pathComponents = componentIds;
+        this.hash = hashComponents(componentIds);
+    }
+
+    /**
+     * The hash function used for component ID sequences. {@link ResourcePathSet} relies on this being
+     * computable one component at a time.
+     */
+    static int hashComponents(int[] components) {
+        int h = 1;
+        for(int component : components) {
+            h = 31 * h + component;
         }
-        this.pathComponents = pathComponents;
+        return h;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(pathComponents);
+        return hash;
     }
 
     @Override
@@ -81,11 +137,11 @@ public class CachedResourcePath {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         CachedResourcePath that = (CachedResourcePath) o;
-        return Arrays.equals(pathComponents, that.pathComponents);
+        return hash == that.hash && Arrays.equals(pathComponents, that.pathComponents);
     }
 
     public String getFileName() {
-        return pathComponents[pathComponents.length - 1];
+        return getNameAt(pathComponents.length - 1);
     }
 
     public int getNameCount() {
@@ -93,13 +149,17 @@ public class CachedResourcePath {
     }
 
     public String getNameAt(int i) {
+        return PathComponentPool.get(pathComponents[i]);
+    }
+
+    int getComponentId(int i) {
         return pathComponents[i];
     }
 
     public String getFullPath(int startIndex) {
         StringBuilder sb = new StringBuilder();
         for(int i = startIndex; i < pathComponents.length; i++) {
-            sb.append(pathComponents[i]);
+            sb.append(getNameAt(i));
             if(i != (pathComponents.length - 1))
                 sb.append('/');
         }
@@ -4,86 +4,207 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.mojang.datafixers.util.Pair;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import com.google.common.util.concurrent.Uninterruptibles;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.packs.PackType;
 import org.embeddedt.modernfix.ModernFix;
 import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
 import org.embeddedt.modernfix.util.PackTypeHelper;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * The core of the resource pack cache system.
  *
- * Using a dedicated set and also separate lists is important; testing without this showed a huge performance
+ * Using a dedicated set and also separate listings is important; testing without this showed a huge performance
  * drop.
  */
 public class PackResourcesCacheEngine {
     private static final Joiner SLASH_JOINER = Joiner.on('/');
 
     private final Map<PackType, Set<String>> namespacesByType;
-    private final Set<CachedResourcePath> containedPaths;
-    private final EnumMap<PackType, Map<String, List<CachedResourcePath>>> resourceListings;
+    private final ResourcePathSet containedPaths;
+    private final EnumMap<PackType, Map<String, ResourcePathTrie>> resourceListings;
     private volatile boolean cacheGenerationFlag = false;
-    private List<Runnable> cacheGenerationTasks = new ArrayList<>();
+    private CompletableFuture<Void> cacheGenerationFuture;
+    private List<NamespaceRoot> namespaceRoots = new ArrayList<>();
     private Path debugPath;
+    private PackResourcesIndexCache indexCache;
 
     public PackResourcesCacheEngine(Function<PackType, Set<String>> namespacesRetriever, BiFunction<PackType, String, Path> basePathRetriever) {
+        this(namespacesRetriever, basePathRetriever, null);
+    }
+
+    /**
+     * @param archive the jar file backing this pack, used to persist the cache between launches. May be null.
+     */
+    public PackResourcesCacheEngine(Function<PackType, Set<String>> namespacesRetriever, BiFunction<PackType, String, Path> basePathRetriever, @Nullable Path archive) {
+        this.indexCache = PackResourcesIndexCache.forArchive(archive);
         this.namespacesByType = new EnumMap<>(PackType.class);
         for(PackType type : PackType.values()) {
             if(!PackTypeHelper.isVanillaPackType(type))
                 continue;
             this.namespacesByType.put(type, namespacesRetriever.apply(type));
         }
-        this.containedPaths = new ObjectOpenHashSet<>();
+        this.containedPaths = new ResourcePathSet();
         this.resourceListings = new EnumMap<>(PackType.class);
         // used for log message
         this.debugPath = basePathRetriever.apply(PackType.CLIENT_RESOURCES, "minecraft").toAbsolutePath();
         for(PackType type : PackType.values()) {
             Collection<String> namespaces = PackTypeHelper.isVanillaPackType(type) ? this.namespacesByType.get(type) : namespacesRetriever.apply(type);
-            Collection<Pair<String, Path>> namespacedRoots = namespaces.stream().map(s -> Pair.of(s, basePathRetriever.apply(type, s).toAbsolutePath())).collect(Collectors.toList());
-            cacheGenerationTasks.add(() -> {
-                ImmutableMap.Builder<String, List<CachedResourcePath>> packTypedMap = ImmutableMap.builder();
-                for(Pair<String, Path> pair : namespacedRoots) {
-                    try {
-                        ImmutableList.Builder<CachedResourcePath> namespacedList = ImmutableList.builder();
-                        String namespace = pair.getFirst();
-                        Path root = pair.getSecond();
-                        String[] prefix = new String[] { type.getDirectory(), namespace };
-                        try (Stream<Path> stream = Files.walk(root)) {
-                            stream
-                                    .map(path -> root.relativize(path.toAbsolutePath()))
-                                    .filter(PackResourcesCacheEngine::isValidCachedResourcePath)
-                                    .forEach(path -> {
-                                        CachedResourcePath cachedPath = new CachedResourcePath(prefix, path);
-                                        synchronized (this.containedPaths) {
-                                            this.containedPaths.add(cachedPath);
-                                        }
-                                        if(!cachedPath.getFileName().endsWith(".mcmeta"))
-                                            namespacedList.add(cachedPath);
-                                    });
-                        }
-                        packTypedMap.put(namespace, namespacedList.build());
-                    } catch(IOException ignored) {
-                    }
-                }
-                synchronized (this.resourceListings) {
-                    this.resourceListings.put(type, packTypedMap.build());
+            for(String namespace : namespaces) {
+                this.namespaceRoots.add(new NamespaceRoot(type, namespace, basePathRetriever.apply(type, namespace).toAbsolutePath()));
+            }
+        }
+    }
+
+    private static class NamespaceRoot {
+        final PackType type;
+        final String namespace;
+        final Path root;
+
+        NamespaceRoot(PackType type, String namespace, Path root) {
+            this.type = type;
+            this.namespace = namespace;
+            this.root = root;
+        }
+
+        /**
+         * Walk this namespace. Each namespace is walked independently, so that several can be walked in parallel.
+         */
+        NamespaceListing walk() {
+            String[] prefix = new String[] { type.getDirectory(), namespace };
+            List<CachedResourcePath> paths = new ArrayList<>();
+            ResourcePathTrie.Builder namespacedTrie = new ResourcePathTrie.Builder(2);
+            try (Stream<Path> stream = Files.walk(root)) {
+                stream
+                        .map(path -> root.relativize(path.toAbsolutePath()))
+                        .filter(PackResourcesCacheEngine::isValidCachedResourcePath)
+                        .forEach(path -> {
+                            CachedResourcePath cachedPath = new CachedResourcePath(prefix, path);
+                            paths.add(cachedPath);
+                            if(!cachedPath.getFileName().endsWith(".mcmeta"))
+                                namespacedTrie.add(cachedPath);
+                        });
+            } catch(IOException e) {
+                return null;
+            }
+            return new NamespaceListing(this, paths, namespacedTrie.build());
+        }
+    }
+
+    private static class NamespaceListing {
+        final NamespaceRoot root;
+        final List<CachedResourcePath> paths;
+        final ResourcePathTrie trie;
+
+        NamespaceListing(NamespaceRoot root, List<CachedResourcePath> paths, ResourcePathTrie trie) {
+            this.root = root;
+            this.paths = paths;
+            this.trie = trie;
+        }
+    }
+
+    /**
+     * @return every path that was found, for saving to the index
+     */
+    private List<CachedResourcePath> generateFromFilesystem() {
+        NamespaceListing[] walkedListings = this.walkNamespaces();
+        Map<PackType, ImmutableMap.Builder<String, ResourcePathTrie>> listingBuilders = new EnumMap<>(PackType.class);
+        for(PackType type : PackType.values()) {
+            listingBuilders.put(type, ImmutableMap.builder());
+        }
+        List<NamespaceListing> listings = new ArrayList<>(walkedListings.length);
+        int totalPaths = 0;
+        for(NamespaceListing listing : walkedListings) {
+            if(listing == null) {
+                // never persist a partial listing
+                this.indexCache = null;
+                continue;
+            }
+            listings.add(listing);
+            totalPaths += listing.paths.size();
+        }
+        this.containedPaths.ensureCapacity(totalPaths);
+        List<CachedResourcePath> allPaths = new ArrayList<>(totalPaths);
+        for(NamespaceListing listing : listings) {
+            for(CachedResourcePath path : listing.paths) {
+                if(this.containedPaths.add(path))
+                    allPaths.add(path);
+            }
+            listingBuilders.get(listing.root.type).put(listing.root.namespace, listing.trie);
+        }
+        listingBuilders.forEach((type, builder) -> this.resourceListings.put(type, builder.build()));
+        return allPaths;
+    }
+
+    /**
+     * Walk every namespace. The calling task claims and walks namespaces itself, while helper tasks on the reload
+     * executor claim the others if they get to run. The caller therefore only ever waits for walks that are already
+     * running, and never for a queued task, even when it runs on a busy executor thread itself.
+     * @return the listing of each namespace root, or null for those that could not be walked
+     */
+    private NamespaceListing[] walkNamespaces() {
+        List<NamespaceRoot> roots = this.namespaceRoots;
+        NamespaceListing[] listings = new NamespaceListing[roots.size()];
+        AtomicInteger nextRoot = new AtomicInteger();
+        CountDownLatch remainingWalks = new CountDownLatch(roots.size());
+        Runnable worker = () -> {
+            int i;
+            while((i = nextRoot.getAndIncrement()) < roots.size()) {
+                try {
+                    listings[i] = roots.get(i).walk();
+                } catch(RuntimeException e) {
+                    ModernFix.LOGGER.error("Error walking {}", roots.get(i).root, e);
+                } finally {
+                    remainingWalks.countDown();
                 }
-            });
+            }
+        };
+        int helpers = Math.min(roots.size() - 1, Runtime.getRuntime().availableProcessors() - 1);
+        Executor executor = ModernFix.resourceReloadExecutor();
+        for(int i = 0; i < helpers; i++) {
+            executor.execute(worker);
+        }
+        worker.run();
+        Uninterruptibles.awaitUninterruptibly(remainingWalks);
+        return listings;
+    }
+
+    private void populateFromIndex(List<CachedResourcePath> indexedPaths) {
+        Map<String, PackType> typesByDirectory = new HashMap<>();
+        Map<PackType, Map<String, ResourcePathTrie.Builder>> listingBuilders = new EnumMap<>(PackType.class);
+        for(PackType type : PackType.values()) {
+            typesByDirectory.put(type.getDirectory(), type);
+            listingBuilders.put(type, new HashMap<>());
         }
-        cacheGenerationTasks.add(() -> {
-            ((ObjectOpenHashSet<CachedResourcePath>)this.containedPaths).trim();
+        for(CachedResourcePath cachedPath : indexedPaths) {
+            if(cachedPath.getNameCount() < 3)
+                continue;
+            PackType type = typesByDirectory.get(cachedPath.getNameAt(0));
+            if(type == null)
+                continue;
+            this.containedPaths.add(cachedPath);
+            if(!cachedPath.getFileName().endsWith(".mcmeta"))
+                listingBuilders.get(type).computeIfAbsent(cachedPath.getNameAt(1), k -> new ResourcePathTrie.Builder(2)).add(cachedPath);
+        }
+        listingBuilders.forEach((type, builders) -> {
+            ImmutableMap.Builder<String, ResourcePathTrie> packTypedMap = ImmutableMap.builder();
+            builders.forEach((namespace, builder) -> packTypedMap.put(namespace, builder.build()));
+            this.resourceListings.put(type, packTypedMap.build());
         });
     }
 
@@ -111,21 +232,57 @@ public class PackResourcesCacheEngine {
 
     private void doGenerateCache() {
         Stopwatch watch = Stopwatch.createStarted();
-        for(Runnable r : this.cacheGenerationTasks) {
-            r.run();
+        List<CachedResourcePath> indexedPaths = this.indexCache != null ? this.indexCache.load() : null;
+        if(indexedPaths != null) {
+            this.populateFromIndex(indexedPaths);
+        } else {
+            List<CachedResourcePath> allPaths = this.generateFromFilesystem();
+            if(this.indexCache != null)
+                this.indexCache.save(allPaths);
         }
+        this.containedPaths.trim();
         watch.stop();
-        ModernFix.LOGGER.debug("Generated cache for {} in {}", debugPath, watch);
+        ModernFix.LOGGER.debug("{} cache for {} in {}", indexedPaths != null ? "Loaded" : "Generated", debugPath, watch);
         debugPath = null;
-        cacheGenerationTasks = ImmutableList.of();
+        namespaceRoots = ImmutableList.of();
+        indexCache = null;
     }
 
+    /**
+     * Wait for the cache to be available. The first caller generates it, everyone else waits for that to finish and
+     * gets the same exception if it failed.
+     */
     private void awaitLoad() {
         if(!this.cacheGenerationFlag) {
+            CompletableFuture<Void> future;
+            boolean shouldGenerate = false;
             synchronized (this) {
-                if(!this.cacheGenerationFlag) {
+                future = this.cacheGenerationFuture;
+                if(future == null) {
+                    future = new CompletableFuture<>();
+                    this.cacheGenerationFuture = future;
+                    shouldGenerate = true;
+                }
+            }
+            if(shouldGenerate) {
+                try {
                     this.doGenerateCache();
                     this.cacheGenerationFlag = true;
+                    future.complete(null);
+                } catch(RuntimeException | Error e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                }
+            } else {
+                try {
+                    future.join();
+                } catch(CompletionException e) {
+                    Throwable cause = e.getCause();
+                    if(cause instanceof RuntimeException)
+                        throw (RuntimeException)cause;
+                    if(cause instanceof Error)
+                        throw (Error)cause;
+                    throw e;
                 }
             }
         }
@@ -133,7 +290,7 @@ public class PackResourcesCacheEngine {
 
     public boolean hasResource(String path) {
         awaitLoad();
-        return this.containedPaths.contains(new CachedResourcePath(path));
+        return this.containedPaths.contains(path);
     }
 
     public boolean hasResource(String[] paths) {
@@ -145,22 +302,11 @@ public class PackResourcesCacheEngine {
         if(!PackTypeHelper.isVanillaPackType(type))
             throw new IllegalArgumentException("Only vanilla PackTypes are supported");
         awaitLoad();
-        List<CachedResourcePath> paths = resourceListings.get(type).getOrDefault(resourceNamespace, Collections.emptyList());
-        if(paths.isEmpty())
+        ResourcePathTrie paths = resourceListings.get(type).get(resourceNamespace);
+        if(paths == null || paths == ResourcePathTrie.EMPTY)
             return Collections.emptyList();
-        String testPath = pathIn.endsWith("/") ? pathIn : (pathIn + "/");
         ArrayList<ResourceLocation> resources = new ArrayList<>();
-        for(CachedResourcePath cachePath : paths) {
-            if((cachePath.getNameCount() - 2) > maxDepth)
-                continue;
-            String fullPath = cachePath.getFullPath(2);
-            if(!fullPath.startsWith(testPath))
-                continue;
-            if(!filter.test(cachePath.getFileName()))
-                continue;
-            ResourceLocation foundResource = new ResourceLocation(resourceNamespace, fullPath);
-            resources.add(foundResource);
-        }
+        paths.collect(resourceNamespace, pathIn, maxDepth, filter, resources);
         return resources;
     }
 
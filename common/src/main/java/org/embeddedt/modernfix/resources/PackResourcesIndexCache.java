@@ -0,0 +1,214 @@
+package org.embeddedt.modernfix.resources;
+
+import com.google.common.hash.Hashing;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.embeddedt.modernfix.ModernFix;
+import org.embeddedt.modernfix.core.ModernFixMixinPlugin;
+import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persists the set of paths contained in a mod archive between launches, so the cache engine does not need
+ * to walk an unchanged jar again.
+ * <p></p>
+ * Each archive gets its own index file, keyed by the absolute path of the archive and validated against its size
+ * and modification time. Updating a single mod therefore only causes that mod to be rescanned. Directories are
+ * never indexed, as their modification time says nothing about the files inside them.
+ */
+public class PackResourcesIndexCache {
+    private static final int MAGIC = 0x4d465049; /* MFPI */
+    private static final int VERSION = 1;
+    private static final int HEADER_FIXED_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    private static final boolean ENABLED = ModernFixMixinPlugin.instance.isOptionEnabled("perf.resourcepacks.persistent_index.PackResourcesIndexCache");
+    private static final Path INDEX_FOLDER = ModernFixPlatformHooks.INSTANCE.getGameDirectory().resolve("modernfix").resolve("packIndexV1");
+
+    private final String archivePath;
+    private final Path indexFile;
+    private final long archiveSize;
+    private final long archiveModified;
+
+    private PackResourcesIndexCache(String archivePath, Path indexFile, long archiveSize, long archiveModified) {
+        this.archivePath = archivePath;
+        this.indexFile = indexFile;
+        this.archiveSize = archiveSize;
+        this.archiveModified = archiveModified;
+    }
+
+    /**
+     * Create an index handle for the given archive.
+     * @param archive the jar file backing the pack, or null if there is none
+     * @return a handle, or null if the archive cannot be indexed
+     */
+    @Nullable
+    public static PackResourcesIndexCache forArchive(@Nullable Path archive) {
+        if(!ENABLED || archive == null)
+            return null;
+        try {
+            archive = archive.toAbsolutePath();
+            BasicFileAttributes attributes = Files.readAttributes(archive, BasicFileAttributes.class);
+            if(!attributes.isRegularFile())
+                return null;
+            String archivePath = archive.toString();
+            String key = Hashing.murmur3_128().hashString(archivePath, StandardCharsets.UTF_8).toString();
+            return new PackResourcesIndexCache(archivePath, INDEX_FOLDER.resolve(key + ".bin"), attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch(IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Locate the archive on the default filesystem that contains the given pack root, if there is one.
+     */
+    @Nullable
+    public static Path findArchive(Path packRoot) {
+        if(packRoot.getFileSystem() == FileSystems.getDefault())
+            return null;
+        URI uri = packRoot.toUri();
+        if(!"jar".equals(uri.getScheme()))
+            return null;
+        String spec = uri.getRawSchemeSpecificPart();
+        int separator = spec.indexOf("!/");
+        if(separator >= 0)
+            spec = spec.substring(0, separator);
+        try {
+            URI archiveUri = new URI(spec);
+            if(!"file".equals(archiveUri.getScheme()))
+                return null;
+            return Paths.get(archiveUri);
+        } catch(URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the stored index for this archive.
+     * @return the list of paths, or null if there is no valid index
+     */
+    @Nullable
+    public List<CachedResourcePath> load() {
+        if(!Files.isRegularFile(indexFile))
+            return null;
+        try(FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            byte[] expectedPath = archivePath.getBytes(StandardCharsets.UTF_8);
+            /* read the header normally, so stale files are never mapped and can be replaced right away */
+            ByteBuffer header = ByteBuffer.allocate(HEADER_FIXED_SIZE + expectedPath.length);
+            while(header.hasRemaining()) {
+                if(channel.read(header) < 0)
+                    return null;
+            }
+            header.flip();
+            if(header.getInt() != MAGIC || header.getInt() != VERSION)
+                return null;
+            if(header.getLong() != archiveSize || header.getLong() != archiveModified)
+                return null;
+            if(header.getInt() != expectedPath.length)
+                return null;
+            for(byte b : expectedPath) {
+                if(header.get() != b)
+                    return null;
+            }
+            long bodyStart = header.limit();
+            MappedByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, bodyStart, channel.size() - bodyStart);
+            return readBody(body);
+        } catch(IOException | RuntimeException e) {
+            ModernFix.LOGGER.warn("Failed to read resource index for {}, it will be regenerated", archivePath, e);
+            return null;
+        }
+    }
+
+    private static List<CachedResourcePath> readBody(ByteBuffer body) {
+        int stringCount = body.getInt();
+        int[] componentIds = new int[stringCount];
+        byte[] scratch = new byte[256];
+        for(int i = 0; i < stringCount; i++) {
+            int len = body.getShort() & 0xFFFF;
+            if(scratch.length < len)
+                scratch = new byte[len];
+            body.get(scratch, 0, len);
+            componentIds[i] = PathComponentPool.intern(new String(scratch, 0, len, StandardCharsets.UTF_8));
+        }
+        int pathCount = body.getInt();
+        List<CachedResourcePath> paths = new ObjectArrayList<>(pathCount);
+        for(int i = 0; i < pathCount; i++) {
+            int[] components = new int[body.get() & 0xFF];
+            for(int j = 0; j < components.length; j++) {
+                components[j] = componentIds[body.getInt()];
+            }
+            paths.add(new CachedResourcePath(components));
+        }
+        if(body.hasRemaining())
+            throw new IllegalStateException("Trailing data in index");
+        return paths;
+    }
+
+    /**
+     * Write a new index for this archive, replacing any existing one.
+     */
+    public void save(Collection<CachedResourcePath> paths) {
+        Object2IntOpenHashMap<String> stringIds = new Object2IntOpenHashMap<>();
+        stringIds.defaultReturnValue(-1);
+        List<String> strings = new ObjectArrayList<>();
+        for(CachedResourcePath path : paths) {
+            if(path.getNameCount() > 255)
+                return;
+            for(int i = 0; i < path.getNameCount(); i++) {
+                String component = path.getNameAt(i);
+                if(stringIds.getInt(component) == -1) {
+                    if(component.length() > 0xFFFF)
+                        return;
+                    stringIds.put(component, strings.size());
+                    strings.add(component);
+                }
+            }
+        }
+        try {
+            Files.createDirectories(INDEX_FOLDER);
+            Path tempFile = Files.createTempFile(INDEX_FOLDER, "index", ".tmp");
+            try {
+                try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                    byte[] pathBytes = archivePath.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeLong(archiveSize);
+                    out.writeLong(archiveModified);
+                    out.writeInt(pathBytes.length);
+                    out.write(pathBytes);
+                    out.writeInt(strings.size());
+                    for(String s : strings) {
+                        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                        out.writeShort(bytes.length);
+                        out.write(bytes);
+                    }
+                    out.writeInt(paths.size());
+                    for(CachedResourcePath path : paths) {
+                        out.writeByte(path.getNameCount());
+                        for(int i = 0; i < path.getNameCount(); i++) {
+                            out.writeInt(stringIds.getInt(path.getNameAt(i)));
+                        }
+                    }
+                }
+                Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch(IOException e) {
+            ModernFix.LOGGER.warn("Failed to save resource index for {}", archivePath, e);
+        }
+    }
+}
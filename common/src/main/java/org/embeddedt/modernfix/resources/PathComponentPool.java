@@ -0,0 +1,137 @@
+package org.embeddedt.modernfix.resources;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.Arrays;
+
+/**
+ * Global pool that assigns a dense integer ID to every distinct resource path component. This allows paths to be
+ * stored as small int arrays rather than arrays of string references.
+ * <p></p>
+ * Lookups are lock-free and can be performed on a region of a larger string without allocating. Insertions are
+ * serialized. A lookup racing with the insertion of the same component may miss it, which is fine as callers only
+ * look up components of paths that were fully inserted before they were published.
+ */
+public final class PathComponentPool {
+    private static final Object LOCK = new Object();
+
+    private static volatile Entry[] table = new Entry[4096];
+    private static volatile String[] byId = new String[2048];
+    private static int size = 0;
+
+    private static final class Entry {
+        final String value;
+        final int hash;
+        final int id;
+
+        Entry(String value, int hash, int id) {
+            this.value = value;
+            this.hash = hash;
+            this.id = id;
+        }
+    }
+
+    private PathComponentPool() {}
+
+    /**
+     * Same hash as String#hashCode, but for a region of the string.
+     */
+    private static int hashRegion(String s, int start, int end) {
+        int h = 0;
+        for(int i = start; i < end; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    /**
+     * Find the ID of the given component.
+     * @return the ID, or -1 if the component has never been interned
+     */
+    public static int lookup(String s) {
+        return lookup(s.hashCode(), s, 0, s.length());
+    }
+
+    /**
+     * Find the ID of the component located between start (inclusive) and end (exclusive) in the given string.
+     * @return the ID, or -1 if the component has never been interned
+     */
+    public static int lookup(String s, int start, int end) {
+        return lookup(hashRegion(s, start, end), s, start, end);
+    }
+
+    private static int lookup(int hash, String s, int start, int end) {
+        Entry[] t = table;
+        int mask = t.length - 1;
+        int pos = HashCommon.mix(hash) & mask;
+        int len = end - start;
+        Entry e;
+        while((e = t[pos]) != null) {
+            if(e.hash == hash && e.value.length() == len && e.value.regionMatches(0, s, start, len))
+                return e.id;
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the ID for the given component, assigning a new one if needed.
+     */
+    public static int intern(String s) {
+        int hash = s.hashCode();
+        int id = lookup(hash, s, 0, s.length());
+        if(id >= 0)
+            return id;
+        synchronized (LOCK) {
+            id = lookup(hash, s, 0, s.length());
+            if(id >= 0)
+                return id;
+            id = size++;
+            String[] names = byId;
+            if(id >= names.length)
+                names = Arrays.copyOf(names, names.length * 2);
+            names[id] = s;
+            byId = names;
+            Entry[] t = table;
+            if((size * 2) > t.length) {
+                t = rehash(t, t.length * 2);
+            }
+            insert(t, new Entry(s, hash, id));
+            table = t;
+            return id;
+        }
+    }
+
+    private static Entry[] rehash(Entry[] oldTable, int newSize) {
+        Entry[] newTable = new Entry[newSize];
+        for(Entry e : oldTable) {
+            if(e != null)
+                insert(newTable, e);
+        }
+        return newTable;
+    }
+
+    private static void insert(Entry[] t, Entry entry) {
+        int mask = t.length - 1;
+        int pos = HashCommon.mix(entry.hash) & mask;
+        while(t[pos] != null)
+            pos = (pos + 1) & mask;
+        t[pos] = entry;
+    }
+
+    /**
+     * @return the component with the given ID, or null if the ID is invalid
+     */
+    public static String get(int id) {
+        if(id < 0)
+            return null;
+        String[] names = byId;
+        String s = id < names.length ? names[id] : null;
+        if(s == null) {
+            synchronized (LOCK) {
+                s = id < size ? byId[id] : null;
+            }
+        }
+        return s;
+    }
+}
@@ -0,0 +1,305 @@
+package org.embeddedt.modernfix.resources;
+
+import org.embeddedt.modernfix.ModernFix;
+import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only file of keyed records, used by the caches of data derived from resources. The file is tied to a
+ * fingerprint of the resources and is thrown away when that changes.
+ * <p></p>
+ * The file is mapped into memory when opened. New records are buffered on the heap and appended in batches, after
+ * which the file is mapped again and the records are read from the mapping. Once the file reaches its size limit, no
+ * more records are accepted.
+ * <p></p>
+ * Layout: a header of magic, version and fingerprint, followed by records of a length, a UTF key and the payload. A
+ * truncated record (e.g. from a crash during a write) ends the scan on load, and new records are written over it.
+ */
+public class PersistentRecordStore {
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    private final Path file;
+    private final long fingerprint;
+    private final long maxSize;
+    private final int flushThreshold;
+    /**
+     * Maps keys to their payload, which is either in the mapped file or in a record written this session.
+     */
+    private final Map<String, ByteBuffer> records = new ConcurrentHashMap<>();
+    private final List<PendingRecord> pendingWrites = new ArrayList<>();
+    private int pendingBytes;
+    private long writePosition;
+    private volatile boolean full;
+
+    @FunctionalInterface
+    public interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static class PendingRecord {
+        final String key;
+        final byte[] record;
+        final int payloadOffset;
+
+        PendingRecord(String key, byte[] record, int payloadOffset) {
+            this.key = key;
+            this.record = record;
+            this.payloadOffset = payloadOffset;
+        }
+    }
+
+    private PersistentRecordStore(Path file, long fingerprint, long maxSize, int flushThreshold) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        this.maxSize = maxSize;
+        this.flushThreshold = flushThreshold;
+        this.writePosition = HEADER_SIZE;
+    }
+
+    private static PersistentRecordStore load(Path file, int magic, int version, long fingerprint, long maxSize, int flushThreshold) throws IOException {
+        PersistentRecordStore store = new PersistentRecordStore(file, fingerprint, maxSize, flushThreshold);
+        if(Files.isRegularFile(file) && Files.size(file) > HEADER_SIZE && Files.size(file) <= Integer.MAX_VALUE) {
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if(buf.getInt() == magic && buf.getInt() == version && buf.getLong() == fingerprint) {
+                    store.readIndex(buf);
+                    return store;
+                }
+            }
+        }
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(fingerprint);
+        }
+        return store;
+    }
+
+    private void readIndex(ByteBuffer mapped) {
+        ByteBuffer buf = mapped.duplicate();
+        buf.position(HEADER_SIZE);
+        byte[] scratch = new byte[256];
+        while(buf.remaining() >= 4) {
+            int start = buf.position();
+            int length = buf.getInt();
+            if(length <= 2 || length > buf.remaining())
+                break;
+            int keyLength = buf.getShort() & 0xFFFF;
+            if(keyLength + 2 > length)
+                break;
+            if(scratch.length < keyLength)
+                scratch = new byte[keyLength];
+            buf.get(scratch, 0, keyLength);
+            String key = new String(scratch, 0, keyLength, StandardCharsets.UTF_8);
+            int payloadEnd = start + 4 + length;
+            ByteBuffer payload = buf.duplicate();
+            payload.limit(payloadEnd);
+            records.put(key, payload.slice());
+            buf.position(payloadEnd);
+            writePosition = payloadEnd;
+        }
+        full = writePosition >= maxSize;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public boolean contains(String key) {
+        return records.containsKey(key);
+    }
+
+    /**
+     * @return a buffer positioned at the start of the payload, or null if there is no record for the key
+     */
+    @Nullable
+    public ByteBuffer get(String key) {
+        ByteBuffer payload = records.get(key);
+        return payload != null ? payload.duplicate() : null;
+    }
+
+    /**
+     * Add a record, replacing any previous one for the key. The replaced record stays in the file until the store is
+     * rebuilt.
+     * @param sizeHint the expected size of the payload
+     * @return false if the store is full or the payload could not be written
+     */
+    public boolean put(String key, int sizeHint, PayloadWriter writer) {
+        if(full)
+            return false;
+        byte[] record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(sizeHint + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); /* length, filled in below */
+            out.writeUTF(key);
+            writer.write(out);
+            out.flush();
+            record = bytes.toByteArray();
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ByteBuffer.wrap(record).putInt(0, record.length - 4);
+        int payloadOffset = 4 + 2 + key.getBytes(StandardCharsets.UTF_8).length;
+        ByteBuffer payload = ByteBuffer.wrap(record);
+        payload.position(payloadOffset);
+        records.put(key, payload.slice());
+        boolean shouldFlush;
+        synchronized(pendingWrites) {
+            pendingWrites.add(new PendingRecord(key, record, payloadOffset));
+            pendingBytes += record.length;
+            shouldFlush = pendingBytes >= flushThreshold;
+            if((writePosition + pendingBytes) >= maxSize)
+                full = true;
+        }
+        if(shouldFlush)
+            flush();
+        return true;
+    }
+
+    /**
+     * Append the buffered records to the file, then map it again so that they no longer need to be kept on the heap.
+     */
+    public void flush() {
+        List<PendingRecord> toWrite;
+        synchronized(pendingWrites) {
+            if(pendingWrites.isEmpty())
+                return;
+            toWrite = new ArrayList<>(pendingWrites);
+            pendingWrites.clear();
+            pendingBytes = 0;
+        }
+        synchronized(this) {
+            long flushStart = writePosition;
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long[] recordPositions = new long[toWrite.size()];
+                for(int i = 0; i < toWrite.size(); i++) {
+                    recordPositions[i] = writePosition;
+                    ByteBuffer buf = ByteBuffer.wrap(toWrite.get(i).record);
+                    while(buf.hasRemaining()) {
+                        writePosition += channel.write(buf, writePosition);
+                    }
+                }
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, writePosition);
+                for(int i = 0; i < toWrite.size(); i++) {
+                    PendingRecord pending = toWrite.get(i);
+                    ByteBuffer payload = mapped.duplicate();
+                    payload.position((int)recordPositions[i] + pending.payloadOffset);
+                    payload.limit((int)recordPositions[i] + pending.record.length);
+                    // only swap records that were not replaced by a newer one in the meantime
+                    records.computeIfPresent(pending.key, (key, current) -> current.hasArray() && current.array() == pending.record ? payload.slice() : current);
+                }
+            } catch(IOException e) {
+                ModernFix.LOGGER.warn("Failed to write {}", file, e);
+                // forget the records instead of holding them on the heap, the next flush writes over what got through
+                writePosition = flushStart;
+                for(PendingRecord pending : toWrite)
+                    records.computeIfPresent(pending.key, (key, current) -> current.hasArray() && current.array() == pending.record ? null : current);
+            }
+        }
+    }
+
+    /**
+     * Holds the store a cache is currently using, in a versioned folder under {@code modernfix}. Opening a store for a
+     * different fingerprint flushes the previous one, and deletes the files of other fingerprints and the folders of
+     * other versions. The open store is flushed on shutdown.
+     */
+    public static class Slot {
+        private final String name;
+        private final Path parentFolder;
+        private final Path folder;
+        private final int magic, version;
+        private final long maxSize;
+        private final int flushThreshold;
+        private PersistentRecordStore current;
+
+        public Slot(String name, int magic, int version, long maxSize, int flushThreshold) {
+            this.name = name;
+            this.parentFolder = ModernFixPlatformHooks.INSTANCE.getGameDirectory().resolve("modernfix");
+            this.folder = parentFolder.resolve(name + "V" + version);
+            this.magic = magic;
+            this.version = version;
+            // mappings are limited to 2 GB
+            this.maxSize = Math.min(maxSize, Integer.MAX_VALUE / 2);
+            this.flushThreshold = flushThreshold;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                PersistentRecordStore store;
+                synchronized(this) {
+                    store = current;
+                }
+                if(store != null)
+                    store.flush();
+            }, "ModernFix " + name + " flush"));
+        }
+
+        /**
+         * @return the store for the given fingerprint, or null if it could not be opened
+         */
+        @Nullable
+        public synchronized PersistentRecordStore open(long fingerprint) {
+            if(current != null) {
+                if(current.fingerprint == fingerprint)
+                    return current;
+                current.flush();
+                current = null;
+            }
+            Path file = folder.resolve(Long.toHexString(fingerprint) + ".bin");
+            try {
+                Files.createDirectories(folder);
+                deleteStaleFiles(file);
+                current = load(file, magic, version, fingerprint, maxSize, flushThreshold);
+                return current;
+            } catch(IOException | RuntimeException e) {
+                ModernFix.LOGGER.error("Failed to open {}, it will not be used", folder, e);
+                return null;
+            }
+        }
+
+        private void deleteStaleFiles(Path currentFile) {
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*.bin")) {
+                for(Path path : stream) {
+                    if(!path.equals(currentFile))
+                        deleteQuietly(path);
+                }
+            } catch(IOException ignored) {
+            }
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(parentFolder, name + "V*")) {
+                for(Path oldFolder : stream) {
+                    if(oldFolder.equals(folder) || !Files.isDirectory(oldFolder))
+                        continue;
+                    try(DirectoryStream<Path> oldFiles = Files.newDirectoryStream(oldFolder)) {
+                        for(Path path : oldFiles)
+                            deleteQuietly(path);
+                    }
+                    deleteQuietly(oldFolder);
+                }
+            } catch(IOException ignored) {
+            }
+        }
+
+        private static void deleteQuietly(Path path) {
+            try {
+                Files.deleteIfExists(path);
+            } catch(IOException ignored) {
+                // may still be mapped by this process on Windows, try again next time
+            }
+        }
+    }
+}
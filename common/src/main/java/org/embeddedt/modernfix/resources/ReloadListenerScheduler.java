@@ -0,0 +1,253 @@
+package org.embeddedt.modernfix.resources;
+
+import net.minecraft.server.packs.resources.PreparableReloadListener;
+import net.minecraft.server.packs.resources.ResourceManager;
+import net.minecraft.util.profiling.ProfilerFiller;
+import org.embeddedt.modernfix.ModernFix;
+import org.embeddedt.modernfix.util.NamedPreparableResourceListener;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the listeners of one resource reload according to their declared dependencies, instead of the strict
+ * registration order used by vanilla.
+ * <p></p>
+ * Vanilla starts the apply phase of each listener only once the previous listener has finished applying. Listeners
+ * on the whitelist are known not to be observed by any other listener during the reload, so they only wait for every
+ * listener to finish preparing (and for any dependencies they declare), and nothing after them waits for their apply
+ * phase. Some of them can additionally apply on a background thread. Listeners that are not on the whitelist keep the
+ * vanilla ordering relative to each other, plus any dependencies declared for them.
+ * <p></p>
+ * The time each listener spends preparing and applying is recorded and logged once the reload completes.
+ */
+public class ReloadListenerScheduler {
+    private static final boolean LOG_TIMINGS = Boolean.getBoolean("modernfix.logReloadListenerTimings");
+
+    private static final Map<Class<?>, Rule> RULES = new ConcurrentHashMap<>();
+    /**
+     * Extra listener class names to treat as independent, for mod listeners that are known to be safe.
+     */
+    private static final Set<String> EXTRA_INDEPENDENT_LISTENERS = parseClassList(System.getProperty("modernfix.independentReloadListeners"));
+
+    private static class Rule {
+        boolean independent;
+        boolean offThread;
+        final Set<Class<?>> dependencies = new HashSet<>();
+    }
+
+    private final List<Entry> entries;
+    private final Map<Class<?>, List<Entry>> entriesByClass = new HashMap<>();
+    private final AtomicInteger remainingPreparations;
+    private final CompletableFuture<Void> allPrepared = new CompletableFuture<>();
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Mark a listener as independent: it does not wait for the listeners registered before it to apply, and those
+     * registered after it do not wait for it.
+     * @param offThread whether the apply phase is safe to run on the background executor instead of the game thread
+     */
+    public static synchronized void registerIndependent(Class<?> listenerClass, boolean offThread) {
+        Rule rule = RULES.computeIfAbsent(listenerClass, c -> new Rule());
+        rule.independent = true;
+        rule.offThread = offThread;
+    }
+
+    /**
+     * Declare that the apply phase of a listener must run after the apply phase of the given listeners, if they are
+     * part of the same reload. Only needed for dependencies on independent listeners, as other listeners are already
+     * ordered. A listener must never depend on a listener that is not independent and comes after it, as that one
+     * waits for it in turn.
+     */
+    public static synchronized void registerDependency(Class<?> listenerClass, Class<?>... dependencies) {
+        Collections.addAll(RULES.computeIfAbsent(listenerClass, c -> new Rule()).dependencies, dependencies);
+    }
+
+    private static Set<String> parseClassList(String list) {
+        if(list == null || list.trim().isEmpty())
+            return Collections.emptySet();
+        Set<String> names = new HashSet<>();
+        for(String name : list.split(",")) {
+            if(!name.trim().isEmpty())
+                names.add(name.trim());
+        }
+        return names;
+    }
+
+    private static PreparableReloadListener unwrap(PreparableReloadListener listener) {
+        while(listener instanceof NamedPreparableResourceListener)
+            listener = ((NamedPreparableResourceListener)listener).getDelegate();
+        return listener;
+    }
+
+    /**
+     * Find the rule for a listener, checking the enclosing class for anonymous listeners.
+     */
+    private static Rule findRule(Class<?> listenerClass) {
+        for(Class<?> clz = listenerClass; clz != null; clz = clz.getEnclosingClass()) {
+            Rule rule = RULES.get(clz);
+            if(rule != null)
+                return rule;
+            if(EXTRA_INDEPENDENT_LISTENERS.contains(clz.getName())) {
+                rule = new Rule();
+                rule.independent = true;
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wrap the listeners of a reload so they are scheduled by a new scheduler.
+     */
+    public static List<PreparableReloadListener> wrap(List<PreparableReloadListener> listeners) {
+        ReloadListenerScheduler scheduler = new ReloadListenerScheduler(listeners);
+        return Collections.unmodifiableList(scheduler.entries);
+    }
+
+    private ReloadListenerScheduler(List<PreparableReloadListener> listeners) {
+        this.entries = new ArrayList<>(listeners.size());
+        this.remainingPreparations = new AtomicInteger(listeners.size());
+        if(listeners.isEmpty())
+            allPrepared.complete(null);
+        for(PreparableReloadListener listener : listeners) {
+            Class<?> key = unwrap(listener).getClass();
+            Entry entry = new Entry(listener, findRule(key));
+            entries.add(entry);
+            for(Class<?> clz = key; clz != null; clz = clz.getEnclosingClass()) {
+                entriesByClass.computeIfAbsent(clz, c -> new ArrayList<>()).add(entry);
+            }
+        }
+        if(!entries.isEmpty())
+            entries.get(entries.size() - 1).isLast = true;
+        CompletableFuture.allOf(entries.stream().map(e -> e.applied).toArray(CompletableFuture[]::new))
+                .whenComplete((v, t) -> logTimings());
+    }
+
+    private void onPrepared() {
+        if(remainingPreparations.decrementAndGet() == 0)
+            allPrepared.complete(null);
+    }
+
+    private CompletableFuture<Void> getDependencies(Rule rule) {
+        if(rule == null || rule.dependencies.isEmpty())
+            return CompletableFuture.completedFuture(null);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for(Class<?> dependency : rule.dependencies) {
+            for(Entry entry : entriesByClass.getOrDefault(dependency, Collections.emptyList())) {
+                futures.add(entry.applied);
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    private void logTimings() {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong((Entry e) -> e.prepareNanos + e.applyNanos).reversed());
+        if(LOG_TIMINGS) {
+            ModernFix.LOGGER.info("Reload with {} listeners took {} ms", entries.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+            for(Entry entry : sorted) {
+                ModernFix.LOGGER.info(entry.describeTimings());
+            }
+        } else if(ModernFix.LOGGER.isDebugEnabled()) {
+            for(Entry entry : sorted) {
+                ModernFix.LOGGER.debug(entry.describeTimings());
+            }
+        }
+    }
+
+    private class Entry implements PreparableReloadListener {
+        private final PreparableReloadListener delegate;
+        private final Rule rule;
+        /**
+         * Completed once the apply phase of this listener is done, whether or not the reload waits for it directly.
+         */
+        private final CompletableFuture<Void> applied = new CompletableFuture<>();
+        private final AtomicBoolean prepared = new AtomicBoolean();
+        private boolean isLast;
+        private volatile long prepareNanos, applyNanos;
+
+        Entry(PreparableReloadListener delegate, Rule rule) {
+            this.delegate = delegate;
+            this.rule = rule;
+        }
+
+        private boolean isIndependent() {
+            return rule != null && rule.independent;
+        }
+
+        @Override
+        public CompletableFuture<Void> reload(PreparationBarrier stage, ResourceManager resourceManager, ProfilerFiller preparationsProfiler, ProfilerFiller reloadProfiler, Executor backgroundExecutor, Executor gameExecutor) {
+            long start = System.nanoTime();
+            long[] applyStart = new long[1];
+            // completed once the listeners registered before this one have applied, for listeners that keep the vanilla ordering
+            CompletableFuture<Void> orderedAfterPrevious = new CompletableFuture<>();
+            PreparationBarrier barrier = new PreparationBarrier() {
+                @Override
+                public <T> CompletableFuture<T> wait(T value) {
+                    // only count the first call, in case a listener waits on the barrier more than once
+                    if(prepared.compareAndSet(false, true)) {
+                        prepareNanos = System.nanoTime() - start;
+                        onPrepared();
+                    }
+                    CompletableFuture<T> vanillaBarrier = stage.wait(value);
+                    vanillaBarrier.whenComplete((v, t) -> {
+                        if(t != null)
+                            orderedAfterPrevious.completeExceptionally(t);
+                        else
+                            orderedAfterPrevious.complete(null);
+                    });
+                    CompletableFuture<?> ready = isIndependent() ? allPrepared : vanillaBarrier;
+                    return ready.thenCombine(getDependencies(rule), (a, b) -> {
+                        applyStart[0] = System.nanoTime();
+                        return value;
+                    });
+                }
+            };
+            Executor applyExecutor = (rule != null && rule.offThread) ? backgroundExecutor : gameExecutor;
+            CompletableFuture<Void> future;
+            try {
+                future = delegate.reload(barrier, resourceManager, preparationsProfiler, reloadProfiler, backgroundExecutor, applyExecutor);
+            } catch(RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            future.whenComplete((v, t) -> {
+                if(applyStart[0] != 0)
+                    applyNanos = System.nanoTime() - applyStart[0];
+                if(t != null) {
+                    // make sure listeners waiting on this one do not hang
+                    orderedAfterPrevious.completeExceptionally(t);
+                    applied.completeExceptionally(t);
+                } else
+                    applied.complete(null);
+            });
+            if(isIndependent()) {
+                // the next listener only needs to stay ordered after the ones before this listener
+                future = orderedAfterPrevious;
+            }
+            if(isLast) {
+                // the reload is only done once every independent listener has applied too
+                future = future.thenCombine(CompletableFuture.allOf(entries.stream().map(e -> e.applied).toArray(CompletableFuture[]::new)), (a, b) -> null);
+            }
+            return future;
+        }
+
+        @Override
+        public String getName() {
+            return delegate.getName();
+        }
+
+        String describeTimings() {
+            return String.format("%s: prepare %d ms, apply %d ms%s", getName(),
+                    TimeUnit.NANOSECONDS.toMillis(prepareNanos),
+                    TimeUnit.NANOSECONDS.toMillis(applyNanos),
+                    isIndependent() ? (rule.offThread ? " (independent, off-thread)" : " (independent)") : "");
+        }
+    }
+}
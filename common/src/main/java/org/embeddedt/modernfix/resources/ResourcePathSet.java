@@ -0,0 +1,173 @@
+package org.embeddedt.modernfix.resources;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash set of resource paths. Paths are not retained as objects; instead their component IDs
+ * are packed into a single int array as {@code [count, id0, id1, ...]} records, and the table stores record
+ * offsets alongside the cached hashes.
+ * <p></p>
+ * Lookups by string do not allocate. This class is not thread-safe for writes, the cache engine only fills it
+ * before publishing it.
+ */
+public class ResourcePathSet {
+    /** slot value for an empty slot, offsets are stored +1 */
+    private static final int EMPTY = 0;
+
+    private int[] data;
+    private int dataSize;
+    private int[] offsets;
+    private int[] hashes;
+    private int mask;
+    private int size;
+
+    public ResourcePathSet() {
+        this(16);
+    }
+
+    public ResourcePathSet(int expected) {
+        this.data = new int[Math.max(16, expected * 4)];
+        allocateTable(HashCommon.arraySize(Math.max(expected, 4), 0.5f));
+    }
+
+    private void allocateTable(int capacity) {
+        this.offsets = new int[capacity];
+        this.hashes = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void ensureCapacity(int expected) {
+        int needed = HashCommon.arraySize(expected, 0.5f);
+        if(needed > offsets.length)
+            rehash(needed);
+    }
+
+    public boolean add(CachedResourcePath path) {
+        int hash = path.hashCode();
+        int count = path.getNameCount();
+        int pos = HashCommon.mix(hash) & mask;
+        int offset;
+        while((offset = offsets[pos]) != EMPTY) {
+            if(hashes[pos] == hash && matches(offset - 1, path))
+                return false;
+            pos = (pos + 1) & mask;
+        }
+        if(dataSize + count + 1 > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + count + 1));
+        int recordStart = dataSize;
+        data[dataSize++] = count;
+        for(int i = 0; i < count; i++) {
+            data[dataSize++] = path.getComponentId(i);
+        }
+        offsets[pos] = recordStart + 1;
+        hashes[pos] = hash;
+        if(++size * 2 > offsets.length)
+            rehash(offsets.length * 2);
+        return true;
+    }
+
+    private boolean matches(int record, CachedResourcePath path) {
+        int count = path.getNameCount();
+        if(data[record] != count)
+            return false;
+        for(int i = 0; i < count; i++) {
+            if(data[record + 1 + i] != path.getComponentId(i))
+                return false;
+        }
+        return true;
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldOffsets = this.offsets;
+        int[] oldHashes = this.hashes;
+        allocateTable(newCapacity);
+        for(int i = 0; i < oldOffsets.length; i++) {
+            if(oldOffsets[i] != EMPTY) {
+                int pos = HashCommon.mix(oldHashes[i]) & mask;
+                while(offsets[pos] != EMPTY)
+                    pos = (pos + 1) & mask;
+                offsets[pos] = oldOffsets[i];
+                hashes[pos] = oldHashes[i];
+            }
+        }
+    }
+
+    /**
+     * Shrink the backing arrays to the minimum size needed for the current contents.
+     */
+    public void trim() {
+        data = Arrays.copyOf(data, dataSize);
+        int needed = HashCommon.arraySize(Math.max(size, 4), 0.5f);
+        if(needed < offsets.length)
+            rehash(needed);
+    }
+
+    public boolean contains(CachedResourcePath path) {
+        int hash = path.hashCode();
+        int pos = HashCommon.mix(hash) & mask;
+        int offset;
+        while((offset = offsets[pos]) != EMPTY) {
+            if(hashes[pos] == hash && matches(offset - 1, path))
+                return true;
+            pos = (pos + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Check if the given slash-separated path is present. Empty components are ignored, the same way
+     * {@link CachedResourcePath#CachedResourcePath(String)} does.
+     */
+    public boolean contains(String path) {
+        int len = path.length();
+        int hash = 1;
+        int count = 0;
+        int start = 0;
+        while(start <= len) {
+            int end = path.indexOf('/', start);
+            if(end == -1)
+                end = len;
+            if(end > start) {
+                int id = PathComponentPool.lookup(path, start, end);
+                if(id < 0)
+                    return false;
+                hash = 31 * hash + id;
+                count++;
+            }
+            start = end + 1;
+        }
+        int pos = HashCommon.mix(hash) & mask;
+        int offset;
+        while((offset = offsets[pos]) != EMPTY) {
+            if(hashes[pos] == hash && matches(offset - 1, path, count))
+                return true;
+            pos = (pos + 1) & mask;
+        }
+        return false;
+    }
+
+    private boolean matches(int record, String path, int count) {
+        if(data[record] != count)
+            return false;
+        int len = path.length();
+        int start = 0;
+        int i = record + 1;
+        while(start <= len) {
+            int end = path.indexOf('/', start);
+            if(end == -1)
+                end = len;
+            if(end > start) {
+                if(data[i++] != PathComponentPool.lookup(path, start, end))
+                    return false;
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,154 @@
+package org.embeddedt.modernfix.resources;
+
+import net.minecraft.resources.ResourceLocation;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Immutable index of the resources within a single namespace, organized by path component. Prefix queries
+ * only visit the matching subtree, and children are kept in sorted arrays so that looking up a prefix
+ * does not need to split it into strings first.
+ */
+public class ResourcePathTrie {
+    public static final ResourcePathTrie EMPTY = new ResourcePathTrie(new Node(null, new String[0], new Node[0]));
+
+    private final Node root;
+
+    private ResourcePathTrie(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Collect all resources below the given folder that pass the filter, mirroring the semantics of
+     * PackResources#getResources.
+     * @param namespace the namespace the resulting locations are created in
+     * @param pathIn the folder to search in
+     * @param maxDepth the maximum number of path components below the namespace a resource may have
+     * @param filter filter applied to the file name of each resource
+     * @param output collection to add found resources to
+     */
+    public void collect(String namespace, String pathIn, int maxDepth, Predicate<String> filter, Collection<ResourceLocation> output) {
+        int end = pathIn.length();
+        if(end > 0 && pathIn.charAt(end - 1) == '/')
+            end--;
+        Node node = this.root;
+        int depth = 0;
+        int start = 0;
+        while(start <= end) {
+            int slash = pathIn.indexOf('/', start);
+            if(slash == -1 || slash > end)
+                slash = end;
+            // empty components can never match a cached path
+            if(slash == start)
+                return;
+            node = node.getChild(pathIn, start, slash);
+            if(node == null)
+                return;
+            depth++;
+            start = slash + 1;
+        }
+        if(depth >= maxDepth)
+            return;
+        for(Node child : node.children) {
+            collectChildren(child, depth + 1, namespace, maxDepth, filter, output);
+        }
+    }
+
+    private static void collectChildren(Node node, int depth, String namespace, int maxDepth, Predicate<String> filter, Collection<ResourceLocation> output) {
+        if(node.path != null && filter.test(node.path.getFileName()))
+            output.add(new ResourceLocation(namespace, node.path.getFullPath(2)));
+        if(depth < maxDepth) {
+            for(Node child : node.children) {
+                collectChildren(child, depth + 1, namespace, maxDepth, filter, output);
+            }
+        }
+    }
+
+    private static class Node {
+        /** the listed path this node represents, or null if it only exists as a parent */
+        final CachedResourcePath path;
+        /** sorted */
+        final String[] childNames;
+        final Node[] children;
+
+        Node(CachedResourcePath path, String[] childNames, Node[] children) {
+            this.path = path;
+            this.childNames = childNames;
+            this.children = children;
+        }
+
+        Node getChild(String s, int start, int end) {
+            int low = 0, high = childNames.length - 1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareRegion(childNames[mid], s, start, end);
+                if(cmp < 0)
+                    low = mid + 1;
+                else if(cmp > 0)
+                    high = mid - 1;
+                else
+                    return children[mid];
+            }
+            return null;
+        }
+
+        /**
+         * Compares a string to a region of another string, with the same ordering as String#compareTo.
+         */
+        private static int compareRegion(String a, String b, int start, int end) {
+            int bLen = end - start;
+            int lim = Math.min(a.length(), bLen);
+            for(int i = 0; i < lim; i++) {
+                char c1 = a.charAt(i), c2 = b.charAt(start + i);
+                if(c1 != c2)
+                    return c1 - c2;
+            }
+            return a.length() - bLen;
+        }
+    }
+
+    public static class Builder {
+        private final int startIndex;
+        private final MutableNode root = new MutableNode();
+
+        /**
+         * @param startIndex the number of leading path components (usually the pack type directory and namespace)
+         *                   that are shared by all paths and should be skipped
+         */
+        public Builder(int startIndex) {
+            this.startIndex = startIndex;
+        }
+
+        public Builder add(CachedResourcePath path) {
+            MutableNode node = this.root;
+            for(int i = startIndex; i < path.getNameCount(); i++) {
+                node = node.children.computeIfAbsent(path.getNameAt(i), k -> new MutableNode());
+            }
+            if(node != this.root)
+                node.path = path;
+            return this;
+        }
+
+        public ResourcePathTrie build() {
+            if(this.root.children.isEmpty())
+                return EMPTY;
+            return new ResourcePathTrie(this.root.freeze());
+        }
+    }
+
+    private static class MutableNode {
+        CachedResourcePath path;
+        final Map<String, MutableNode> children = new HashMap<>();
+
+        Node freeze() {
+            String[] names = children.keySet().toArray(new String[0]);
+            Arrays.sort(names);
+            Node[] frozenChildren = new Node[names.length];
+            for(int i = 0; i < names.length; i++) {
+                frozenChildren[i] = children.get(names[i]).freeze();
+            }
+            return new Node(path, names, frozenChildren);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.embeddedt.modernfix.resources;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import net.minecraft.server.packs.AbstractPackResources;
+import net.minecraft.server.packs.PackResources;
+import net.minecraft.server.packs.VanillaPackResources;
+import net.minecraft.server.packs.resources.ResourceManager;
+import org.embeddedt.modernfix.ModernFix;
+import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Fingerprints the mod list and resource packs, so that caches of data derived from resources can tell when they are
+ * outdated.
+ */
+public class ResourcesFingerprint {
+    private static List<PackResources> lastFingerprintedPacks;
+    private static OptionalLong lastFingerprint;
+
+    /**
+     * Hash the game version, mod list and resource packs, so that caches of data derived from resources can be
+     * thrown away when any of them change. Archive packs are identified by their size and modification time, and
+     * folder packs by those of every file in them, as editing a file does not change the folder itself.
+     * @return the fingerprint, or empty if a pack's contents cannot be tracked (e.g. mods loaded from a folder in a
+     * development environment)
+     */
+    public static synchronized OptionalLong compute(ResourceManager manager) {
+        List<PackResources> packs = manager.listPacks().collect(Collectors.toList());
+        // packs are reopened on every reload, so the same pack objects mean nothing could have changed
+        if(lastFingerprintedPacks != null && lastFingerprintedPacks.size() == packs.size()) {
+            boolean samePacks = true;
+            for(int i = 0; i < packs.size(); i++) {
+                if(packs.get(i) != lastFingerprintedPacks.get(i)) {
+                    samePacks = false;
+                    break;
+                }
+            }
+            if(samePacks)
+                return lastFingerprint;
+        }
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(ModernFixPlatformHooks.INSTANCE.getVersionString(), StandardCharsets.UTF_8);
+        for(Map.Entry<String, String> mod : new TreeMap<>(ModernFixPlatformHooks.INSTANCE.getModVersions()).entrySet()) {
+            hasher.putString(mod.getKey(), StandardCharsets.UTF_8);
+            hasher.putString(mod.getValue(), StandardCharsets.UTF_8);
+        }
+        OptionalLong fingerprint = null;
+        for(PackResources pack : packs) {
+            hasher.putString(pack.getName(), StandardCharsets.UTF_8);
+            File packFile = getPackFile(pack);
+            if(packFile != null) {
+                hasher.putString(packFile.getAbsolutePath(), StandardCharsets.UTF_8);
+                if(packFile.isDirectory()) {
+                    try {
+                        hasher.putLong(hashFolderContents(packFile.toPath()));
+                    } catch(IOException | UncheckedIOException e) {
+                        ModernFix.LOGGER.warn("Couldn't scan resource pack folder {}, resource caches will not be used", packFile, e);
+                        fingerprint = OptionalLong.empty();
+                        break;
+                    }
+                } else {
+                    hasher.putLong(packFile.length());
+                    hasher.putLong(packFile.lastModified());
+                }
+            } else if(ModernFixPlatformHooks.INSTANCE.isDevEnv() && !(pack instanceof VanillaPackResources)) {
+                // could be a mod loaded from a folder, which the mod versions say nothing about
+                fingerprint = OptionalLong.empty();
+                break;
+            }
+        }
+        if(fingerprint == null)
+            fingerprint = OptionalLong.of(hasher.hash().asLong());
+        lastFingerprintedPacks = packs;
+        lastFingerprint = fingerprint;
+        return fingerprint;
+    }
+
+    /**
+     * Combine the path, size and modification time of every file under the folder's assets (or the whole folder, if
+     * it has none), independently of the order they are listed in.
+     */
+    private static long hashFolderContents(Path folder) throws IOException {
+        Path assets = folder.resolve("assets");
+        Path root = Files.isDirectory(assets) ? assets : folder;
+        long combined = 0;
+        try(Stream<Path> files = Files.walk(root)) {
+            Iterator<Path> iterator = files.iterator();
+            while(iterator.hasNext()) {
+                Path path = iterator.next();
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if(!attributes.isRegularFile())
+                    continue;
+                combined += Hashing.murmur3_128().newHasher()
+                        .putString(root.relativize(path).toString(), StandardCharsets.UTF_8)
+                        .putLong(attributes.size())
+                        .putLong(attributes.lastModifiedTime().toMillis())
+                        .hash().asLong();
+            }
+        }
+        return combined;
+    }
+
+    @Nullable
+    private static File getPackFile(PackResources pack) {
+        return pack instanceof AbstractPackResources ? ((AbstractPackResources)pack).file : null;
+    }
+}
@@ -1,12 +1,16 @@
 package org.embeddedt.modernfix.structure;
 
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mojang.datafixers.DataFixer;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import net.minecraft.SharedConstants;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.NbtIo;
 import net.minecraft.nbt.NbtUtils;
 import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.packs.resources.Resource;
+import net.minecraft.server.packs.resources.ResourceManager;
 import net.minecraft.util.datafix.DataFixTypes;
 import net.minecraft.world.level.levelgen.structure.templatesystem.StructureTemplate;
 import org.embeddedt.modernfix.ModernFix;
@@ -14,24 +18,64 @@ import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
 import org.embeddedt.modernfix.util.FileUtil;
 
 import java.io.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class CachingStructureManager {
-    private static ThreadLocal<MessageDigest> digestThreadLocal = ThreadLocal.withInitial(() -> {
+    private static final StructureCacheStore STRUCTURE_CACHE = openCache();
+
+    private static StructureCacheStore openCache() {
+        Path cacheFolder = ModernFixPlatformHooks.INSTANCE.getGameDirectory().resolve("modernfix");
+        // the one-file-per-structure cache was replaced by the single store
+        Path oldCacheFolder = cacheFolder.resolve("structureCacheV1");
+        if(Files.isDirectory(oldCacheFolder)) {
+            try {
+                FileUtil.deleteRecursively(oldCacheFolder);
+            } catch(IOException e) {
+                ModernFix.LOGGER.warn("Couldn't delete old structure cache", e);
+            }
+        }
         try {
-            return MessageDigest.getInstance("SHA-256");
-        } catch(NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            StructureCacheStore store = StructureCacheStore.open(cacheFolder.resolve("structureCacheV2").resolve("structures.bin"));
+            Runtime.getRuntime().addShutdownHook(new Thread(store::flush, "ModernFix structure cache flush"));
+            return store;
+        } catch(IOException | RuntimeException e) {
+            ModernFix.LOGGER.error("Couldn't open structure cache, upgraded structures will not be cached", e);
+            return null;
         }
-    });
-    private static final File STRUCTURE_CACHE_FOLDER = FileUtil.childFile(ModernFixPlatformHooks.INSTANCE.getGameDirectory().resolve("modernfix").resolve("structureCacheV1").toFile());
+    }
+
+    /**
+     * Upgrades currently running, by cache file name. Threads needing a structure that is already being upgraded
+     * wait for that upgrade instead of running DFU on it again.
+     */
+    private static final ConcurrentHashMap<String, CompletableFuture<CompoundTag>> UPGRADES_IN_PROGRESS = new ConcurrentHashMap<>();
+
+    private static final int STRUCTURES_PER_TASK = 16;
+    private static final int UPGRADE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final ThreadPoolExecutor UPGRADE_EXECUTOR = new ThreadPoolExecutor(UPGRADE_THREADS, UPGRADE_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("ModernFix structure upgrader %d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
 
     static {
-        STRUCTURE_CACHE_FOLDER.mkdirs();
+        UPGRADE_EXECUTOR.allowCoreThreadTimeOut(true);
     }
 
+    /**
+     * Incremented whenever a new pre-pass starts, so that tasks from a pre-pass over an outdated resource manager
+     * stop early.
+     */
+    private static final AtomicInteger PREPASS_GENERATION = new AtomicInteger();
+    private static final AtomicInteger upgradedCount = new AtomicInteger();
+
     public static StructureTemplate readStructure(ResourceLocation location, DataFixer datafixer, InputStream stream) throws IOException {
         CompoundTag tag = readStructureTag(location, datafixer, stream);
         StructureTemplate template = new StructureTemplate();
@@ -39,15 +83,7 @@ public class CachingStructureManager {
         return template;
     }
 
-    private static String encodeHex(byte[] byteArray) {
-        StringBuilder sb = new StringBuilder();
-        for(byte b : byteArray) {
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
-    }
-
-    private static final Set<String> laggyStructureMods = new ObjectOpenHashSet<>();
+    private static final Set<String> laggyStructureMods = ConcurrentHashMap.newKeySet();
 
     private static final int MAX_HASH_LENGTH = 9;
 
@@ -55,6 +91,13 @@ public class CachingStructureManager {
         return hash.substring(0, MAX_HASH_LENGTH + 1);
     }
 
+    /**
+     * The hash only needs to detect changed structure files, so a fast non-cryptographic hash is enough.
+     */
+    private static String hashStructure(byte[] structureBytes) {
+        return truncateHash(Hashing.murmur3_128().hashBytes(structureBytes).toString());
+    }
+
     public static CompoundTag readStructureTag(ResourceLocation location, DataFixer datafixer, InputStream stream) throws IOException {
         byte[] structureBytes = toBytes(stream);
         CompoundTag currentTag = NbtIo.readCompressed(new ByteArrayInputStream(structureBytes));
@@ -65,54 +108,107 @@ public class CachingStructureManager {
         int requiredMinimumDataVersion = SharedConstants.getCurrentVersion().getWorldVersion();
         if(currentDataVersion < requiredMinimumDataVersion) {
             /* Needs upgrade, try looking up from cache */
-            MessageDigest hasher = digestThreadLocal.get();
-            hasher.reset();
-            String hash = encodeHex(hasher.digest(structureBytes));
-            CompoundTag cachedUpgraded = getCachedUpgraded(location, truncateHash(hash));
-            if(cachedUpgraded == null)
-                cachedUpgraded = getCachedUpgraded(location, hash); /* pick up old cache */
+            String hash = hashStructure(structureBytes);
+            CompoundTag cachedUpgraded = getCachedUpgraded(location, hash);
             if(cachedUpgraded != null && cachedUpgraded.getInt("DataVersion") == requiredMinimumDataVersion) {
                 ModernFix.LOGGER.debug("Using cached upgraded version of {}", location);
                 currentTag = cachedUpgraded;
             } else {
-                synchronized (laggyStructureMods) {
-                    if(laggyStructureMods.add(location.getNamespace())) {
-                        ModernFix.LOGGER.warn("The namespace {} contains an outdated structure file, which can cause worldgen lag. Please view debug.log for the full filename, determine which mod provides the structure, and report to the mod/datapack author, including the debug log.", location.getNamespace());
-                    }
-                }
-                ModernFix.LOGGER.debug("Structure {} is being run through DFU (hash {}), this will cause launch time delays", location, hash);
-                currentTag = NbtUtils.update(datafixer, DataFixTypes.STRUCTURE, currentTag, currentDataVersion,
-                        SharedConstants.getCurrentVersion().getWorldVersion());
-                currentTag.putInt("DataVersion", SharedConstants.getCurrentVersion().getWorldVersion());
-                saveCachedUpgraded(location, hash, currentTag);
+                currentTag = upgradeOnce(location, hash, datafixer, currentTag, currentDataVersion);
             }
         }
         return currentTag;
     }
 
-    private static File getCachePath(ResourceLocation location, String hash) {
-        String fileName = location.getNamespace() + "_" + location.getPath().replace('/', '_') + "_" + hash + ".nbt";
-        return new File(STRUCTURE_CACHE_FOLDER, fileName);
+    private static CompoundTag upgradeOnce(ResourceLocation location, String hash, DataFixer datafixer, CompoundTag currentTag, int currentDataVersion) {
+        String cacheName = getCacheKey(location, hash);
+        CompletableFuture<CompoundTag> ourUpgrade = new CompletableFuture<>();
+        CompletableFuture<CompoundTag> runningUpgrade = UPGRADES_IN_PROGRESS.putIfAbsent(cacheName, ourUpgrade);
+        if(runningUpgrade != null) {
+            ModernFix.LOGGER.debug("Waiting for in-progress upgrade of {}", location);
+            return runningUpgrade.join().copy();
+        }
+        try {
+            if(laggyStructureMods.add(location.getNamespace())) {
+                ModernFix.LOGGER.warn("The namespace {} contains an outdated structure file, which can cause worldgen lag. Please view debug.log for the full filename, determine which mod provides the structure, and report to the mod/datapack author, including the debug log.", location.getNamespace());
+            }
+            ModernFix.LOGGER.debug("Structure {} is being run through DFU (hash {}), this will cause launch time delays", location, hash);
+            currentTag = NbtUtils.update(datafixer, DataFixTypes.STRUCTURE, currentTag, currentDataVersion,
+                    SharedConstants.getCurrentVersion().getWorldVersion());
+            currentTag.putInt("DataVersion", SharedConstants.getCurrentVersion().getWorldVersion());
+            saveCachedUpgraded(location, hash, currentTag);
+            upgradedCount.incrementAndGet();
+            ourUpgrade.complete(currentTag.copy());
+            return currentTag;
+        } catch(RuntimeException e) {
+            ourUpgrade.completeExceptionally(e);
+            throw e;
+        } finally {
+            UPGRADES_IN_PROGRESS.remove(cacheName, ourUpgrade);
+        }
     }
 
-    private static synchronized CompoundTag getCachedUpgraded(ResourceLocation location, String hash) {
-        File theFile = getCachePath(location, hash);
+    private static final Pattern STRUCTURE_PATH_PATTERN = Pattern.compile("^structures/(.*)\\.nbt$");
+
+    /**
+     * Find every structure provided by the given resource manager and upgrade the outdated ones in the background,
+     * so that worldgen threads find them in the cache instead of running DFU themselves.
+     */
+    public static void upgradeOutdatedStructures(ResourceManager manager, DataFixer datafixer) {
+        int generation = PREPASS_GENERATION.incrementAndGet();
+        Collection<ResourceLocation> structureFiles;
         try {
-            return NbtIo.readCompressed(theFile);
-        } catch(FileNotFoundException e) {
-            return null;
-        } catch(IOException e) {
-            e.printStackTrace();
-            return null;
+            structureFiles = manager.listResources("structures", p -> p.endsWith(".nbt"));
+        } catch(RuntimeException e) {
+            ModernFix.LOGGER.error("Couldn't list structures", e);
+            return;
         }
+        if(structureFiles.isEmpty())
+            return;
+        List<List<ResourceLocation>> chunks = Lists.partition(new ArrayList<>(structureFiles), STRUCTURES_PER_TASK);
+        long startTime = System.nanoTime();
+        int upgradedBefore = upgradedCount.get();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(chunks.size());
+        for(List<ResourceLocation> chunk : chunks) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                for(ResourceLocation found : chunk) {
+                    if(PREPASS_GENERATION.get() != generation)
+                        return;
+                    Matcher matcher = STRUCTURE_PATH_PATTERN.matcher(found.getPath());
+                    if(!matcher.matches())
+                        continue;
+                    ResourceLocation structureLocation = new ResourceLocation(found.getNamespace(), matcher.group(1));
+                    try(Resource resource = manager.getResource(found)) {
+                        readStructureTag(structureLocation, datafixer, resource.getInputStream());
+                    } catch(IOException | RuntimeException e) {
+                        // the structure will be loaded again when it is used, and report the error then
+                        ModernFix.LOGGER.debug("Couldn't check structure {}", found, e);
+                    }
+                }
+            }, UPGRADE_EXECUTOR));
+        }
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).whenComplete((v, t) -> {
+            int upgraded = upgradedCount.get() - upgradedBefore;
+            if(upgraded > 0)
+                ModernFix.LOGGER.info("Upgraded {} outdated structures in the background in {} ms", upgraded, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        });
+    }
+
+    private static String getCacheKey(ResourceLocation location, String hash) {
+        return location.getNamespace() + "_" + location.getPath().replace('/', '_') + "_" + hash;
+    }
+
+    private static CompoundTag getCachedUpgraded(ResourceLocation location, String hash) {
+        return STRUCTURE_CACHE != null ? STRUCTURE_CACHE.get(getCacheKey(location, hash)) : null;
     }
 
-    private static synchronized void saveCachedUpgraded(ResourceLocation location, String hash, CompoundTag tagToSave) {
-        File theFile = getCachePath(location, truncateHash(hash));
+    private static void saveCachedUpgraded(ResourceLocation location, String hash, CompoundTag tagToSave) {
+        if(STRUCTURE_CACHE == null)
+            return;
         try {
-            NbtIo.writeCompressed(tagToSave, theFile);
-        } catch(IOException e) {
-            e.printStackTrace();
+            STRUCTURE_CACHE.put(getCacheKey(location, hash), tagToSave);
+        } catch(UncheckedIOException e) {
+            ModernFix.LOGGER.warn("Couldn't cache upgraded structure {}", location, e);
         }
     }
 
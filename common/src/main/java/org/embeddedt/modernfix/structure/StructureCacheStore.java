@@ -0,0 +1,420 @@
+package org.embeddedt.modernfix.structure;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import org.embeddedt.modernfix.ModernFix;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Single-file store for upgraded structures, replacing one gzipped file per structure.
+ * <p></p>
+ * The file starts with a fixed header pointing at the current index. Records hold uncompressed NBT and are only
+ * ever appended. Each flush appends the new records followed by a fresh index, then updates the header. A crash
+ * midway therefore leaves the previous index intact. The file is mapped into memory when opened, so a lookup is a
+ * hash map access plus an NBT read straight from the mapping.
+ * <p></p>
+ * The index records when each entry was last used. When the store is opened, entries unused for a long time are
+ * dropped. If the store is over its size budget, the least recently used entries go too. The file is rewritten
+ * compactly when enough of it is garbage: old indexes, dropped entries, and records for structures whose source
+ * file changed.
+ * <p></p>
+ * A store holds an exclusive lock on a sibling {@code .lock} file until it is closed, so that another game instance
+ * sharing the folder never compacts or appends to the file underneath it. Opening fails while the lock is held.
+ */
+public class StructureCacheStore {
+    private static final int MAGIC = 0x4d465343; /* MFSC */
+    private static final int VERSION = 1;
+    /**
+     * magic, version, index offset, index entry count
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+    private static final long FLUSH_THRESHOLD = 4 * 1024 * 1024;
+    private static final long COMPACTION_MIN_GARBAGE = 1024 * 1024;
+    private static final long UNUSED_ENTRY_LIFETIME = TimeUnit.DAYS.toMillis(60);
+    private static final long MAX_SIZE = getConfiguredMaxSize();
+
+    private static final class Entry {
+        final String key;
+        /**
+         * Offset of the payload within the file, or -1 if it has not been written yet.
+         */
+        volatile long offset;
+        final int length;
+        volatile long lastUsed;
+        /**
+         * The payload, until it has been written and the mapping extended to cover it.
+         */
+        volatile byte[] pendingPayload;
+
+        Entry(String key, long offset, int length, long lastUsed) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final Path file;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final LongSupplier clock;
+    /**
+     * Mapping of the file up to the end of the last flush.
+     */
+    private volatile ByteBuffer mapped;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final List<Entry> pendingEntries = new ArrayList<>();
+    private long pendingBytes;
+    private long writePosition;
+    private volatile boolean dirty;
+
+    private StructureCacheStore(Path file, FileChannel lockChannel, FileLock lock, LongSupplier clock, ByteBuffer mapped, long writePosition) {
+        this.file = file;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        this.clock = clock;
+        this.mapped = mapped;
+        this.writePosition = writePosition;
+    }
+
+    private static long getConfiguredMaxSize() {
+        String requested = System.getProperty("modernfix.structureCacheMaxMb");
+        if(requested != null) {
+            try {
+                long mb = Long.parseLong(requested);
+                if(mb > 0)
+                    return mb * 1024 * 1024;
+            } catch(NumberFormatException e) {
+                ModernFix.LOGGER.error("modernfix.structureCacheMaxMb is not a number");
+            }
+        }
+        return 256L * 1024 * 1024;
+    }
+
+    /**
+     * Open the store at the given path, creating it if needed.
+     */
+    public static StructureCacheStore open(Path file) throws IOException {
+        return open(file, MAX_SIZE, System::currentTimeMillis);
+    }
+
+    static StructureCacheStore open(Path file, long maxSize, LongSupplier clock) throws IOException {
+        Files.createDirectories(file.getParent());
+        FileChannel lockChannel = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch(IOException | OverlappingFileLockException e) {
+            lock = null;
+        }
+        if(lock == null) {
+            lockChannel.close();
+            throw new IOException(file + " is in use by another instance");
+        }
+        try {
+            List<Entry> liveEntries = readIndex(file);
+            if(liveEntries != null) {
+                long fileSize = Files.size(file);
+                List<Entry> kept = selectEntriesToKeep(liveEntries, clock.getAsLong(), maxSize);
+                long keptBytes = 0;
+                for(Entry entry : kept)
+                    keptBytes += entry.length;
+                long garbageBytes = fileSize - keptBytes;
+                if(kept.size() < liveEntries.size() || garbageBytes > Math.max(keptBytes, COMPACTION_MIN_GARBAGE))
+                    compact(file, kept);
+                else
+                    return map(file, lockChannel, lock, clock, kept);
+                liveEntries = readIndex(file);
+                if(liveEntries != null)
+                    return map(file, lockChannel, lock, clock, liveEntries);
+            }
+            writeEmpty(file);
+            return map(file, lockChannel, lock, clock, new ArrayList<>());
+        } catch(IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    private static List<Entry> selectEntriesToKeep(List<Entry> entries, long now, long maxSize) {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong((Entry e) -> e.lastUsed).reversed());
+        List<Entry> kept = new ArrayList<>(sorted.size());
+        long totalSize = 0;
+        for(Entry entry : sorted) {
+            if((now - entry.lastUsed) > UNUSED_ENTRY_LIFETIME)
+                break;
+            totalSize += entry.length;
+            if(totalSize > maxSize)
+                break;
+            kept.add(entry);
+        }
+        return kept;
+    }
+
+    /**
+     * @return the entries listed by the current index, or null if the file is missing or invalid
+     */
+    @Nullable
+    private static List<Entry> readIndex(Path file) {
+        if(!Files.isRegularFile(file))
+            return null;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < HEADER_SIZE)
+                return null;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if(header.getInt() != MAGIC || header.getInt() != VERSION)
+                return null;
+            long indexOffset = header.getLong();
+            int count = header.getInt();
+            if(indexOffset < HEADER_SIZE || indexOffset > size || count < 0)
+                return null;
+            ByteBuffer indexBuf = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size - indexOffset);
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(indexBuf));
+            List<Entry> list = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long offset = in.readLong();
+                int length = in.readInt();
+                long lastUsed = in.readLong();
+                if(offset < HEADER_SIZE || length < 0 || (offset + length) > indexOffset)
+                    return null;
+                list.add(new Entry(key, offset, length, lastUsed));
+            }
+            return list;
+        } catch(IOException | RuntimeException e) {
+            ModernFix.LOGGER.warn("Structure cache index is unreadable, starting over", e);
+            return null;
+        }
+    }
+
+    private static void writeEmpty(Path file) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            writeHeader(out, HEADER_SIZE, 0);
+        }
+    }
+
+    private static void writeHeader(DataOutput out, long indexOffset, int count) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(indexOffset);
+        out.writeInt(count);
+    }
+
+    /**
+     * Rewrite the file so it contains only the given entries, followed by their index.
+     */
+    private static void compact(Path file, List<Entry> kept) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        List<Entry> rewritten = new ArrayList<>(kept.size());
+        try(FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            writeHeader(out, 0, 0);
+            long position = HEADER_SIZE;
+            for(Entry entry : kept) {
+                ByteBuffer payload = ByteBuffer.allocate(entry.length);
+                source.read(payload, entry.offset);
+                out.write(payload.array(), 0, entry.length);
+                rewritten.add(new Entry(entry.key, position, entry.length, entry.lastUsed));
+                position += entry.length;
+            }
+            writeIndex(out, rewritten);
+        }
+        try(FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+            long indexOffset = HEADER_SIZE;
+            for(Entry entry : rewritten)
+                indexOffset += entry.length;
+            ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+            writeHeader(new DataOutputStream(header), indexOffset, rewritten.size());
+            channel.write(ByteBuffer.wrap(header.toByteArray()), 0);
+        }
+        try {
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch(AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeIndex(DataOutput out, List<Entry> list) throws IOException {
+        for(Entry entry : list) {
+            out.writeUTF(entry.key);
+            out.writeLong(entry.offset);
+            out.writeInt(entry.length);
+            out.writeLong(entry.lastUsed);
+        }
+    }
+
+    private static StructureCacheStore map(Path file, FileChannel lockChannel, FileLock lock, LongSupplier clock, List<Entry> list) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            StructureCacheStore store = new StructureCacheStore(file, lockChannel, lock, clock, mapped, size);
+            for(Entry entry : list)
+                store.entries.put(entry.key, entry);
+            return store;
+        }
+    }
+
+    @Nullable
+    public CompoundTag get(String key) {
+        Entry entry = entries.get(key);
+        if(entry == null)
+            return null;
+        long now = clock.getAsLong();
+        // only note the use when it changes the stored value meaningfully, to avoid rewriting the index every launch
+        if((now - entry.lastUsed) > TimeUnit.HOURS.toMillis(1)) {
+            entry.lastUsed = now;
+            dirty = true;
+        }
+        try {
+            InputStream stream;
+            byte[] pending = entry.pendingPayload;
+            ByteBuffer currentMapping = mapped;
+            if(pending != null)
+                stream = new ByteArrayInputStream(pending);
+            else if(entry.offset + entry.length <= currentMapping.capacity()) {
+                ByteBuffer payload = currentMapping.duplicate();
+                payload.position((int)entry.offset);
+                payload.limit((int)(entry.offset + entry.length));
+                stream = new ByteBufferInputStream(payload);
+            } else
+                return null;
+            return NbtIo.read(new DataInputStream(stream));
+        } catch(IOException | RuntimeException e) {
+            ModernFix.LOGGER.warn("Failed to read cached structure {}", key, e);
+            return null;
+        }
+    }
+
+    public void put(String key, CompoundTag tag) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            NbtIo.write(tag, new DataOutputStream(bytes));
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        Entry entry = new Entry(key, -1, payload.length, clock.getAsLong());
+        entry.pendingPayload = payload;
+        entries.put(key, entry);
+        boolean needsFlush;
+        synchronized(pendingEntries) {
+            pendingEntries.add(entry);
+            pendingBytes += payload.length;
+            needsFlush = pendingBytes >= FLUSH_THRESHOLD;
+        }
+        dirty = true;
+        if(needsFlush)
+            flush();
+    }
+
+    /**
+     * Append any new records and write an index reflecting the current entries.
+     */
+    public synchronized void flush() {
+        if(!dirty)
+            return;
+        dirty = false;
+        List<Entry> toWrite;
+        synchronized(pendingEntries) {
+            toWrite = new ArrayList<>(pendingEntries);
+            pendingEntries.clear();
+            pendingBytes = 0;
+        }
+        long flushStart = writePosition;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for(Entry entry : toWrite) {
+                ByteBuffer buf = ByteBuffer.wrap(entry.pendingPayload);
+                long offset = writePosition;
+                while(buf.hasRemaining()) {
+                    writePosition += channel.write(buf, writePosition);
+                }
+                entry.offset = offset;
+            }
+            List<Entry> written = new ArrayList<>(entries.size());
+            for(Entry entry : entries.values()) {
+                if(entry.offset >= 0)
+                    written.add(entry);
+            }
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            writeIndex(new DataOutputStream(indexBytes), written);
+            long indexOffset = writePosition;
+            ByteBuffer buf = ByteBuffer.wrap(indexBytes.toByteArray());
+            while(buf.hasRemaining()) {
+                writePosition += channel.write(buf, writePosition);
+            }
+            channel.force(false);
+            ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+            writeHeader(new DataOutputStream(header), indexOffset, written.size());
+            channel.write(ByteBuffer.wrap(header.toByteArray()), 0);
+            // readers switch to the new mapping before the payloads are dropped
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, writePosition);
+            for(Entry entry : toWrite)
+                entry.pendingPayload = null;
+        } catch(IOException e) {
+            ModernFix.LOGGER.warn("Failed to write structure cache", e);
+            // the header still points at the previous index, so forget the new records rather than listing them
+            // with no offset or holding them on the heap; they are cached again the next time they are upgraded
+            writePosition = flushStart;
+            for(Entry entry : toWrite)
+                entries.remove(entry.key, entry);
+        }
+    }
+
+    /**
+     * Flush the store and release its lock. The store must not be used afterwards.
+     */
+    public synchronized void close() {
+        flush();
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch(IOException e) {
+            ModernFix.LOGGER.warn("Failed to release structure cache lock", e);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? (buf.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(!buf.hasRemaining())
+                return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+    }
+}
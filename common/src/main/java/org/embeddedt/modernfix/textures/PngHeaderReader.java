@@ -0,0 +1,31 @@
+package org.embeddedt.modernfix.textures;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the dimensions of a PNG from its IHDR chunk, without decoding any image data.
+ */
+public class PngHeaderReader {
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+
+    /**
+     * @return the width and height of the image, in that order
+     * @throws IOException if the stream does not start with a valid PNG header
+     */
+    public static int[] readSize(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if(in.readLong() != PNG_SIGNATURE)
+            throw new IOException("Not a PNG file");
+        int length = in.readInt();
+        if(in.readInt() != IHDR || length != 13)
+            throw new IOException("PNG does not start with an IHDR chunk");
+        int width = in.readInt();
+        int height = in.readInt();
+        if(width <= 0 || height <= 0)
+            throw new IOException("Invalid PNG dimensions " + width + "x" + height);
+        return new int[] { width, height };
+    }
+}
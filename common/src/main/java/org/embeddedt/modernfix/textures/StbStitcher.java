@@ -1,6 +1,7 @@
 package org.embeddedt.modernfix.textures;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.mojang.datafixers.util.Pair;
 import net.minecraft.client.renderer.texture.Stitcher;
 import net.minecraft.client.renderer.texture.StitcherException;
@@ -17,7 +18,13 @@ import static java.lang.invoke.MethodType.*;
 
 import java.lang.invoke.MethodHandle;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Stream;
 
 /* Source: https://github.com/GTNewHorizons/lwjgl3ify/blob/f21364cd3d178aef863458a2faa1f5718a4e350d/src/main/java/me/eigenraven/lwjgl3ify/textures/StbStitcher.java */
@@ -124,56 +131,171 @@ public class StbStitcher {
         }
     }
 
-    public static Pair<Pair<Integer, Integer>, List<LoadableSpriteInfo>> packRects(Stitcher.Holder[] holders) {
-        int holderSize = holders.length;
+    /**
+     * Atlases with at least this many sprites are packed in shards of similarly sized sprites, which are packed in
+     * parallel and then placed next to each other.
+     */
+    private static final int SHARD_THRESHOLD = 4096;
+    private static final int SHARD_SIZE = 2048;
 
-        List<LoadableSpriteInfo> infoList = new ArrayList<>();
-
-        // Allocate memory for the rectangles and the context
-        try (STBRPRect.Buffer rectBuf = STBRPRect.malloc(holderSize);
-             STBRPContext ctx = STBRPContext.malloc(); ) {
+    public static Pair<Pair<Integer, Integer>, List<LoadableSpriteInfo>> packRects(Stitcher.Holder[] holders, int maxWidth, int maxHeight) {
+        if(holders.length >= SHARD_THRESHOLD) {
+            Pair<Pair<Integer, Integer>, List<LoadableSpriteInfo>> sharded = packSharded(holders);
+            if(sharded != null && sharded.getFirst().getFirst() <= maxWidth && sharded.getFirst().getSecond() <= maxHeight) {
+                long shardedArea = (long)sharded.getFirst().getFirst() * sharded.getFirst().getSecond();
+                int[] minimumTarget = getInitialTarget(holders.length, i -> holders[i].width, i -> holders[i].height);
+                // a single pack is never smaller than its first guess, so only try one if the shards left room to beat
+                if(shardedArea <= (long)minimumTarget[0] * minimumTarget[1])
+                    return sharded;
+                Pair<Pair<Integer, Integer>, List<LoadableSpriteInfo>> single;
+                try {
+                    single = packSingle(holders);
+                } catch(StitcherException e) {
+                    return sharded;
+                }
+                long singleArea = (long)single.getFirst().getFirst() * single.getFirst().getSecond();
+                return singleArea <= shardedArea ? single : sharded;
+            }
+        }
+        return packSingle(holders);
+    }
 
-            // Initialize the rectangles that we'll be using in the calculation
-            // While that's happening, sum up the area needed to fit all of the images
-            int totalArea = 0;
-            int longestWidth = 0, longestHeight = 0;
-            for (int j = 0; j < holderSize; ++j) {
-                Stitcher.Holder holder = holders[j];
+    private static Pair<Pair<Integer, Integer>, List<LoadableSpriteInfo>> packSingle(Stitcher.Holder[] holders) {
+        int[] packing = packSizes(holders.length, i -> holders[i].width, i -> holders[i].height);
+        if(packing == null) {
+            // If we get here, we weren't able to stitch. Throw an error.
+            ModernFix.LOGGER.error("Stitcher ran out of space after growing the atlas 4 times:");
+            for(Stitcher.Holder h : holders) {
+                ModernFix.LOGGER.error(" - " + h.spriteInfo.name() + ", " + h.spriteInfo.width() + "x" + h.spriteInfo.height());
+            }
+            throw new StitcherException(holders[0].spriteInfo,
+                    Stream.of(holders).map(arg -> arg.spriteInfo).collect(ImmutableList.toImmutableList()));
+        }
+        List<LoadableSpriteInfo> infoList = new ArrayList<>(holders.length);
+        for(int i = 0; i < holders.length; i++) {
+            // Initialize the sprite now with the position and size that we've calculated so far
+            infoList.add(new LoadableSpriteInfo(holders[i].spriteInfo, packing[0], packing[1], packing[2 + i * 2], packing[3 + i * 2]));
+        }
+        return Pair.of(Pair.of(packing[0], packing[1]), infoList);
+    }
 
-                int width = holder.width;
-                int height = holder.height;
+    /**
+     * Split the sprites into shards by size class, pack the shards concurrently, then pack the area each shard
+     * actually uses into the final atlas.
+     * @return the packing, or null if the shards did not fit together
+     */
+    private static Pair<Pair<Integer, Integer>, List<LoadableSpriteInfo>> packSharded(Stitcher.Holder[] holders) {
+        // group by the power of two above the longest side, largest class first
+        SortedMap<Integer, List<Stitcher.Holder>> sizeClasses = new TreeMap<>(Comparator.reverseOrder());
+        for(Stitcher.Holder holder : holders) {
+            sizeClasses.computeIfAbsent(Mth.ceillog2(Math.max(holder.width, holder.height)), k -> new ArrayList<>()).add(holder);
+        }
+        List<Stitcher.Holder[]> shards = new ArrayList<>();
+        List<Stitcher.Holder> currentShard = new ArrayList<>();
+        for(List<Stitcher.Holder> sizeClass : sizeClasses.values()) {
+            for(List<Stitcher.Holder> part : Lists.partition(sizeClass, SHARD_SIZE)) {
+                currentShard.addAll(part);
+                if(currentShard.size() >= SHARD_SIZE) {
+                    shards.add(currentShard.toArray(new Stitcher.Holder[0]));
+                    currentShard.clear();
+                }
+            }
+        }
+        if(!currentShard.isEmpty())
+            shards.add(currentShard.toArray(new Stitcher.Holder[0]));
+        if(shards.size() < 2)
+            return null;
+        List<CompletableFuture<Pair<Pair<Integer, Integer>, List<LoadableSpriteInfo>>>> futures = new ArrayList<>(shards.size());
+        for(Stitcher.Holder[] shard : shards) {
+            futures.add(CompletableFuture.supplyAsync(() -> packSingle(shard), ModernFix.resourceReloadExecutor()));
+        }
+        List<Pair<Pair<Integer, Integer>, List<LoadableSpriteInfo>>> shardPackings = new ArrayList<>(shards.size());
+        try {
+            for(CompletableFuture<Pair<Pair<Integer, Integer>, List<LoadableSpriteInfo>>> future : futures) {
+                shardPackings.add(future.join());
+            }
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof StitcherException)
+                throw (StitcherException)e.getCause();
+            throw e;
+        }
+        // the shard targets are rounded up to powers of two, only the part covered by sprites needs to be placed
+        int[] usedWidths = new int[shards.size()], usedHeights = new int[shards.size()];
+        for(int i = 0; i < shards.size(); i++) {
+            Stitcher.Holder[] shard = shards.get(i);
+            List<LoadableSpriteInfo> infos = shardPackings.get(i).getSecond();
+            for(int j = 0; j < shard.length; j++) {
+                usedWidths[i] = Math.max(usedWidths[i], infos.get(j).x + shard[j].width);
+                usedHeights[i] = Math.max(usedHeights[i], infos.get(j).y + shard[j].height);
+            }
+        }
+        int[] packing = packSizes(shards.size(), i -> usedWidths[i], i -> usedHeights[i]);
+        if(packing == null)
+            return null;
+        List<LoadableSpriteInfo> infoList = new ArrayList<>(holders.length);
+        for(int i = 0; i < shardPackings.size(); i++) {
+            int shardX = packing[2 + i * 2], shardY = packing[3 + i * 2];
+            for(LoadableSpriteInfo info : shardPackings.get(i).getSecond()) {
+                infoList.add(new LoadableSpriteInfo(info.info, packing[0], packing[1], shardX + info.x, shardY + info.y));
+            }
+        }
+        ModernFix.LOGGER.debug("Packed {} sprites in {} shards into a {}x{} atlas", holders.length, shards.size(), packing[0], packing[1]);
+        return Pair.of(Pair.of(packing[0], packing[1]), infoList);
+    }
 
-                // The ID here is just the array index, for easy lookup later
-                STBRPRect rect = rectBuf.get(j);
+    /**
+     * The atlas needs to be at least this wide and tall to accommodate oddly shaped sprites and their total area.
+     * @return the width and height to try first
+     */
+    private static int[] getInitialTarget(int count, IntUnaryOperator widths, IntUnaryOperator heights) {
+        long totalArea = 0;
+        int longestWidth = 0, longestHeight = 0;
+        for (int j = 0; j < count; ++j) {
+            int width = widths.applyAsInt(j);
+            int height = heights.applyAsInt(j);
+            totalArea += ((long)width * height);
+            longestWidth = Math.max(longestWidth, width);
+            longestHeight = Math.max(longestHeight, height);
+        }
 
-                setWrapper(rect, j, width, height, 0, 0, false);
+        longestWidth = Mth.smallestEncompassingPowerOfTwo(longestWidth);
+        longestHeight = Mth.smallestEncompassingPowerOfTwo(longestHeight);
 
-                totalArea += (width * height);
-                longestWidth = Math.max(longestWidth, width);
-                longestHeight = Math.max(longestHeight, height);
-            }
+        /*
+         * If this is not enough, keep doubling the smaller of the two values until it's big enough.
+         */
+        while(((long)longestWidth*longestHeight) < totalArea) {
+            if(longestWidth <= longestHeight)
+                longestWidth *= 2;
+            else
+                longestHeight *= 2;
+        }
+        return new int[] { longestWidth, longestHeight };
+    }
 
-            longestWidth = Mth.smallestEncompassingPowerOfTwo(longestWidth);
-            longestHeight = Mth.smallestEncompassingPowerOfTwo(longestHeight);
+    /**
+     * Pack rectangles of the given sizes with STB.
+     * @return the target size, followed by the position of every rectangle, or null if they could not be packed
+     */
+    private static int[] packSizes(int count, IntUnaryOperator widths, IntUnaryOperator heights) {
+        // Allocate memory for the rectangles and the context
+        try (STBRPRect.Buffer rectBuf = STBRPRect.malloc(count);
+             STBRPContext ctx = STBRPContext.malloc(); ) {
 
-            /*
-             * The atlas needs to be at least this wide and tall to accommodate oddly shaped sprites. If this is
-             * not enough, keep doubling the smaller of the two values until it's big enough.
-             */
-            while((longestWidth*longestHeight) < totalArea) {
-                if(longestWidth <= longestHeight)
-                    longestWidth *= 2;
-                else
-                    longestHeight *= 2;
+            // Initialize the rectangles that we'll be using in the calculation
+            for (int j = 0; j < count; ++j) {
+                // The ID here is just the array index, for easy lookup later
+                setWrapper(rectBuf.get(j), j, widths.applyAsInt(j), heights.applyAsInt(j), 0, 0, false);
             }
 
+            int[] target = getInitialTarget(count, widths, heights);
+            int longestWidth = target[0], longestHeight = target[1];
+
             /*
              * Sometimes our guess is off and we actually need a bigger atlas. We will try up to 4 times to double
              * the atlas size, if that fails then give up.
              */
-            int numTries = 0;
-            while(true) {
-                numTries++;
+            for(int numTries = 1; ; numTries++) {
                 // Internal node structure needed for STB
                 try (STBRPNode.Buffer nodes = STBRPNode.malloc(longestWidth + 10)) {
                     // Initialize the rect packer
@@ -182,39 +304,33 @@ public class StbStitcher {
                     // Perform rectangle packing
                     STBRectPack.stbrp_pack_rects(ctx, rectBuf);
 
+                    // Ensure that everything is properly packed!
+                    boolean allPacked = true;
                     for (STBRPRect rect : rectBuf) {
-                        // Ensure that everything is properly packed!
                         if (!rect.was_packed()) {
-                            Stitcher.Holder holder = holders[rect.id()];
-                            throw new StitcherException(holder.spriteInfo,
-                                    Stream.of(holders).map(arg -> arg.spriteInfo).collect(ImmutableList.toImmutableList()));
+                            allPacked = false;
+                            break;
                         }
                     }
 
-                    for (STBRPRect rect : rectBuf) {
-                        Stitcher.Holder holder = holders[rect.id()];
-
-                        // Initialize the sprite now with the position and size that we've calculated so far
-                        infoList.add(new LoadableSpriteInfo(holder.spriteInfo, longestWidth, longestHeight, getX(rect), getY(rect)));
-                    }
-
-                    return Pair.of(Pair.of(longestWidth, longestHeight), infoList);
-                } catch (StitcherException e) {
-                    if(numTries >= 4) {
-                        // If we get here, we weren't able to stitch. Throw an error.
-                        ModernFix.LOGGER.error("Stitcher ran out of space with target atlas size " + longestWidth + "x" + longestHeight + ":");
-                        for(Stitcher.Holder h : holders) {
-                            ModernFix.LOGGER.error(" - " + h.spriteInfo.name() + ", " + h.spriteInfo.width() + "x" + h.spriteInfo.height());
+                    if(allPacked) {
+                        int[] packing = new int[2 + count * 2];
+                        packing[0] = longestWidth;
+                        packing[1] = longestHeight;
+                        for (STBRPRect rect : rectBuf) {
+                            packing[2 + rect.id() * 2] = getX(rect);
+                            packing[3 + rect.id() * 2] = getY(rect);
                         }
-                        throw e;
-                    } else {
-                        // double the atlas size and try again
-                        if(longestWidth <= longestHeight)
-                            longestWidth *= 2;
-                        else
-                            longestHeight *= 2;
+                        return packing;
                     }
                 }
+                if(numTries >= 4)
+                    return null;
+                // double the atlas size and try again
+                if(longestWidth <= longestHeight)
+                    longestWidth *= 2;
+                else
+                    longestHeight *= 2;
             }
         }
     }
@@ -0,0 +1,212 @@
+package org.embeddedt.modernfix.textures;
+
+import com.mojang.datafixers.util.Pair;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.client.renderer.texture.Stitcher;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.util.Mth;
+import org.embeddedt.modernfix.ModernFix;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers where every sprite of an atlas was placed the last time it was stitched. When the atlas is stitched
+ * again with the same mip level, sprites that kept their name and size are put back in the same spot, so their
+ * UVs do not change, and only new or resized sprites are fitted into the space left free.
+ * <p></p>
+ * This only skips packing. The sprite contents are not part of the layout, every sprite is still loaded and
+ * uploaded, and a sprite whose image changed but not its size is simply loaded into its old place.
+ * <p></p>
+ * The atlas is shrunk to the smallest size that still holds every sprite, and restitched from scratch once less than
+ * half of it would be used, so that removing sprites does not leave it larger than needed forever.
+ */
+public class StitchLayoutCache {
+    private static final Map<ResourceLocation, Layout> LAYOUTS = new ConcurrentHashMap<>();
+
+    /**
+     * Past this many new sprites a full restitch is preferred, as it packs them much tighter.
+     */
+    private static final int MAX_NEW_SPRITES = 512;
+    /**
+     * Minimum fraction of the atlas area sprites must cover for the layout to be reused.
+     */
+    private static final double MIN_OCCUPANCY = 0.5;
+
+    private static class Layout {
+        final int width, height, mipLevel;
+        final Map<ResourceLocation, int[]> placements;
+
+        Layout(int width, int height, int mipLevel, Map<ResourceLocation, int[]> placements) {
+            this.width = width;
+            this.height = height;
+            this.mipLevel = mipLevel;
+            this.placements = placements;
+        }
+    }
+
+    /**
+     * Try to lay out the atlas by reusing its previous layout.
+     * @return the atlas size and sprite placements, or null if a full stitch is needed
+     */
+    public static Pair<Pair<Integer, Integer>, List<StbStitcher.LoadableSpriteInfo>> tryReuse(ResourceLocation atlas, int mipLevel, Stitcher.Holder[] holders) {
+        Layout previous = LAYOUTS.get(atlas);
+        if(previous == null || previous.mipLevel != mipLevel)
+            return null;
+        int[] positions = new int[holders.length * 2];
+        List<Stitcher.Holder> newHolders = new ArrayList<>();
+        IntArrayList newHolderIndices = new IntArrayList();
+        FreeSpace freeSpace = new FreeSpace(previous.width, previous.height);
+        int kept = 0;
+        for(int i = 0; i < holders.length; i++) {
+            Stitcher.Holder holder = holders[i];
+            int[] placement = previous.placements.get(holder.spriteInfo.name());
+            if(placement != null && placement[2] == holder.width && placement[3] == holder.height) {
+                freeSpace.occupy(placement[0], placement[1], holder.width, holder.height);
+                positions[i * 2] = placement[0];
+                positions[i * 2 + 1] = placement[1];
+                kept++;
+            } else {
+                newHolders.add(holder);
+                newHolderIndices.add(i);
+            }
+        }
+        if(kept == 0 || newHolders.size() > MAX_NEW_SPRITES)
+            return null;
+        // holders arrive sorted largest first, which is also the best order to fit them into gaps
+        for(int j = 0; j < newHolders.size(); j++) {
+            Stitcher.Holder holder = newHolders.get(j);
+            int[] spot = freeSpace.findSpot(holder.width, holder.height);
+            if(spot == null) {
+                ModernFix.LOGGER.debug("No space left for {} in previous layout of {}, restitching", holder.spriteInfo.name(), atlas);
+                return null;
+            }
+            freeSpace.occupy(spot[0], spot[1], holder.width, holder.height);
+            positions[newHolderIndices.getInt(j) * 2] = spot[0];
+            positions[newHolderIndices.getInt(j) * 2 + 1] = spot[1];
+        }
+        int usedWidth = 1, usedHeight = 1;
+        long spriteArea = 0;
+        for(int i = 0; i < holders.length; i++) {
+            usedWidth = Math.max(usedWidth, positions[i * 2] + holders[i].width);
+            usedHeight = Math.max(usedHeight, positions[i * 2 + 1] + holders[i].height);
+            spriteArea += (long)holders[i].width * holders[i].height;
+        }
+        int width = Math.min(previous.width, Mth.smallestEncompassingPowerOfTwo(usedWidth));
+        int height = Math.min(previous.height, Mth.smallestEncompassingPowerOfTwo(usedHeight));
+        if(spriteArea < (long)width * height * MIN_OCCUPANCY) {
+            ModernFix.LOGGER.debug("Previous layout of {} is mostly empty, restitching", atlas);
+            return null;
+        }
+        List<StbStitcher.LoadableSpriteInfo> infoList = new ArrayList<>(holders.length);
+        for(int i = 0; i < holders.length; i++) {
+            infoList.add(new StbStitcher.LoadableSpriteInfo(holders[i].spriteInfo, width, height, positions[i * 2], positions[i * 2 + 1]));
+        }
+        ModernFix.LOGGER.debug("Reused layout of {} for {} sprites, placed {} new ones", atlas, kept, newHolders.size());
+        Pair<Pair<Integer, Integer>, List<StbStitcher.LoadableSpriteInfo>> packingInfo = Pair.of(Pair.of(width, height), infoList);
+        remember(atlas, mipLevel, packingInfo, holders);
+        return packingInfo;
+    }
+    public static void remember(ResourceLocation atlas, int mipLevel, Pair<Pair<Integer, Integer>, List<StbStitcher.LoadableSpriteInfo>> packingInfo, Stitcher.Holder[] holders) {
+        Map<ResourceLocation, Stitcher.Holder> holdersByName = new HashMap<>();
+        for(Stitcher.Holder holder : holders) {
+            holdersByName.put(holder.spriteInfo.name(), holder);
+        }
+        Map<ResourceLocation, int[]> placements = new HashMap<>();
+        for(StbStitcher.LoadableSpriteInfo info : packingInfo.getSecond()) {
+            Stitcher.Holder holder = holdersByName.get(info.info.name());
+            if(holder != null)
+                placements.put(info.info.name(), new int[] { info.x, info.y, holder.width, holder.height });
+        }
+        LAYOUTS.put(atlas, new Layout(packingInfo.getFirst().getFirst(), packingInfo.getFirst().getSecond(), mipLevel, placements));
+    }
+
+    public static void forget(ResourceLocation atlas) {
+        LAYOUTS.remove(atlas);
+    }
+
+    /**
+     * Free space of an atlas as a list of maximal free rectangles, which may overlap. Occupying an area splits every
+     * free rectangle it intersects into the parts left free around it.
+     */
+    private static class FreeSpace {
+        private final IntArrayList rects = new IntArrayList();
+
+        FreeSpace(int width, int height) {
+            addRect(rects, 0, 0, width, height);
+        }
+
+        private static void addRect(IntArrayList list, int x, int y, int w, int h) {
+            list.add(x);
+            list.add(y);
+            list.add(w);
+            list.add(h);
+        }
+
+        void occupy(int x, int y, int w, int h) {
+            IntArrayList split = new IntArrayList();
+            // walk backwards, so that moving the last rectangle into a removed slot does not skip any
+            for(int r = rects.size() - 4; r >= 0; r -= 4) {
+                int fx = rects.getInt(r), fy = rects.getInt(r + 1), fw = rects.getInt(r + 2), fh = rects.getInt(r + 3);
+                if(x >= fx + fw || x + w <= fx || y >= fy + fh || y + h <= fy)
+                    continue;
+                int last = rects.size() - 4;
+                for(int k = 0; k < 4; k++) {
+                    rects.set(r + k, rects.getInt(last + k));
+                }
+                rects.size(last);
+                if(x > fx)
+                    addRect(split, fx, fy, x - fx, fh);
+                if(x + w < fx + fw)
+                    addRect(split, x + w, fy, fx + fw - x - w, fh);
+                if(y > fy)
+                    addRect(split, fx, fy, fw, y - fy);
+                if(y + h < fy + fh)
+                    addRect(split, fx, y + h, fw, fy + fh - y - h);
+            }
+            // keep only the new rectangles that are not inside another free rectangle
+            for(int a = 0; a < split.size(); a += 4) {
+                if(isContained(split, a, rects, -1) || isContained(split, a, split, a))
+                    continue;
+                addRect(rects, split.getInt(a), split.getInt(a + 1), split.getInt(a + 2), split.getInt(a + 3));
+            }
+        }
+
+        /**
+         * @param self the index of the rectangle in the other list, to skip; among identical rectangles only the first
+         *             one counts as not contained
+         */
+        private static boolean isContained(IntArrayList list, int a, IntArrayList others, int self) {
+            int ax = list.getInt(a), ay = list.getInt(a + 1), aw = list.getInt(a + 2), ah = list.getInt(a + 3);
+            for(int b = 0; b < others.size(); b += 4) {
+                if(b == self)
+                    continue;
+                int bx = others.getInt(b), by = others.getInt(b + 1), bw = others.getInt(b + 2), bh = others.getInt(b + 3);
+                if(ax >= bx && ay >= by && ax + aw <= bx + bw && ay + ah <= by + bh) {
+                    boolean identical = ax == bx && ay == by && aw == bw && ah == bh;
+                    if(!identical || self < 0 || b < self)
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Bottom-left placement: the lowest, then leftmost, free rectangle the sprite fits into wins.
+         */
+        int[] findSpot(int w, int h) {
+            int bestX = -1, bestY = Integer.MAX_VALUE;
+            for(int r = 0; r < rects.size(); r += 4) {
+                int fx = rects.getInt(r), fy = rects.getInt(r + 1);
+                if(w <= rects.getInt(r + 2) && h <= rects.getInt(r + 3) && (fy < bestY || (fy == bestY && fx < bestX))) {
+                    bestX = fx;
+                    bestY = fy;
+                }
+            }
+            return bestX >= 0 ? new int[] { bestX, bestY } : null;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.embeddedt.modernfix.textures;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import com.mojang.datafixers.util.Pair;
+import net.minecraft.client.resources.metadata.animation.AnimationFrame;
+import net.minecraft.client.resources.metadata.animation.AnimationMetadataSection;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.packs.resources.ResourceManager;
+import org.embeddedt.modernfix.ModernFix;
+import org.embeddedt.modernfix.common.mixin.perf.faster_texture_loading.persistent_cache.NativeImageAccessor;
+import org.embeddedt.modernfix.core.ModernFixMixinPlugin;
+import org.embeddedt.modernfix.resources.PersistentRecordStore;
+import org.embeddedt.modernfix.resources.ResourcesFingerprint;
+import org.jetbrains.annotations.Nullable;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+
+/**
+ * Persists decoded sprite images between launches, so that unchanged textures can be loaded without inflating their
+ * PNG or parsing their animation metadata again.
+ * <p></p>
+ * Pixels are stored as raw RGBA and copied straight from the mapped file into a new image. Like the baked model
+ * cache, the whole cache is tied to a {@link ResourcesFingerprint fingerprint} of the mod list and resource packs
+ * and is thrown away when that changes. As the fingerprint covers the size and modification time of every file in
+ * folder packs, an edited PNG or .mcmeta file invalidates the cache without any file having to be read. Entries are
+ * additionally keyed by the pack providing the texture.
+ * <p></p>
+ * Records are kept in a {@link PersistentRecordStore}.
+ */
+public class TextureDiskCache {
+    private static final int MAGIC = 0x4d465458; /* MFTX */
+    private static final int VERSION = 3;
+    private static final int FLUSH_THRESHOLD = 4 * 1024 * 1024;
+    /**
+     * Very large images would make the cache balloon for little gain, as they are rare.
+     */
+    private static final int MAX_IMAGE_BYTES = 2048 * 2048 * 4;
+
+    private static final boolean ENABLED = ModernFixMixinPlugin.instance.isOptionEnabled("perf.faster_texture_loading.persistent_cache.NativeImageAccessor");
+    private static final PersistentRecordStore.Slot STORE = new PersistentRecordStore.Slot("textureCache", MAGIC, VERSION, getConfiguredMaxSize(), FLUSH_THRESHOLD);
+
+    private final PersistentRecordStore store;
+
+    private TextureDiskCache(PersistentRecordStore store) {
+        this.store = store;
+    }
+
+    private static long getConfiguredMaxSize() {
+        String requested = System.getProperty("modernfix.textureCacheMaxMb");
+        if(requested != null) {
+            try {
+                long mb = Long.parseLong(requested);
+                if(mb > 0)
+                    return Math.min(mb, 1536) * 1024 * 1024;
+            } catch(NumberFormatException e) {
+                ModernFix.LOGGER.error("modernfix.textureCacheMaxMb is not a number");
+            }
+        }
+        return 512L * 1024 * 1024;
+    }
+
+    /**
+     * Get the cache for the given set of resources, opening it (and flushing the previous one) if the resources
+     * changed since the last call. Every atlas reloaded with the same resources shares one cache.
+     * @return the cache, or null if it is disabled or could not be opened
+     */
+    @Nullable
+    public static TextureDiskCache forManager(ResourceManager manager) {
+        if(!ENABLED)
+            return null;
+        OptionalLong fingerprint = ResourcesFingerprint.compute(manager);
+        if(!fingerprint.isPresent())
+            return null;
+        PersistentRecordStore store = STORE.open(fingerprint.getAsLong());
+        return store != null ? new TextureDiskCache(store) : null;
+    }
+
+    private static String makeKey(ResourceLocation fileLocation, String packName) {
+        return fileLocation + "@" + packName;
+    }
+
+    /**
+     * Restore a previously stored texture.
+     * @param packName the name of the pack the texture is currently provided by
+     * @return the image and its animation metadata, or null if the texture is not stored
+     */
+    @Nullable
+    public Pair<NativeImage, AnimationMetadataSection> get(ResourceLocation fileLocation, String packName) {
+        ByteBuffer payload = store.get(makeKey(fileLocation, packName));
+        if(payload == null)
+            return null;
+        try {
+            return readTexture(payload);
+        } catch(RuntimeException e) {
+            ModernFix.LOGGER.warn("Failed to read cached texture {}", fileLocation, e);
+            return null;
+        }
+    }
+
+    private static Pair<NativeImage, AnimationMetadataSection> readTexture(ByteBuffer buf) {
+        int width = buf.getInt();
+        int height = buf.getInt();
+        AnimationMetadataSection animData;
+        if(buf.get() == 0) {
+            animData = AnimationMetadataSection.EMPTY;
+        } else {
+            int frameWidth = buf.getInt();
+            int frameHeight = buf.getInt();
+            int defaultFrameTime = buf.getInt();
+            boolean interpolate = buf.get() != 0;
+            int frameCount = buf.getInt();
+            List<AnimationFrame> frames = new ArrayList<>(frameCount);
+            for(int i = 0; i < frameCount; i++) {
+                int index = buf.getInt();
+                int time = buf.getInt();
+                frames.add(new AnimationFrame(index, time));
+            }
+            animData = new AnimationMetadataSection(frames, frameWidth, frameHeight, defaultFrameTime, interpolate);
+        }
+        int pixelBytes = width * height * 4;
+        if(buf.remaining() != pixelBytes)
+            throw new IllegalStateException("Pixel data has wrong size");
+        NativeImage image = new NativeImage(NativeImage.Format.RGBA, width, height, false);
+        MemoryUtil.memByteBuffer(((NativeImageAccessor)(Object)image).getPixels(), pixelBytes).put(buf);
+        return Pair.of(image, animData);
+    }
+
+    /**
+     * Store a freshly decoded texture, if it is small enough and the cache has room for it.
+     */
+    public void put(ResourceLocation fileLocation, String packName, NativeImage image, AnimationMetadataSection animData) {
+        if(store.isFull() || image.format() != NativeImage.Format.RGBA)
+            return;
+        long pixelBytes = (long)image.getWidth() * image.getHeight() * 4;
+        if(pixelBytes > MAX_IMAGE_BYTES)
+            return;
+        String key = makeKey(fileLocation, packName);
+        if(store.contains(key))
+            return;
+        try {
+            store.put(key, (int)pixelBytes, out -> writeTexture(out, image, animData, (int)pixelBytes));
+        } catch(RuntimeException e) {
+            ModernFix.LOGGER.warn("Failed to serialize texture {}", fileLocation, e);
+        }
+    }
+
+    private static void writeTexture(DataOutputStream out, NativeImage image, AnimationMetadataSection animData, int pixelBytes) throws IOException {
+        out.writeInt(image.getWidth());
+        out.writeInt(image.getHeight());
+        if(animData == AnimationMetadataSection.EMPTY) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            // -1 is passed as the default so that unspecified sizes are stored as unspecified
+            out.writeInt(animData.getFrameWidth(-1));
+            out.writeInt(animData.getFrameHeight(-1));
+            out.writeInt(animData.getDefaultFrameTime());
+            out.writeByte(animData.isInterpolatedFrames() ? 1 : 0);
+            int frameCount = animData.getFrameCount();
+            out.writeInt(frameCount);
+            for(int i = 0; i < frameCount; i++) {
+                out.writeInt(animData.getFrameIndex(i));
+                out.writeInt(animData.isDifferentFrameTime(i) ? animData.getFrameTime(i) : -1);
+            }
+        }
+        byte[] pixels = new byte[pixelBytes];
+        MemoryUtil.memByteBuffer(((NativeImageAccessor)(Object)image).getPixels(), pixelBytes).get(pixels);
+        out.write(pixels);
+    }
+}
@@ -10,6 +10,10 @@ public class TickableObjectManager {
         TICKABLE_OBJECT_LIST.add(object);
     }
 
+    public static void unregister(TickableObject object) {
+        TICKABLE_OBJECT_LIST.remove(object);
+    }
+
     public static void runTick() {
         for(TickableObject o : TICKABLE_OBJECT_LIST) {
             o.tick();
@@ -1,6 +1,13 @@
 package org.embeddedt.modernfix.util;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class FileUtil {
     public static File childFile(File file) {
@@ -8,6 +15,18 @@ public class FileUtil {
         return file;
     }
 
+    /**
+     * Delete a file or a folder with everything inside it.
+     */
+    public static void deleteRecursively(Path path) throws IOException {
+        List<Path> paths;
+        try(Stream<Path> stream = Files.walk(path)) {
+            paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for(Path p : paths)
+            Files.deleteIfExists(p);
+    }
+
     /**
      * Normalize a path by removing double slashes, etc.
      * <p></p>
@@ -13,6 +13,10 @@ public class NamedPreparableResourceListener implements PreparableReloadListener
         this.delegate = delegate;
     }
 
+    public PreparableReloadListener getDelegate() {
+        return this.delegate;
+    }
+
     @Override
     public CompletableFuture<Void> reload(PreparationBarrier stage, ResourceManager resourceManager, ProfilerFiller preparationsProfiler, ProfilerFiller reloadProfiler, Executor backgroundExecutor, Executor gameExecutor) {
         return this.delegate.reload(stage, resourceManager, preparationsProfiler, reloadProfiler, backgroundExecutor, gameExecutor);
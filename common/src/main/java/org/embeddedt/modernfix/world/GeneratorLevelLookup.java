@@ -0,0 +1,25 @@
+package org.embeddedt.modernfix.world;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.chunk.ChunkGenerator;
+import org.embeddedt.modernfix.platform.ModernFixPlatformHooks;
+import org.jetbrains.annotations.Nullable;
+
+public class GeneratorLevelLookup {
+    /**
+     * Find the level of the running server that uses the given generator. Looked up on every call, as generators do
+     * not know their level and must not keep it alive.
+     */
+    @Nullable
+    public static ServerLevel findLevel(ChunkGenerator generator) {
+        MinecraftServer server = ModernFixPlatformHooks.INSTANCE.getCurrentServer();
+        if(server != null) {
+            for(ServerLevel level : server.getAllLevels()) {
+                if(level.getChunkSource().getGenerator() == generator)
+                    return level;
+            }
+        }
+        return null;
+    }
+}
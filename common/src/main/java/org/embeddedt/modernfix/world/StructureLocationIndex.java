@@ -0,0 +1,181 @@
+package org.embeddedt.modernfix.world;
+
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongLinkedOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.LevelReader;
+import net.minecraft.world.level.StructureFeatureManager;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.dimension.DimensionType;
+import net.minecraft.world.level.levelgen.StructureSettings;
+import net.minecraft.world.level.levelgen.WorldgenRandom;
+import net.minecraft.world.level.levelgen.feature.StructureFeature;
+import net.minecraft.world.level.levelgen.feature.configurations.StructureFeatureConfiguration;
+import net.minecraft.world.level.levelgen.structure.StructureStart;
+import net.minecraft.world.level.saveddata.SavedData;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers, per structure and placement cell, whether the cell's potential start chunk holds a valid structure
+ * start and where it is located. Outcomes are recorded when a chunk's structure starts are generated and whenever a
+ * locate has to load a start chunk.
+ * <p></p>
+ * Nearest-structure searches walk the placement grid in the same order as vanilla, but only load start chunks for
+ * cells whose outcome is not known yet.
+ * <p></p>
+ * Each structure keeps at most {@link #MAX_CELLS_PER_FEATURE} cells. The least recently used ones are forgotten
+ * first, and are simply looked up again if a search reaches them.
+ */
+public class StructureLocationIndex extends SavedData {
+    private static final long UNKNOWN = Long.MAX_VALUE;
+    private static final long NO_START = Long.MIN_VALUE;
+    private static final int MAX_CELLS_PER_FEATURE = Integer.getInteger("modernfix.structureIndexMaxCells", 16384);
+
+    private final Map<String, Long2LongLinkedOpenHashMap> startsByFeature = new HashMap<>();
+
+    public StructureLocationIndex(ServerLevel level) {
+        super(getFileId(level.dimensionType()));
+    }
+
+    private Long2LongLinkedOpenHashMap getStarts(String featureName) {
+        return startsByFeature.computeIfAbsent(featureName, k -> {
+            Long2LongLinkedOpenHashMap map = new Long2LongLinkedOpenHashMap();
+            map.defaultReturnValue(UNKNOWN);
+            return map;
+        });
+    }
+
+    private synchronized long lookup(StructureFeature<?> feature, ChunkPos chunk) {
+        Long2LongLinkedOpenHashMap starts = startsByFeature.get(feature.getFeatureName());
+        return starts != null ? starts.getAndMoveToLast(chunk.toLong()) : UNKNOWN;
+    }
+
+    private synchronized void record(StructureFeature<?> feature, ChunkPos chunk, long outcome) {
+        Long2LongLinkedOpenHashMap starts = getStarts(feature.getFeatureName());
+        if(starts.putAndMoveToLast(chunk.toLong(), outcome) != outcome) {
+            trim(starts);
+            this.setDirty();
+        }
+    }
+
+    private static void trim(Long2LongLinkedOpenHashMap starts) {
+        while(starts.size() > MAX_CELLS_PER_FEATURE)
+            starts.removeFirstLong();
+    }
+
+    /**
+     * Record the structure starts of a chunk that just had them generated.
+     */
+    public void recordGeneratedStarts(ChunkAccess chunk, long seed, StructureSettings settings) {
+        WorldgenRandom random = new WorldgenRandom();
+        ChunkPos pos = chunk.getPos();
+        for(Map.Entry<StructureFeature<?>, StructureStart<?>> entry : chunk.getAllStarts().entrySet()) {
+            StructureStart<?> start = entry.getValue();
+            if(start != null && start.isValid()) {
+                record(entry.getKey(), pos, start.getLocatePos().asLong());
+            } else {
+                // only remember failures in the cell's potential start chunk, any other chunk can never hold a start
+                StructureFeatureConfiguration config = settings.getConfig(entry.getKey());
+                if(config != null && entry.getKey().getPotentialFeatureChunk(config, seed, random, pos.x, pos.z).equals(pos))
+                    record(entry.getKey(), pos, NO_START);
+            }
+        }
+    }
+
+    /**
+     * Same search as {@link StructureFeature#getNearestGeneratedFeature}, answering from the index where possible.
+     */
+    public BlockPos findNearest(StructureFeature<?> feature, LevelReader level, StructureFeatureManager structureManager, BlockPos pos, int radius, boolean skipExistingChunks, long seed, StructureFeatureConfiguration config) {
+        int spacing = config.spacing();
+        int originX = pos.getX() >> 4;
+        int originZ = pos.getZ() >> 4;
+        WorldgenRandom random = new WorldgenRandom();
+        for(int ring = 0; ring <= radius; ++ring) {
+            for(int dx = -ring; dx <= ring; ++dx) {
+                boolean edgeX = dx == -ring || dx == ring;
+                for(int dz = -ring; dz <= ring; ++dz) {
+                    boolean edgeZ = dz == -ring || dz == ring;
+                    if(edgeX || edgeZ) {
+                        ChunkPos candidate = feature.getPotentialFeatureChunk(config, seed, random, originX + spacing * dx, originZ + spacing * dz);
+                        long known = lookup(feature, candidate);
+                        // known starts still have to be loaded when skipping referenced ones, as references change
+                        if(known == NO_START) {
+                            if(ring == 0)
+                                break;
+                            continue;
+                        } else if(known != UNKNOWN && !skipExistingChunks)
+                            return BlockPos.of(known);
+                        ChunkAccess chunk = level.getChunk(candidate.x, candidate.z, ChunkStatus.STRUCTURE_STARTS);
+                        StructureStart<?> start = structureManager.getStartForFeature(SectionPos.of(chunk.getPos(), 0), feature, chunk);
+                        if(start != null && start.isValid()) {
+                            record(feature, candidate, start.getLocatePos().asLong());
+                            if(skipExistingChunks && start.canBeReferenced()) {
+                                start.addReference();
+                                return start.getLocatePos();
+                            }
+                            if(!skipExistingChunks)
+                                return start.getLocatePos();
+                        } else
+                            record(feature, candidate, NO_START);
+                        if(ring == 0)
+                            break;
+                    }
+                }
+                if(ring == 0)
+                    break;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void load(CompoundTag tag) {
+        startsByFeature.clear();
+        CompoundTag features = tag.getCompound("Features");
+        for(String featureName : features.getAllKeys()) {
+            CompoundTag featureTag = features.getCompound(featureName);
+            long[] chunks = featureTag.getLongArray("Chunks");
+            long[] outcomes = featureTag.getLongArray("Outcomes");
+            if(chunks.length != outcomes.length)
+                continue;
+            Long2LongLinkedOpenHashMap starts = getStarts(featureName);
+            for(int i = 0; i < chunks.length; i++) {
+                starts.put(chunks[i], outcomes[i]);
+            }
+            trim(starts);
+        }
+    }
+
+    @Override
+    public synchronized CompoundTag save(CompoundTag tag) {
+        CompoundTag features = new CompoundTag();
+        for(Map.Entry<String, Long2LongLinkedOpenHashMap> entry : startsByFeature.entrySet()) {
+            Long2LongLinkedOpenHashMap starts = entry.getValue();
+            long[] chunks = new long[starts.size()];
+            long[] outcomes = new long[starts.size()];
+            int i = 0;
+            for(Long2LongMap.Entry start : starts.long2LongEntrySet()) {
+                chunks[i] = start.getLongKey();
+                outcomes[i] = start.getLongValue();
+                i++;
+            }
+            CompoundTag featureTag = new CompoundTag();
+            featureTag.putLongArray("Chunks", chunks);
+            featureTag.putLongArray("Outcomes", outcomes);
+            features.put(entry.getKey(), featureTag);
+        }
+        tag.put("Features", features);
+        return tag;
+    }
+
+    public static String getFileId(DimensionType dimensionType) {
+        return "mfix_structure_index" + dimensionType.getFileSuffix();
+    }
+}
@@ -0,0 +1,19 @@
+package org.embeddedt.modernfix.fabric.mixin.core;
+
+import net.minecraft.client.player.LocalPlayer;
+import org.embeddedt.modernfix.ModernFixClient;
+import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(LocalPlayer.class)
+@ClientOnlyMixin
+public class LocalPlayerMixin {
+    @Inject(method = "chat", at = @At("HEAD"), cancellable = true)
+    private void handleClientCommand(String message, CallbackInfo ci) {
+        if(ModernFixClient.INSTANCE.handleClientCommand(message))
+            ci.cancel();
+    }
+}
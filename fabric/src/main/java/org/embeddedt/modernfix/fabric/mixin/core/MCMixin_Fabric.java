@@ -14,5 +14,6 @@ public class MCMixin_Fabric {
     @Inject(method = "tick", at = @At("RETURN"))
     private void onRenderTickEnd(CallbackInfo ci) {
         ModernFixClient.INSTANCE.onRenderTickEnd();
+        ModernFixClient.INSTANCE.onClientTickEnd();
     }
 }
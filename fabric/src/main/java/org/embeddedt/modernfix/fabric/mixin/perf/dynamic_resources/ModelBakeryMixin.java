@@ -37,7 +37,9 @@ import org.embeddedt.modernfix.ModernFixClient;
 import org.embeddedt.modernfix.annotation.ClientOnlyMixin;
 import org.embeddedt.modernfix.api.entrypoint.ModernFixClientIntegration;
 import org.embeddedt.modernfix.duck.IExtendedModelBakery;
+import org.embeddedt.modernfix.dynamicresources.BakedModelDiskCache;
 import org.embeddedt.modernfix.dynamicresources.DynamicBakedModelProvider;
+import org.embeddedt.modernfix.dynamicresources.DynamicResourceMetrics;
 import org.embeddedt.modernfix.dynamicresources.ModelBakeryHelpers;
 import org.embeddedt.modernfix.fabric.api.dynresources.ModelScanController;
 import org.embeddedt.modernfix.fabric.bridge.ModelV0Bridge;
@@ -99,6 +101,7 @@ public abstract class ModelBakeryMixin implements IExtendedModelBakery {
     @Shadow @Final private static Map<ResourceLocation, StateDefinition<Block, BlockState>> STATIC_DEFINITIONS;
     private Cache<Triple<ResourceLocation, Transformation, Boolean>, BakedModel> loadedBakedModels;
     private Cache<ResourceLocation, UnbakedModel> loadedModels;
+    private BakedModelDiskCache mfix$diskCache;
 
     private HashMap<ResourceLocation, UnbakedModel> smallLoadingCache = new HashMap<>();
     private Map<ResourceLocation, UnbakedModel> vanillaUnbakedStorage;
@@ -124,6 +127,10 @@ public abstract class ModelBakeryMixin implements IExtendedModelBakery {
                 .removalListener(this::onModelRemoved)
                 .softValues()
                 .build();
+        Cache<?, ?> bakedModels = this.loadedBakedModels, unbakedModels = this.loadedModels;
+        DynamicResourceMetrics.BAKED_MODELS.setResidentCounter(bakedModels::size);
+        DynamicResourceMetrics.UNBAKED_MODELS.setResidentCounter(unbakedModels::size);
+        this.mfix$diskCache = BakedModelDiskCache.open(this.resourceManager);
         // temporarily replace this map to capture models into the small loading cache
         vanillaUnbakedStorage = this.unbakedCache;
         this.unbakedCache = new ForwardingMap<ResourceLocation, UnbakedModel>() {
@@ -146,11 +153,13 @@ public abstract class ModelBakeryMixin implements IExtendedModelBakery {
     }
 
     private <K, V> void onModelRemoved(RemovalNotification<K, V> notification) {
-        if(!debugDynamicModelLoading)
-            return;
         Object k = notification.getKey();
         if(k == null)
             return;
+        (k instanceof ResourceLocation ? DynamicResourceMetrics.UNBAKED_MODELS : DynamicResourceMetrics.BAKED_MODELS)
+                .recordEviction(k, DynamicResourceMetrics.EvictionCause.fromGuava(notification.getCause()));
+        if(!debugDynamicModelLoading)
+            return;
         ResourceLocation rl;
         boolean baked = false;
         if(k instanceof ResourceLocation) {
@@ -388,6 +397,7 @@ public abstract class ModelBakeryMixin implements IExtendedModelBakery {
             cir.setReturnValue(missingModel);
             return;
         }
+        DynamicResourceMetrics.UNBAKED_MODELS.recordRequest();
         UnbakedModel existing = this.unbakedCache.get(modelLocation);
         if (existing != null) {
             cir.setReturnValue(existing);
@@ -408,7 +418,9 @@ public abstract class ModelBakeryMixin implements IExtendedModelBakery {
                             if (existing == null) {
                                 if(debugDynamicModelLoading)
                                     LOGGER.info("Loading {}", resourcelocation);
+                                long loadStart = System.nanoTime();
                                 this.loadModel(resourcelocation);
+                                DynamicResourceMetrics.UNBAKED_MODELS.recordLoad(resourcelocation, loadStart);
                             } else
                                 smallLoadingCache.put(resourcelocation, existing);
                         } catch (ModelBakery.BlockStateDefinitionException var9) {
@@ -463,6 +475,7 @@ public abstract class ModelBakeryMixin implements IExtendedModelBakery {
     public void getOrLoadBakedModelDynamic(ResourceLocation arg, ModelState arg2, CallbackInfoReturnable<BakedModel> cir) {
         Function<Material, TextureAtlasSprite> textureGetter = mat -> this.atlasSet.getSprite(mat);
         Triple<ResourceLocation, Transformation, Boolean> triple = Triple.of(arg, arg2.getRotation(), arg2.isUvLocked());
+        DynamicResourceMetrics.BAKED_MODELS.recordRequest();
         BakedModel existing = this.bakedCache.get(triple);
         if (existing != null) {
             cir.setReturnValue(existing);
@@ -470,6 +483,18 @@ public abstract class ModelBakeryMixin implements IExtendedModelBakery {
             throw new IllegalStateException("bake called too early");
         } else {
             synchronized (this) {
+                long bakeStart = System.nanoTime();
+                // integrations may change the model on every bake, so the disk cache can't be trusted with them present
+                boolean useDiskCache = this.mfix$diskCache != null && ModernFixClient.CLIENT_INTEGRATIONS.isEmpty();
+                if(useDiskCache) {
+                    BakedModel cachedModel = this.mfix$diskCache.get(arg, arg2.getRotation(), arg2.isUvLocked(), textureGetter);
+                    if(cachedModel != null) {
+                        this.bakedCache.put(triple, cachedModel);
+                        DynamicResourceMetrics.BAKED_MODELS.recordLoad(triple, bakeStart);
+                        cir.setReturnValue(cachedModel);
+                        return;
+                    }
+                }
                 if(debugDynamicModelLoading)
                     LOGGER.info("Baking {}", arg);
                 UnbakedModel iunbakedmodel = this.getModel(arg);
@@ -527,7 +552,10 @@ public abstract class ModelBakeryMixin implements IExtendedModelBakery {
                         ModernFix.LOGGER.error("Exception encountered firing bake event for {}", arg, e);
                     }
                 }
+                if(useDiskCache && iunbakedmodel != missingModel)
+                    this.mfix$diskCache.put(arg, arg2.getRotation(), arg2.isUvLocked(), ibakedmodel);
                 this.bakedCache.put(triple, ibakedmodel);
+                DynamicResourceMetrics.BAKED_MODELS.recordLoad(triple, bakeStart);
                 cir.setReturnValue(ibakedmodel);
             }
         }
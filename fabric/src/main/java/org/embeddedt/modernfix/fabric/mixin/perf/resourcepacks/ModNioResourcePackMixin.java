@@ -5,6 +5,7 @@ import net.minecraft.server.packs.PackType;
 import org.embeddedt.modernfix.annotation.RequiresMod;
 import org.embeddedt.modernfix.resources.ICachingResourcePack;
 import org.embeddedt.modernfix.resources.PackResourcesCacheEngine;
+import org.embeddedt.modernfix.resources.PackResourcesIndexCache;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
@@ -37,7 +38,7 @@ public abstract class ModNioResourcePackMixin implements ICachingResourcePack {
         this.cacheEngine = null;
         this.cacheEngine = new PackResourcesCacheEngine(this::getNamespaces, (type, namespace) -> {
             return basePath.resolve(type.getDirectory()).resolve(namespace);
-        });
+        }, PackResourcesIndexCache.findArchive(basePath));
     }
 
     // this check wastes CPU time, it is checked later anyway
@@ -126,4 +126,13 @@ public class ModernFixPlatformHooksImpl implements ModernFixPlatformHooks {
     public String getPlatformName() {
         return "Fabric";
     }
+
+    @Override
+    public Map<String, String> getModVersions() {
+        Map<String, String> versions = new HashMap<>();
+        for(ModContainer container : FabricLoader.getInstance().getAllMods()) {
+            versions.put(container.getMetadata().getId(), container.getMetadata().getVersion().getFriendlyString());
+        }
+        return versions;
+    }
 }
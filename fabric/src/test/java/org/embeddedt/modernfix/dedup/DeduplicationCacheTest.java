@@ -0,0 +1,53 @@
+package org.embeddedt.modernfix.dedup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeduplicationCacheTest {
+    @Test
+    public void testReturnsCanonicalInstance() {
+        for(DeduplicationCache.Retention retention : DeduplicationCache.Retention.values()) {
+            DeduplicationCache<String> cache = new DeduplicationCache<>(retention);
+            String first = new String("minecraft");
+            String second = new String("minecraft");
+            assertSame(first, cache.deduplicate(first));
+            assertSame(first, cache.deduplicate(second));
+            assertNull(cache.deduplicate(null));
+        }
+    }
+
+    @Test
+    public void testConcurrentDeduplication() throws Exception {
+        for(DeduplicationCache.Retention retention : DeduplicationCache.Retention.values()) {
+            DeduplicationCache<String> cache = new DeduplicationCache<>(retention);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<String[]>> futures = new ArrayList<>();
+                for(int t = 0; t < 8; t++) {
+                    futures.add(executor.submit(() -> {
+                        String[] results = new String[5000];
+                        for(int i = 0; i < results.length; i++) {
+                            results[i] = cache.deduplicate(new String("path_" + i));
+                        }
+                        return results;
+                    }));
+                }
+                String[] expected = futures.get(0).get();
+                for(Future<String[]> future : futures) {
+                    String[] results = future.get();
+                    for(int i = 0; i < results.length; i++) {
+                        assertSame(expected[i], results[i]);
+                    }
+                }
+                assertTrue(cache.toString().contains("35000/40000 de-duplicated"), cache.toString());
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+}
@@ -7,20 +7,92 @@ import net.minecraft.world.item.Items;
 import org.embeddedt.modernfix.testing.util.BootstrapMinecraft;
 import org.junit.jupiter.api.Test;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 @BootstrapMinecraft
 public class DynamicModelCacheTest {
     @Test
     public void testCacheReturnsNullForNullGetter() {
-        DynamicModelCache<Item> cache = new DynamicModelCache(k -> null, true);
+        DynamicModelCache<Item> cache = new DynamicModelCache(k -> null, true, "test_null");
         assertNull(cache.get(Items.STONE));
     }
 
     @Test
     public void testCacheFunctions() {
         BakedModel model = new BuiltInModel(null, null, null, false);
-        DynamicModelCache<Item> cache = new DynamicModelCache(k -> model, true);
+        DynamicModelCache<Item> cache = new DynamicModelCache(k -> model, true, "test_models");
         assertEquals(model, cache.get(Items.STONE));
     }
+
+    private static BakedModel newModel() {
+        return new BuiltInModel(null, null, null, false);
+    }
+
+    private static long entryWeight() {
+        return DynamicModelCache.ENTRY_OVERHEAD + DynamicModelCache.estimateModelWeight(newModel());
+    }
+
+    @Test
+    public void testCacheEvictsWhenOverBudget() {
+        Map<Integer, BakedModel> models = new HashMap<>();
+        long entryWeight = entryWeight();
+        DynamicResourceMetrics.CacheMetrics metrics = new DynamicResourceMetrics.CacheMetrics("test_eviction");
+        DynamicModelCache<Integer> cache = new DynamicModelCache<>(k -> models.computeIfAbsent(k, i -> newModel()), false, metrics, entryWeight * 8);
+        for(int i = 0; i < 100; i++) {
+            assertEquals(models.get(i), cache.get(i));
+        }
+        assertTrue(cache.getWeight() <= cache.getMaxWeight());
+        assertTrue(metrics.getEvictionCount(DynamicResourceMetrics.EvictionCause.SIZE) > 0);
+        assertEquals(100, metrics.getLoadCount());
+        assertEquals(cache.size() * entryWeight, cache.getWeight());
+        assertEquals(cache.size(), metrics.getResidentCount());
+        cache.get(99);
+        assertEquals(101, metrics.getRequestCount());
+        assertEquals(100, metrics.getLoadCount());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        DynamicResourceMetrics.CacheMetrics metrics = new DynamicResourceMetrics.CacheMetrics("test_lru");
+        DynamicModelCache<Integer> cache = new DynamicModelCache<>(k -> newModel(), false, metrics, entryWeight() * 4);
+        for(int i = 0; i < 3; i++) {
+            cache.get(i);
+        }
+        // touch the oldest entry, so it is kept over the ones loaded after it
+        cache.get(0);
+        cache.get(3);
+        cache.get(4);
+        assertEquals(3, cache.size());
+        assertEquals(5, metrics.getLoadCount());
+        cache.get(0);
+        cache.get(3);
+        cache.get(4);
+        assertEquals(5, metrics.getLoadCount());
+    }
+
+    @Test
+    public void testSharedModelIsCountedOnce() {
+        BakedModel model = newModel();
+        DynamicModelCache<Integer> cache = new DynamicModelCache<>(k -> model, false, new DynamicResourceMetrics.CacheMetrics("test_shared"), 0);
+        for(int i = 0; i < 10; i++) {
+            cache.get(i);
+        }
+        assertEquals(10 * DynamicModelCache.ENTRY_OVERHEAD + DynamicModelCache.estimateModelWeight(model), cache.getWeight());
+    }
+
+    @Test
+    public void testClearIsReportedAsExplicitEviction() {
+        BakedModel model = new BuiltInModel(null, null, null, false);
+        DynamicResourceMetrics.CacheMetrics metrics = new DynamicResourceMetrics.CacheMetrics("test_clear");
+        DynamicModelCache<Integer> cache = new DynamicModelCache<>(k -> model, false, metrics, 0);
+        for(int i = 0; i < 10; i++) {
+            cache.get(i);
+        }
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(10, metrics.getEvictionCount(DynamicResourceMetrics.EvictionCause.EXPLICIT));
+    }
 }
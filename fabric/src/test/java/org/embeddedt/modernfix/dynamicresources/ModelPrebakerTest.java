@@ -0,0 +1,31 @@
+package org.embeddedt.modernfix.dynamicresources;
+
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.embeddedt.modernfix.testing.util.BootstrapMinecraft;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@BootstrapMinecraft
+public class ModelPrebakerTest {
+    @Test
+    public void testCollectsDistinctModelStates() {
+        LevelChunkSection first = new LevelChunkSection(0);
+        first.setBlockState(0, 0, 0, Blocks.STONE.defaultBlockState());
+        first.setBlockState(1, 0, 0, Blocks.STONE.defaultBlockState());
+        first.setBlockState(2, 0, 0, Blocks.CHEST.defaultBlockState());
+        LevelChunkSection second = new LevelChunkSection(16);
+        second.setBlockState(0, 0, 0, Blocks.DIRT.defaultBlockState());
+        second.setBlockState(1, 0, 0, Blocks.WATER.defaultBlockState());
+        // empty and missing sections are skipped
+        LevelChunkSection[] sections = { first, null, new LevelChunkSection(32), second };
+        Set<BlockState> states = ModelPrebaker.collectModelStates(sections);
+        assertEquals(2, states.size());
+        assertTrue(states.contains(Blocks.STONE.defaultBlockState()));
+        assertTrue(states.contains(Blocks.DIRT.defaultBlockState()));
+    }
+}
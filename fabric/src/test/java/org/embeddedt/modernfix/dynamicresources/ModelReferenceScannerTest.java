@@ -0,0 +1,50 @@
+package org.embeddedt.modernfix.dynamicresources;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import net.minecraft.resources.ResourceLocation;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ModelReferenceScannerTest {
+    private static JsonReader reader(String json) {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    @Test
+    public void testBlockStateReferences() throws IOException {
+        List<ResourceLocation> models = new ArrayList<>();
+        ModelReferenceScanner.scanBlockState(reader("{\"variants\": {\"facing=north\": {\"model\": \"test:block/a\", \"y\": 90}, \"facing=south\": [{\"model\": \"test:block/b\"}, {\"model\": \"test:block/c\"}]}}"), models::add);
+        ModelReferenceScanner.scanBlockState(reader("{\"multipart\": [{\"when\": {\"model\": \"ignored\"}, \"apply\": {\"model\": \"test:block/d\"}}]}"), models::add);
+        assertEquals(Arrays.asList(
+                new ResourceLocation("test", "block/a"),
+                new ResourceLocation("test", "block/b"),
+                new ResourceLocation("test", "block/c"),
+                new ResourceLocation("test", "block/d")), models);
+    }
+
+    @Test
+    public void testModelReferences() throws IOException {
+        ModelReferenceScanner.ModelReferences references = ModelReferenceScanner.scanModel(reader("{\"parent\": \"block/cube_all\", \"textures\": {\"all\": \"test:block/stone\", \"particle\": \"#all\"}, \"elements\": [{\"faces\": {\"up\": {\"texture\": \"#all\"}}}], \"overrides\": [{\"predicate\": {\"pull\": 1}, \"model\": \"test:item/pulled\"}]}"));
+        assertFalse(references.needsFullParse);
+        assertEquals(Arrays.asList(new ResourceLocation("block/cube_all"), new ResourceLocation("test", "item/pulled")), references.dependencies);
+        assertEquals("block/cube_all", references.parent);
+        assertEquals("test:block/stone", references.textures.get("all"));
+        assertEquals("#all", references.textures.get("particle"));
+        assertEquals(Collections.singleton("#all"), references.faceTextures);
+        JsonObject model = references.toModelJson();
+        assertEquals("block/cube_all", model.get("parent").getAsString());
+        assertEquals(1, model.getAsJsonArray("elements").size());
+        assertTrue(ModelReferenceScanner.scanModel(reader("{\"loader\": \"forge:obj\", \"model\": \"test:models/thing.obj\"}")).needsFullParse);
+    }
+}
@@ -0,0 +1,47 @@
+package org.embeddedt.modernfix.registry;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PerfectHashIndexTest {
+    @Test
+    public void testLookupMatchesSourceMap() {
+        Map<String, Integer> map = new HashMap<>();
+        for(int i = 0; i < 20000; i++) {
+            map.put("minecraft:block_" + i, i);
+        }
+        PerfectHashIndex<String, Integer> index = PerfectHashIndex.build(map);
+        assertEquals(map.size(), index.size());
+        for(Map.Entry<String, Integer> entry : map.entrySet()) {
+            assertEquals(entry.getValue(), index.get(entry.getKey()));
+        }
+        assertNull(index.get("minecraft:block_20000"));
+        assertFalse(index.containsKey("minecraft:missing"));
+        assertNull(index.get(null));
+    }
+
+    @Test
+    public void testCollidingHashCodes() {
+        // "Aa" and "BB" have the same hash code
+        Map<String, String> map = new HashMap<>();
+        map.put("Aa", "first");
+        map.put("BB", "second");
+        map.put("unique", "third");
+        PerfectHashIndex<String, String> index = PerfectHashIndex.build(map);
+        assertEquals("first", index.get("Aa"));
+        assertEquals("second", index.get("BB"));
+        assertEquals("third", index.get("unique"));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void testEmpty() {
+        PerfectHashIndex<String, String> index = PerfectHashIndex.build(new HashMap<>());
+        assertEquals(0, index.size());
+        assertNull(index.get("a"));
+    }
+}
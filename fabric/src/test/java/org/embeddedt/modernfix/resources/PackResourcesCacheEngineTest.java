@@ -0,0 +1,69 @@
+package org.embeddedt.modernfix.resources;
+
+import com.google.common.collect.ImmutableSet;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.packs.PackType;
+import org.embeddedt.modernfix.testing.util.BootstrapMinecraft;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@BootstrapMinecraft
+public class PackResourcesCacheEngineTest {
+    private static final int NAMESPACES = 8;
+
+    private static PackResourcesCacheEngine createEngine(Path root) throws IOException {
+        ImmutableSet.Builder<String> namespaces = ImmutableSet.builder();
+        for(int i = 0; i < NAMESPACES; i++) {
+            String namespace = "ns" + i;
+            namespaces.add(namespace);
+            Path textures = root.resolve("assets").resolve(namespace).resolve("textures/block");
+            Files.createDirectories(textures);
+            Files.createFile(textures.resolve("stone.png"));
+            Files.createFile(textures.resolve("dirt.png"));
+        }
+        Collection<String> clientNamespaces = namespaces.build();
+        return new PackResourcesCacheEngine(
+                type -> type == PackType.CLIENT_RESOURCES ? ImmutableSet.copyOf(clientNamespaces) : Collections.emptySet(),
+                (type, namespace) -> root.resolve(type.getDirectory()).resolve(namespace));
+    }
+
+    @Test
+    public void testConcurrentFirstLookups(@TempDir Path root) throws Exception {
+        PackResourcesCacheEngine engine = createEngine(root);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for(int i = 0; i < threads; i++) {
+                String path = "assets/ns" + (i % NAMESPACES) + "/textures/block/stone.png";
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return engine.hasResource(path);
+                }));
+            }
+            start.countDown();
+            for(Future<Boolean> result : results) {
+                assertTrue(result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertFalse(engine.hasResource("assets/ns0/textures/block/missing.png"));
+        for(int i = 0; i < NAMESPACES; i++) {
+            Collection<ResourceLocation> resources = engine.getResources(PackType.CLIENT_RESOURCES, "ns" + i, "textures", Integer.MAX_VALUE, s -> s.endsWith(".png"));
+            assertEquals(2, resources.size());
+        }
+    }
+}
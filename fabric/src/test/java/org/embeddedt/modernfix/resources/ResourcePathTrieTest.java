@@ -0,0 +1,49 @@
+package org.embeddedt.modernfix.resources;
+
+import net.minecraft.resources.ResourceLocation;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResourcePathTrieTest {
+    private static ResourcePathTrie buildTrie(String... paths) {
+        ResourcePathTrie.Builder builder = new ResourcePathTrie.Builder(2);
+        for(String path : paths) {
+            builder.add(new CachedResourcePath(new String[] { "assets", "test" }, Arrays.asList(path.split("/")), true));
+        }
+        return builder.build();
+    }
+
+    private static List<ResourceLocation> collect(ResourcePathTrie trie, String pathIn, int maxDepth) {
+        List<ResourceLocation> list = new ArrayList<>();
+        trie.collect("test", pathIn, maxDepth, s -> s.endsWith(".png"), list);
+        return list;
+    }
+
+    @Test
+    public void testPrefixQuery() {
+        ResourcePathTrie trie = buildTrie("textures/block/stone.png", "textures/block/dirt.png", "textures/blocks/old.png", "textures/item/apple.png", "textures/block/stone.png.mcmeta");
+        assertEquals(new HashSet<>(Arrays.asList(
+                new ResourceLocation("test", "textures/block/stone.png"),
+                new ResourceLocation("test", "textures/block/dirt.png"))), new HashSet<>(collect(trie, "textures/block", Integer.MAX_VALUE)));
+        assertEquals(2, collect(trie, "textures/block/", Integer.MAX_VALUE).size());
+        assertEquals(4, collect(trie, "textures", Integer.MAX_VALUE).size());
+        assertTrue(collect(trie, "textures/bl", Integer.MAX_VALUE).isEmpty());
+        assertTrue(collect(trie, "", Integer.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void testMaxDepth() {
+        ResourcePathTrie trie = buildTrie("textures/a.png", "textures/sub/b.png", "textures/sub/deeper/c.png");
+        assertTrue(collect(trie, "textures", 1).isEmpty());
+        assertEquals(Collections.singletonList(new ResourceLocation("test", "textures/a.png")), collect(trie, "textures", 2));
+        assertEquals(2, collect(trie, "textures", 3).size());
+        assertEquals(2, collect(trie, "textures/sub", 4).size());
+    }
+}
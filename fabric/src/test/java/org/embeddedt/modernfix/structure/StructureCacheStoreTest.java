@@ -0,0 +1,116 @@
+package org.embeddedt.modernfix.structure;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StructureCacheStoreTest {
+    private static CompoundTag makeTag(int value) {
+        CompoundTag tag = new CompoundTag();
+        tag.putInt("value", value);
+        tag.putString("name", "structure_" + value);
+        return tag;
+    }
+
+    @Test
+    public void testReadsRecordsWrittenByLaterFlushes(@TempDir Path dir) throws Exception {
+        StructureCacheStore store = StructureCacheStore.open(dir.resolve("structures.bin"));
+        store.put("first", makeTag(1));
+        store.flush();
+        // the second flush appends past the end of the first mapping
+        store.put("second", makeTag(2));
+        store.flush();
+        assertEquals(makeTag(1), store.get("first"));
+        assertEquals(makeTag(2), store.get("second"));
+        assertNull(store.get("missing"));
+        store.close();
+    }
+
+    @Test
+    public void testRecordsSurviveReopening(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("structures.bin");
+        StructureCacheStore store = StructureCacheStore.open(file);
+        for(int i = 0; i < 16; i++) {
+            store.put("structure_" + i, makeTag(i));
+        }
+        store.close();
+        StructureCacheStore reopened = StructureCacheStore.open(file);
+        for(int i = 0; i < 16; i++) {
+            assertEquals(makeTag(i), reopened.get("structure_" + i));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void testSecondOpenIsRejected(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("structures.bin");
+        StructureCacheStore store = StructureCacheStore.open(file);
+        assertThrows(IOException.class, () -> StructureCacheStore.open(file));
+        store.close();
+        StructureCacheStore.open(file).close();
+    }
+
+    private static int payloadSize(CompoundTag tag) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        NbtIo.write(tag, new DataOutputStream(bytes));
+        return bytes.size();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("structures.bin");
+        AtomicLong time = new AtomicLong();
+        StructureCacheStore store = StructureCacheStore.open(file, Long.MAX_VALUE, time::get);
+        for(int i = 0; i < 3; i++) {
+            time.set(i);
+            store.put("structure_" + i, makeTag(i));
+        }
+        store.flush();
+        // using the oldest entry makes the middle one the least recently used
+        time.set(TimeUnit.HOURS.toMillis(2));
+        assertEquals(makeTag(0), store.get("structure_0"));
+        store.close();
+        long sizeBefore = Files.size(file);
+        StructureCacheStore reopened = StructureCacheStore.open(file, 2L * payloadSize(makeTag(0)), time::get);
+        assertEquals(makeTag(0), reopened.get("structure_0"));
+        assertNull(reopened.get("structure_1"));
+        assertEquals(makeTag(2), reopened.get("structure_2"));
+        reopened.close();
+        // dropping an entry compacts the file, which leaves a single index behind
+        assertTrue(Files.size(file) < sizeBefore);
+    }
+
+    @Test
+    public void testCompactionKeepsEntriesUsable(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("structures.bin");
+        AtomicLong time = new AtomicLong();
+        StructureCacheStore store = StructureCacheStore.open(file, Long.MAX_VALUE, time::get);
+        for(int i = 0; i < 8; i++) {
+            store.put("structure_" + i, makeTag(i));
+            store.flush();
+        }
+        store.close();
+        // entries unused for too long are dropped, forcing a compaction
+        time.set(TimeUnit.DAYS.toMillis(90));
+        StructureCacheStore compacted = StructureCacheStore.open(file, Long.MAX_VALUE, time::get);
+        for(int i = 0; i < 8; i++) {
+            assertNull(compacted.get("structure_" + i));
+        }
+        compacted.put("fresh", makeTag(42));
+        compacted.close();
+        StructureCacheStore reopened = StructureCacheStore.open(file, Long.MAX_VALUE, time::get);
+        assertEquals(makeTag(42), reopened.get("fresh"));
+        reopened.close();
+    }
+}
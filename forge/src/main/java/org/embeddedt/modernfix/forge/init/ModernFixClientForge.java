@@ -62,8 +62,15 @@ public class ModernFixClientForge {
 
     @SubscribeEvent(priority = EventPriority.LOW)
     public void onClientChat(ClientChatEvent event) {
-        if(event.getMessage() != null && event.getMessage().trim().equals("/mfrc")) {
+        if(event.getMessage() == null)
+            return;
+        boolean handled = false;
+        if(event.getMessage().trim().equals("/mfrc")) {
             NightConfigFixer.runReloads();
+            handled = true;
+        } else
+            handled = commonMod.handleClientCommand(event.getMessage());
+        if(handled) {
             event.setCanceled(true);
             // add it to chat history
             Minecraft.getInstance().gui.getChat().addRecentChat(event.getMessage());
@@ -115,6 +122,12 @@ public class ModernFixClientForge {
             commonMod.onRenderTickEnd();
     }
 
+    @SubscribeEvent
+    public void onClientTickEnd(TickEvent.ClientTickEvent event) {
+        if(event.phase == TickEvent.Phase.END)
+            commonMod.onClientTickEnd();
+    }
+
     @SubscribeEvent(priority = EventPriority.LOWEST)
     public void onRecipes(RecipesUpdatedEvent e) {
         commonMod.onRecipesUpdated();
@@ -25,7 +25,7 @@ public abstract class ItemModelMesherForgeMixin extends ItemModelShaper {
 
     private Map<IRegistryDelegate<Item>, ModelResourceLocation> overrideLocations;
 
-    private final DynamicModelCache<IRegistryDelegate<Item>> mfix$modelCache = new DynamicModelCache<>(k -> this.mfix$getModelSlow((IRegistryDelegate<Item>)k), true);
+    private final DynamicModelCache<IRegistryDelegate<Item>> mfix$modelCache = new DynamicModelCache<>(k -> this.mfix$getModelSlow((IRegistryDelegate<Item>)k), true, "forge_item_models");
 
     public ItemModelMesherForgeMixin(ModelManager arg) {
         super(arg);
@@ -42,7 +42,7 @@ public abstract class ModFileResourcePackMixin implements ICachingResourcePack {
         this.cacheEngine = null;
         this.cacheEngine = new PackResourcesCacheEngine(this::getNamespaces, (type, namespace) -> {
             return modFile.getLocator().findPath(modFile, type.getDirectory(), namespace);
-        });
+        }, modFile.getFilePath());
     }
 
     @Inject(method = "getNamespaces", at = @At("HEAD"), cancellable = true)
@@ -1,11 +1,16 @@
 package org.embeddedt.modernfix.forge.mixin.perf.rewrite_registry;
 
 import com.google.common.collect.BiMap;
+import com.google.common.collect.Multimap;
 import net.minecraft.core.Registry;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraftforge.registries.ForgeRegistry;
+import net.minecraftforge.registries.IForgeRegistry;
 import net.minecraftforge.registries.IForgeRegistryEntry;
+import net.minecraftforge.registries.IForgeRegistryInternal;
+import net.minecraftforge.registries.RegistryManager;
+import org.embeddedt.modernfix.ModernFix;
 import org.embeddedt.modernfix.annotation.IgnoreOutsideDev;
 import org.embeddedt.modernfix.forge.registry.FastForgeRegistry;
 import org.spongepowered.asm.mixin.Final;
@@ -17,6 +22,9 @@ import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.Redirect;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
+import java.util.Map;
+import java.util.Set;
+
 @Mixin(value = ForgeRegistry.class, remap = false)
 @IgnoreOutsideDev
 public class ForgeRegistryMixin<V extends IForgeRegistryEntry<V>> {
@@ -33,6 +41,20 @@ public class ForgeRegistryMixin<V extends IForgeRegistryEntry<V>> {
 
     @Shadow @Final @Mutable private BiMap owners;
 
+    @Shadow @Final private Map<ResourceLocation, ResourceLocation> aliases;
+
+    @Shadow @Final private Set<ResourceLocation> dummies;
+
+    @Shadow @Final private Multimap<ResourceLocation, V> overrides;
+
+    @Shadow private boolean isFrozen;
+
+    @Shadow @Final private IForgeRegistry.ClearCallback<V> clear;
+
+    @Shadow @Final private IForgeRegistry.AddCallback<V> add;
+
+    @Shadow @Final private RegistryManager stage;
+
     private FastForgeRegistry<V> fastRegistry;
 
     /**
@@ -53,6 +75,45 @@ public class ForgeRegistryMixin<V extends IForgeRegistryEntry<V>> {
         this.fastRegistry.optimize();
     }
 
+    /**
+     * Skip rebuilding the registry maps if the incoming registry has exactly the same contents, which is the usual case
+     * when reconnecting to a server or reloading a singleplayer world. Otherwise, other threads keep reading the
+     * previous contents until the sync is complete.
+     * <p></p>
+     * The clear and add callbacks still run, as the registry is baked again afterwards and the bake callbacks rebuild
+     * their maps (like the block state IDs) on the assumption that they were cleared. Each value is passed with no
+     * previous value, like the first add of every name after the clear at the start of a real sync. A real sync also
+     * adds the inactive overrides of a name before its active value, but the callbacks only use the previous value to
+     * undo what the earlier add of that name installed, so adding just the active value leaves them in the same state.
+     */
+    @Inject(method = "sync", at = @At("HEAD"), cancellable = true)
+    private void beginSync(ResourceLocation name, ForgeRegistry<V> from, CallbackInfo ci) {
+        ForgeRegistryMixin<V> other = (ForgeRegistryMixin<V>)(Object)from;
+        if((Object)this != from && other.fastRegistry != null
+                && this.aliases.equals(other.aliases)
+                && this.dummies.equals(other.dummies)
+                && this.overrides.equals(other.overrides)
+                && this.fastRegistry.contentEquals(other.fastRegistry)) {
+            ModernFix.LOGGER.debug("Registry {} already matches the synced contents, skipping rebuild", name);
+            // sync always leaves the registry unfrozen
+            this.isFrozen = false;
+            IForgeRegistryInternal<V> owner = (IForgeRegistryInternal<V>)(Object)this;
+            if(this.clear != null)
+                this.clear.onClear(owner, this.stage);
+            // the ID map iterates in ascending ID order, like the adds of a real sync
+            if(this.add != null)
+                this.ids.forEach((id, value) -> this.add.onAdd(owner, this.stage, id, value, null));
+            ci.cancel();
+            return;
+        }
+        this.fastRegistry.beginSync();
+    }
+
+    @Inject(method = "sync", at = @At("RETURN"))
+    private void publishSyncedContents(CallbackInfo ci) {
+        this.fastRegistry.endSync();
+    }
+
     @Redirect(method = "sync", at = @At(value = "INVOKE", target = "Lcom/google/common/collect/BiMap;clear()V"))
     private void clearBiMap(BiMap map) {
         if(map == this.owners) {
@@ -2,12 +2,14 @@ package org.embeddedt.modernfix.forge.registry;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.Iterators;
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import net.minecraft.core.Registry;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraftforge.registries.IForgeRegistryEntry;
+import org.embeddedt.modernfix.registry.PerfectHashIndex;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -16,6 +18,17 @@ import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
+/**
+ * Replacement for the BiMaps backing a Forge registry.
+ * <p></p>
+ * Writes go to mutable hash maps that are not thread-safe. Each time the registry is frozen, {@link #optimize()}
+ * copies them into an immutable {@link Snapshot}, which lookups from any thread then use without locking. Writes
+ * after that point discard the snapshot, except during a registry sync. There the old snapshot stays published for
+ * other threads until the sync finishes and a new one replaces it, so they never see half-updated tables. The thread
+ * running the sync reads the live maps, so it sees its own writes.
+ * <p></p>
+ * Only used by the rewrite_registry option, which is off by default and only applied in development environments.
+ */
 public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
     private final BiMap<Integer, V> ids;
     private final DataFieldBiMap<ResourceLocation> names;
@@ -26,12 +39,78 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
     private final ObjectArrayList<V> valuesById;
     private final Object2ObjectOpenHashMap<V, RegistryValueData> infoByValue;
 
+    private volatile Snapshot snapshot;
+    private volatile Thread syncThread;
+
+    private static final int NUM_DATA_FIELDS = 3;
+
+    /**
+     * Immutable copy of the registry contents. Every array and table is fully built before the snapshot is
+     * published through the volatile field, and never modified afterwards, so plain hash maps are safe to read from
+     * any thread. Lookups by name, key and owner go through a {@link PerfectHashIndex} over the frozen key set.
+     */
+    private static final class Snapshot {
+        final Object[] valuesById;
+        final Object2ObjectOpenHashMap<Object, RegistryValueData> infoByValue;
+        final PerfectHashIndex<Object, Object>[] valuesByKey;
+        final long fingerprint;
+
+        @SuppressWarnings("unchecked")
+        Snapshot(Object[] valuesById, Object2ObjectOpenHashMap<Object, RegistryValueData> infoByValue, long fingerprint) {
+            this.valuesById = valuesById;
+            this.infoByValue = infoByValue;
+            this.fingerprint = fingerprint;
+            this.valuesByKey = new PerfectHashIndex[NUM_DATA_FIELDS];
+        }
+    }
+
+    /**
+     * @return the snapshot to read from, or null if the live maps must be used
+     */
+    private Snapshot readableSnapshot() {
+        Snapshot s = this.snapshot;
+        if(s != null) {
+            Thread sync = this.syncThread;
+            if(sync != null && sync == Thread.currentThread())
+                return null;
+        }
+        return s;
+    }
+
+    /**
+     * Called before any write to the live maps.
+     */
+    private void onWrite() {
+        if(this.syncThread == null)
+            this.snapshot = null;
+    }
+
+    /**
+     * Keep the current snapshot visible to other threads while the calling thread rewrites the registry.
+     */
+    public void beginSync() {
+        this.syncThread = Thread.currentThread();
+    }
+
+    /**
+     * Publish the synced contents.
+     */
+    public void endSync() {
+        try {
+            optimize();
+        } finally {
+            this.syncThread = null;
+        }
+    }
+
     private void storeId(V value, int id) {
+        onWrite();
         RegistryValueData pair = infoByValue.computeIfAbsent(value, k -> new RegistryValueData());
         pair.id = id;
     }
 
     private void updateInfoPairAndClearIfNull(V v, Consumer<RegistryValueData> consumer) {
+        onWrite();
         infoByValue.compute(v, (oldValue, oldPair) -> {
             if(oldPair == null)
                 oldPair = new RegistryValueData();
@@ -44,6 +123,7 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
     }
 
     private void ensureArrayCanFitId(int id) {
+        onWrite();
         int desiredSize = id + 1;
         while(valuesById.size() < desiredSize) {
             valuesById.add(null);
@@ -51,6 +131,7 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
     }
 
     public void clear() {
+        onWrite();
         this.infoByValue.clear();
         for(int i = 0; i < this.valuesById.size(); i++) {
             this.valuesById.set(i, null);
@@ -64,9 +145,9 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
         this.registryKey = registryKey;
         this.valuesById = new ObjectArrayList<>();
         this.infoByValue = new Object2ObjectOpenHashMap<>();
-        this.keys = new DataFieldBiMap<>(p -> (ResourceKey<V>) p.key, (p, k) -> p.key = k);
-        this.owners = new DataFieldBiMap<>(p -> p.overrideOwner, (p, k) -> p.overrideOwner = k);
-        this.names = new DataFieldBiMap<>(p -> p.location, (p, l) -> p.location = l);
+        this.keys = new DataFieldBiMap<>(0, p -> (ResourceKey<V>) p.key, (p, k) -> p.key = k);
+        this.owners = new DataFieldBiMap<>(1, p -> p.overrideOwner, (p, k) -> p.overrideOwner = k);
+        this.names = new DataFieldBiMap<>(2, p -> p.location, (p, l) -> p.location = l);
         // IDs require a specialized implementation, as we back the K->V direction with an array
         this.ids = new BiMap<Integer, V>() {
             @Nullable
@@ -156,7 +237,8 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
 
                     @Override
                     public Integer get(Object key) {
-                        RegistryValueData pair = infoByValue.get(key);
+                        Snapshot s = readableSnapshot();
+                        RegistryValueData pair = s != null ? s.infoByValue.get(key) : infoByValue.get(key);
                         if(pair == null)
                             return null;
                         return pair.id == -1 ? null : pair.id;
@@ -164,6 +246,7 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
 
                     @Override
                     public Integer remove(Object key) {
+                        onWrite();
                         RegistryValueData pair = infoByValue.get(key);
                         if(pair == null)
                             return null;
@@ -214,8 +297,12 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
             }
 
             @Override
+            @SuppressWarnings("unchecked")
             public V get(Object key) {
                 int id = (Integer)key;
+                Snapshot s = readableSnapshot();
+                if(s != null)
+                    return (id < 0 || id >= s.valuesById.length) ? null : (V)s.valuesById[id];
                 if(id < 0 || id >= valuesById.size())
                     return null;
                 else
@@ -229,6 +316,7 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
 
             @Override
             public void clear() {
+                onWrite();
                 valuesById.clear();
                 infoByValue.values().removeIf(pair -> {
                     pair.id = -1;
@@ -264,6 +352,55 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
         this.owners.optimize();
         this.names.optimize();
         this.infoByValue.trim();
+        // values are copied, as the live data objects are modified in place by later writes
+        Object2ObjectOpenHashMap<Object, RegistryValueData> frozenInfo = new Object2ObjectOpenHashMap<>(infoByValue.size());
+        infoByValue.forEach((value, data) -> frozenInfo.put(value, data.copy()));
+        Snapshot newSnapshot = new Snapshot(valuesById.toArray(), frozenInfo, computeFingerprint());
+        this.keys.buildSnapshot(newSnapshot);
+        this.owners.buildSnapshot(newSnapshot);
+        this.names.buildSnapshot(newSnapshot);
+        this.snapshot = newSnapshot;
+    }
+
+    private long computeFingerprint() {
+        // order-independent, so it does not depend on the iteration order of the hash map
+        long fingerprint = infoByValue.size();
+        for(RegistryValueData data : infoByValue.values()) {
+            long entryHash = ((long)data.id << 32) ^ Objects.hashCode(data.location);
+            entryHash = entryHash * 31 + Objects.hashCode(data.key);
+            entryHash = entryHash * 31 + Objects.hashCode(data.overrideOwner);
+            fingerprint += HashCommon.murmurHash3(entryHash);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return a fingerprint of the ID, name, key and owner of every value, equal for registries with the same contents
+     */
+    public long getFingerprint() {
+        Snapshot s = this.snapshot;
+        if(s != null && this.syncThread == null)
+            return s.fingerprint;
+        return computeFingerprint();
+    }
+
+    /**
+     * Check whether the other registry maps exactly the same values to the same IDs, names, keys and owners.
+     */
+    public boolean contentEquals(FastForgeRegistry<V> other) {
+        if(this.infoByValue.size() != other.infoByValue.size() || this.getFingerprint() != other.getFingerprint())
+            return false;
+        for(Map.Entry<V, RegistryValueData> entry : this.infoByValue.entrySet()) {
+            RegistryValueData ours = entry.getValue();
+            RegistryValueData theirs = other.infoByValue.get(entry.getKey());
+            if(theirs == null
+                    || ours.id != theirs.id
+                    || !Objects.equals(ours.location, theirs.location)
+                    || !Objects.equals(ours.key, theirs.key)
+                    || !Objects.equals(ours.overrideOwner, theirs.overrideOwner))
+                return false;
+        }
+        return true;
     }
 
     public BiMap<Integer, V> getIds() {
@@ -288,10 +425,12 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
      */
     class DataFieldBiMap<K> implements BiMap<K, V> {
         public final Object2ObjectOpenHashMap<K, V> valuesByKey = new Object2ObjectOpenHashMap<>();
+        private final int snapshotIndex;
         private final Function<RegistryValueData, K> getter;
         private final BiConsumer<RegistryValueData, K> setter;
 
-        public DataFieldBiMap(Function<RegistryValueData, K> getter, BiConsumer<RegistryValueData, K> setter) {
+        public DataFieldBiMap(int snapshotIndex, Function<RegistryValueData, K> getter, BiConsumer<RegistryValueData, K> setter) {
+            this.snapshotIndex = snapshotIndex;
             this.getter = getter;
             this.setter = setter;
         }
@@ -300,7 +439,18 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
             this.valuesByKey.trim();
         }
 
+        @SuppressWarnings("unchecked")
+        void buildSnapshot(Snapshot s) {
+            s.valuesByKey[snapshotIndex] = PerfectHashIndex.build((Map<Object, Object>)(Map<?, ?>)valuesByKey);
+        }
+
+        private PerfectHashIndex<Object, Object> readableTable() {
+            Snapshot s = readableSnapshot();
+            return s != null ? s.valuesByKey[snapshotIndex] : null;
+        }
+
         public void clearUnsafe() {
+            onWrite();
             this.valuesByKey.clear();
         }
 
@@ -312,6 +462,7 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
                     throw new IllegalArgumentException("Existing mapping for key " + key + " value " + value);
                 }
             }
+            onWrite();
             V oldValue = valuesByKey.put(key, value);
             if(oldValue != null) {
                 updateInfoPairAndClearIfNull(oldValue, p -> setter.accept(p, null));
@@ -363,17 +514,21 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
 
         @Override
         public boolean containsKey(Object key) {
-            return valuesByKey.containsKey(key);
+            PerfectHashIndex<Object, Object> table = readableTable();
+            return table != null ? table.containsKey(key) : valuesByKey.containsKey(key);
         }
 
         @Override
         public boolean containsValue(Object value) {
-            return infoByValue.containsKey(value);
+            Snapshot s = readableSnapshot();
+            return s != null ? s.infoByValue.containsKey(value) : infoByValue.containsKey(value);
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public V get(Object key) {
-            return valuesByKey.get(key);
+            PerfectHashIndex<Object, Object> table = readableTable();
+            return table != null ? (V)table.get(key) : valuesByKey.get(key);
         }
 
         @Override
@@ -387,6 +542,7 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
 
         @Override
         public void clear() {
+            onWrite();
             valuesByKey.values().forEach(v -> updateInfoPairAndClearIfNull(v, p -> p.key = null));
             valuesByKey.clear();
         }
@@ -452,17 +608,19 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
 
         @Override
         public boolean containsKey(Object key) {
-            return infoByValue.containsKey(key);
+            Snapshot s = readableSnapshot();
+            return s != null ? s.infoByValue.containsKey(key) : infoByValue.containsKey(key);
         }
 
         @Override
         public boolean containsValue(Object value) {
-            return forward.valuesByKey.containsKey(value);
+            return forward.containsKey(value);
         }
 
         @Override
         public K get(Object key) {
-            RegistryValueData pair = infoByValue.get(key);
+            Snapshot s = readableSnapshot();
+            RegistryValueData pair = s != null ? s.infoByValue.get(key) : infoByValue.get(key);
             if(pair == null)
                 return null;
             else
@@ -471,6 +629,7 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
 
         @Override
         public K remove(Object key) {
+            onWrite();
             RegistryValueData pair = infoByValue.get(key);
             if(pair == null)
                 return null;
@@ -598,5 +757,14 @@ public class FastForgeRegistry<V extends IForgeRegistryEntry<V>> {
         boolean isEmpty() {
             return key == null && location == null && id == -1 && overrideOwner == null;
         }
+
+        RegistryValueData copy() {
+            RegistryValueData data = new RegistryValueData();
+            data.key = key;
+            data.location = location;
+            data.id = id;
+            data.overrideOwner = overrideOwner;
+            return data;
+        }
     }
 }
@@ -1,12 +1,19 @@
 package org.embeddedt.modernfix.forge.structure;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.mojang.datafixers.util.Pair;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.level.chunk.ChunkGenerator;
 import net.minecraft.world.level.levelgen.feature.StructureFeature;
+import net.minecraftforge.event.world.ChunkEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.thread.SidedThreadGroups;
@@ -14,47 +21,90 @@ import net.minecraftforge.fml.event.server.FMLServerAboutToStartEvent;
 import net.minecraftforge.fml.event.server.FMLServerStoppingEvent;
 import org.embeddedt.modernfix.ModernFix;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @Mod.EventBusSubscriber(modid = ModernFix.MODID)
 public class AsyncLocator {
 	private static ExecutorService LOCATING_EXECUTOR_SERVICE = null;
+	/**
+	 * Runs the searches that skip known structures one at a time, as marking a structure as known is not thread-safe.
+	 */
+	private static ExecutorService SKIP_KNOWN_EXECUTOR_SERVICE = null;
 	private static final AtomicInteger poolNum = new AtomicInteger(1);
 
+	/**
+	 * Cached results and running searches are indexed by the cells of 2^CELL_SHIFT chunks they can be invalidated
+	 * from, so that a chunk load only checks the ones near it.
+	 */
+	private static final int CELL_SHIFT = 5;
+	private static final int MAX_CACHED_RESULTS_PER_LEVEL = 256;
+
+	/**
+	 * Searches currently running, so that identical requests can wait for them instead of searching again.
+	 */
+	private static final ConcurrentHashMap<LocateKey, SharedLocate> IN_FLIGHT = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<ResourceKey<Level>, LocateCache> CACHES = new ConcurrentHashMap<>();
+
 	private AsyncLocator() {}
 
+	private static int getConfiguredThreadCount() {
+		String requested = System.getProperty("modernfix.asyncLocatorThreads");
+		if (requested != null) {
+			try {
+				return Math.max(1, Integer.parseInt(requested));
+			} catch (NumberFormatException e) {
+				ModernFix.LOGGER.error("modernfix.asyncLocatorThreads is not a number");
+			}
+		}
+		return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
 	private static void setupExecutorService() {
 		shutdownExecutorService();
 
-		int threads = 1; // very unlikely we need more than one
+		int threads = getConfiguredThreadCount();
 		ModernFix.LOGGER.info("Starting locating executor service with thread pool size of {}", threads);
-		LOCATING_EXECUTOR_SERVICE = Executors.newFixedThreadPool(
-			threads,
-			new ThreadFactory() {
+		LOCATING_EXECUTOR_SERVICE = Executors.newFixedThreadPool(threads, createThreadFactory());
+		SKIP_KNOWN_EXECUTOR_SERVICE = Executors.newSingleThreadExecutor(createThreadFactory());
+	}
 
-				private final AtomicInteger threadNum = new AtomicInteger(1);
-				private final String namePrefix = "asynclocator-" + poolNum.getAndIncrement() + "-thread-";
+	private static ThreadFactory createThreadFactory() {
+		return new ThreadFactory() {
 
-				@Override
-				public Thread newThread(@NotNull Runnable r) {
-					return new Thread(SidedThreadGroups.SERVER, r, namePrefix + threadNum.getAndIncrement());
-				}
+			private final AtomicInteger threadNum = new AtomicInteger(1);
+			private final String namePrefix = "asynclocator-" + poolNum.getAndIncrement() + "-thread-";
+
+			@Override
+			public Thread newThread(@NotNull Runnable r) {
+				return new Thread(SidedThreadGroups.SERVER, r, namePrefix + threadNum.getAndIncrement());
 			}
-		);
+		};
 	}
 
 	private static void shutdownExecutorService() {
 		if (LOCATING_EXECUTOR_SERVICE != null) {
 			ModernFix.LOGGER.info("Shutting down locating executor service");
 			LOCATING_EXECUTOR_SERVICE.shutdown();
+			SKIP_KNOWN_EXECUTOR_SERVICE.shutdown();
 		}
+		IN_FLIGHT.clear();
+		CACHES.clear();
 	}
 
 	@SubscribeEvent
@@ -67,6 +117,15 @@ public class AsyncLocator {
 		shutdownExecutorService();
 	}
 
+	@SubscribeEvent
+	public static void handleChunkLoad(ChunkEvent.Load event) {
+		if (!(event.getWorld() instanceof ServerLevel) || CACHES.isEmpty())
+			return;
+		LocateCache cache = CACHES.get(((ServerLevel)event.getWorld()).dimension());
+		if (cache != null)
+			cache.invalidate(event.getChunk().getPos());
+	}
+
 	/**
 	 * Queues a task to locate a feature using {@link ServerLevel#findNearestMapFeature(TagKey, BlockPos, int, boolean)}
 	 * and returns a {@link LocateTask} with the futures for it.
@@ -82,11 +141,8 @@ public class AsyncLocator {
 			"Creating locate task for {} in {} around {} within {} chunks",
 				structure, level, pos, searchRadius
 		);
-		CompletableFuture<BlockPos> completableFuture = new CompletableFuture<>();
-		Future<?> future = LOCATING_EXECUTOR_SERVICE.submit(
-			() -> doLocateLevel(completableFuture, level, structure, pos, searchRadius, skipKnownStructures)
-		);
-		return new LocateTask<>(level.getServer(), completableFuture, future);
+		return submit(level, new LocateKey(level.dimension(), false, structure, pos, searchRadius), skipKnownStructures,
+			() -> doLocateLevel(level, structure, pos, searchRadius, skipKnownStructures));
 	}
 
 	/**
@@ -105,19 +161,56 @@ public class AsyncLocator {
 			"Creating locate task for {} in {} around {} within {} chunks",
 			structureSet, level, pos, searchRadius
 		);
-		CompletableFuture<Pair<BlockPos, StructureFeature<?>>> completableFuture = new CompletableFuture<>();
-		Future<?> future = LOCATING_EXECUTOR_SERVICE.submit(
-			() -> doLocateChunkGenerator(completableFuture, level, structureSet, pos, searchRadius, skipKnownStructures)
-		);
-		return new LocateTask<>(level.getServer(), completableFuture, future);
+		return submit(level, new LocateKey(level.dimension(), true, structureSet, pos, searchRadius), skipKnownStructures,
+			() -> doLocateChunkGenerator(level, structureSet, pos, searchRadius, skipKnownStructures));
+	}
+
+	/**
+	 * Run the search, or reuse a cached result or an identical search that is already running. Searches that skip
+	 * known structures are never shared, as each of them marks the structure it finds as known, and they run one at a
+	 * time.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> LocateTask<T> submit(ServerLevel level, LocateKey key, boolean skipKnownStructures, Supplier<T> search) {
+		CompletableFuture<T> completableFuture = new CompletableFuture<>();
+		if (skipKnownStructures) {
+			Future<?> future = SKIP_KNOWN_EXECUTOR_SERVICE.submit(() -> completableFuture.complete(search.get()));
+			return new LocateTask<>(level.getServer(), completableFuture, future);
+		}
+		LocateCache cache = CACHES.computeIfAbsent(key.dimension, k -> new LocateCache());
+		Optional<Object> cached = cache.get(key);
+		if (cached != null) {
+			ModernFix.LOGGER.debug("Using cached locate result for {}", key.structures);
+			completableFuture.complete((T)cached.orElse(null));
+			return new LocateTask<>(level.getServer(), completableFuture, CompletableFuture.completedFuture(null));
+		}
+		SharedLocate shared = IN_FLIGHT.compute(key, (k, running) -> {
+			if (running != null && running.join())
+				return running;
+			SharedLocate newLocate = new SharedLocate(k, cache);
+			newLocate.task = LOCATING_EXECUTOR_SERVICE.submit(() -> newLocate.run(search));
+			return newLocate;
+		});
+		shared.result.whenComplete((result, throwable) -> {
+			if (throwable == null)
+				completableFuture.complete((T)result);
+			else
+				completableFuture.completeExceptionally(throwable);
+		});
+		// cancelling this handle only drops our interest, the search stops once nobody is waiting for it
+		CompletableFuture<Void> handle = new CompletableFuture<>();
+		handle.whenComplete((v, t) -> {
+			if (handle.isCancelled())
+				shared.release();
+		});
+		return new LocateTask<>(level.getServer(), completableFuture, handle);
 	}
 
 	private static String structureSetToString(Collection<StructureFeature<?>> collection) {
 		return "[" + collection.stream().map(StructureFeature::getRegistryName).map(ResourceLocation::toString).collect(Collectors.joining(", ")) + "]";
 	}
 
-	private static void doLocateLevel(
-		CompletableFuture<BlockPos> completableFuture,
+	private static BlockPos doLocateLevel(
 		ServerLevel level,
 		Collection<StructureFeature<?>> structureTag,
 		BlockPos pos,
@@ -137,12 +230,11 @@ public class AsyncLocator {
 			ModernFix.LOGGER.debug("No {} found", structures);
 		else
 			ModernFix.LOGGER.debug("Found {} at {}", structures, thePosition.get());
-		completableFuture.complete(thePosition.orElse(null));
+		return thePosition.orElse(null);
 	}
 
 	@SuppressWarnings({"rawtypes", "unchecked" })
-	private static void doLocateChunkGenerator(
-		CompletableFuture<Pair<BlockPos, StructureFeature<?>>> completableFuture,
+	private static Pair<BlockPos, StructureFeature<?>> doLocateChunkGenerator(
 		ServerLevel level,
 		Collection<StructureFeature<?>> structureSet,
  		BlockPos pos,
@@ -163,7 +255,232 @@ public class AsyncLocator {
 			ModernFix.LOGGER.debug("No {} found", structures);
 		else
 			ModernFix.LOGGER.debug("Found {} at {}", structures, foundStructure.get().getFirst());
-		completableFuture.complete((Pair<BlockPos, StructureFeature<?>>)(Object)foundStructure.orElse(null));
+		return (Pair<BlockPos, StructureFeature<?>>)(Object)foundStructure.orElse(null);
+	}
+
+	/**
+	 * Identifies requests that can share a search: same dimension, search kind, structures, radius and origin. Strongholds
+	 * are ranked by their distance to the exact origin, so the origin is not rounded to its chunk.
+	 */
+	private static final class LocateKey {
+		private final ResourceKey<Level> dimension;
+		private final boolean chunkGenerator;
+		private final Set<StructureFeature<?>> structures;
+		private final int originX, originZ;
+		private final int searchRadius;
+
+		LocateKey(ResourceKey<Level> dimension, boolean chunkGenerator, Collection<StructureFeature<?>> structures, BlockPos pos, int searchRadius) {
+			this.dimension = dimension;
+			this.chunkGenerator = chunkGenerator;
+			// the first structure found wins, so the order matters
+			this.structures = ImmutableSet.copyOf(structures);
+			this.originX = pos.getX();
+			this.originZ = pos.getZ();
+			this.searchRadius = searchRadius;
+		}
+
+		/**
+		 * Check whether the chunk lies inside the area this search may have looked at.
+		 */
+		boolean covers(ChunkPos chunk) {
+			int reach = searchRadius + 1;
+			return Math.abs(chunk.x - (originX >> 4)) <= reach && Math.abs(chunk.z - (originZ >> 4)) <= reach;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof LocateKey)) return false;
+			LocateKey other = (LocateKey)o;
+			return chunkGenerator == other.chunkGenerator && originX == other.originX && originZ == other.originZ
+				&& searchRadius == other.searchRadius && dimension == other.dimension
+				&& Iterables.elementsEqual(structures, other.structures);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(dimension, chunkGenerator, structures, originX, originZ, searchRadius);
+		}
+	}
+
+	/**
+	 * A running search, along with the number of requests waiting for it.
+	 */
+	private static final class SharedLocate {
+		private final LocateKey key;
+		private final LocateCache cache;
+		private final long stamp;
+		final CompletableFuture<Object> result = new CompletableFuture<>();
+		volatile Future<?> task;
+		private int waiters = 1;
+		private boolean abandoned;
+
+		SharedLocate(LocateKey key, LocateCache cache) {
+			this.key = key;
+			this.cache = cache;
+			this.stamp = cache.begin(key);
+		}
+
+		/**
+		 * @return false if the search was already abandoned and a new one must be started
+		 */
+		synchronized boolean join() {
+			if (abandoned)
+				return false;
+			waiters++;
+			return true;
+		}
+
+		synchronized void release() {
+			if (--waiters == 0 && !result.isDone()) {
+				abandoned = true;
+				IN_FLIGHT.remove(key, this);
+				cache.abort(key, stamp);
+				result.cancel(false);
+				task.cancel(true);
+			}
+		}
+
+		void run(Supplier<?> search) {
+			try {
+				Object found = search.get();
+				cache.put(key, stamp, found);
+				result.complete(found);
+			} catch (Throwable e) {
+				cache.abort(key, stamp);
+				result.completeExceptionally(e);
+			} finally {
+				IN_FLIGHT.remove(key, this);
+			}
+		}
+	}
+
+	/**
+	 * Recent results of one level. A result is dropped when a chunk that could change it is loaded: the chunk
+	 * holding a found structure, in case its start turned out not to be placed there, or any chunk in the area of a
+	 * search that found nothing.
+	 * <p></p>
+	 * Running searches are stamped when they start, and lose their stamp if a chunk in their area is loaded before
+	 * they finish. Their result is then dropped instead of being cached, as it may already be stale.
+	 */
+	private static final class LocateCache {
+		private final Map<LocateKey, Optional<Object>> results = new LinkedHashMap<LocateKey, Optional<Object>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<LocateKey, Optional<Object>> eldest) {
+				if (size() > MAX_CACHED_RESULTS_PER_LEVEL) {
+					unindex(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+		private final Map<LocateKey, Long> running = new HashMap<>();
+		private final Long2ObjectOpenHashMap<Set<LocateKey>> keysByCell = new Long2ObjectOpenHashMap<>();
+		private long nextStamp;
+
+		synchronized Optional<Object> get(LocateKey key) {
+			return results.get(key);
+		}
+
+		/**
+		 * Record that a search for the key is starting.
+		 * @return the stamp to pass to {@link #put}
+		 */
+		synchronized long begin(LocateKey key) {
+			Optional<Object> outdated = results.remove(key);
+			if (outdated != null)
+				unindex(key, outdated);
+			long stamp = ++nextStamp;
+			if (running.put(key, stamp) == null)
+				index(key, null);
+			return stamp;
+		}
+
+		synchronized void put(LocateKey key, long stamp, Object result) {
+			if (!abort(key, stamp))
+				return;
+			Optional<Object> value = Optional.ofNullable(result);
+			results.put(key, value);
+			index(key, value);
+		}
+
+		/**
+		 * Forget a running search.
+		 * @return false if the search was invalidated or replaced by a newer one
+		 */
+		synchronized boolean abort(LocateKey key, long stamp) {
+			Long current = running.get(key);
+			if (current == null || current != stamp)
+				return false;
+			running.remove(key);
+			unindex(key, null);
+			return true;
+		}
+
+		synchronized void invalidate(ChunkPos chunk) {
+			if (keysByCell.isEmpty())
+				return;
+			Set<LocateKey> keys = keysByCell.get(ChunkPos.asLong(chunk.x >> CELL_SHIFT, chunk.z >> CELL_SHIFT));
+			if (keys == null)
+				return;
+			for (LocateKey key : new ArrayList<>(keys)) {
+				if (running.containsKey(key)) {
+					if (key.covers(chunk)) {
+						running.remove(key);
+						unindex(key, null);
+					}
+					continue;
+				}
+				Optional<Object> result = results.get(key);
+				if (result != null && isAffectedBy(key, result, chunk)) {
+					results.remove(key);
+					unindex(key, result);
+				}
+			}
+		}
+
+		private static boolean isAffectedBy(LocateKey key, Optional<Object> result, ChunkPos chunk) {
+			if (!result.isPresent())
+				return key.covers(chunk);
+			BlockPos foundPos = getFoundPos(result.get());
+			return (foundPos.getX() >> 4) == chunk.x && (foundPos.getZ() >> 4) == chunk.z;
+		}
+
+		private static BlockPos getFoundPos(Object found) {
+			return found instanceof Pair ? (BlockPos)((Pair<?, ?>)found).getFirst() : (BlockPos)found;
+		}
+
+		/**
+		 * Add the key to the cells it can be invalidated from: the cell of the found structure, or every cell of the
+		 * search area while running or if nothing was found.
+		 * @param result the cached result, or null for a running search
+		 */
+		private void index(LocateKey key, @Nullable Optional<Object> result) {
+			forEachCell(key, result, cell -> keysByCell.computeIfAbsent(cell, c -> new HashSet<>()).add(key));
+		}
+
+		private void unindex(LocateKey key, @Nullable Optional<Object> result) {
+			forEachCell(key, result, cell -> {
+				Set<LocateKey> keys = keysByCell.get(cell);
+				if (keys != null && keys.remove(key) && keys.isEmpty())
+					keysByCell.remove(cell);
+			});
+		}
+
+		private static void forEachCell(LocateKey key, @Nullable Optional<Object> result, LongConsumer action) {
+			if (result != null && result.isPresent()) {
+				BlockPos foundPos = getFoundPos(result.get());
+				action.accept(ChunkPos.asLong((foundPos.getX() >> 4) >> CELL_SHIFT, (foundPos.getZ() >> 4) >> CELL_SHIFT));
+				return;
+			}
+			int reach = key.searchRadius + 1;
+			int minX = ((key.originX >> 4) - reach) >> CELL_SHIFT, maxX = ((key.originX >> 4) + reach) >> CELL_SHIFT;
+			int minZ = ((key.originZ >> 4) - reach) >> CELL_SHIFT, maxZ = ((key.originZ >> 4) + reach) >> CELL_SHIFT;
+			for (int x = minX; x <= maxX; x++) {
+				for (int z = minZ; z <= maxZ; z++)
+					action.accept(ChunkPos.asLong(x, z));
+			}
+		}
 	}
 
 	/**
@@ -53,6 +53,7 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Path;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
@@ -274,4 +275,13 @@ public class ModernFixPlatformHooksImpl implements ModernFixPlatformHooks {
     public String getPlatformName() {
         return "Forge";
     }
+
+    @Override
+    public Map<String, String> getModVersions() {
+        Map<String, String> versions = new HashMap<>();
+        for(ModInfo info : LoadingModList.get().getMods()) {
+            versions.put(info.getModId(), info.getVersion().toString());
+        }
+        return versions;
+    }
 }